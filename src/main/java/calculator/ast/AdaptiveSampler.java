@@ -0,0 +1,166 @@
+package calculator.ast;
+
+import calculator.errors.BudgetExceededError;
+import calculator.interpreter.EvaluationBudget;
+import datastructures.concrete.ArrayHeap;
+import datastructures.interfaces.IPriorityQueue;
+
+import java.util.Arrays;
+
+/**
+ * Samples a compiled expression over a range of values, placing samples
+ * where the curve is hardest to approximate rather than evenly.
+ *
+ * Sampling starts from a coarse, even grid. Every interval between two
+ * samples also has its midpoint sampled, and the distance between the value
+ * at the midpoint and the straight line between the two ends is used as that
+ * interval's error. Intervals are kept in a max-heap ordered by error, and
+ * the worst one is repeatedly split in half until every interval is within
+ * the tolerance or there is no room left for more samples.
+ *
+ * Flat and straight regions are left at the coarse spacing, while steep or
+ * sharply curved regions are split as finely as the point budget allows.
+ */
+public class AdaptiveSampler {
+    /**
+     * The number of intervals in the initial, evenly spaced grid.
+     */
+    public static final int INITIAL_INTERVALS = 16;
+
+    private final StackProgram program;
+    private final double[] slots;
+    private final int slot;
+    private final EvaluationBudget budget;
+
+    /**
+     * Creates a sampler that evaluates 'program' with the slot at index
+     * 'slot' holding the sampled value. Every other slot keeps its value
+     * from 'slots'.
+     */
+    public AdaptiveSampler(StackProgram program, double[] slots, int slot, EvaluationBudget budget) {
+        this.program = program;
+        this.slots = slots.clone();
+        this.slot = slot;
+        this.budget = budget;
+    }
+
+    /**
+     * Samples the program from 'min' to 'max' (both inclusive), stopping once
+     * the error of every interval is at most 'tolerance' or taking another
+     * sample would not fit in 'xs'. Writes the samples in increasing order
+     * of x into 'xs' and 'ys', and returns how many there are.
+     *
+     * @throws IllegalArgumentException  if 'xs' and 'ys' differ in length or
+     *                                   cannot hold at least three samples
+     * @throws BudgetExceededError       if the budget runs out part way through
+     */
+    public int sample(double min, double max, double tolerance, double[] xs, double[] ys) {
+        int capacity = xs.length;
+        if (ys.length != capacity || capacity < 3) {
+            throw new IllegalArgumentException();
+        }
+        if (!(max > min)) {
+            xs[0] = min;
+            ys[0] = this.eval(min);
+            return 1;
+        }
+
+        // Every interval holds two samples of its own (its start and its
+        // midpoint), plus there is the sample at 'max'
+        int intervals = Math.min(INITIAL_INTERVALS, (capacity - 1) / 2);
+        IPriorityQueue<Interval> queue = new ArrayHeap<>();
+        double width = (max - min) / intervals;
+        double start = min;
+        double startValue = this.eval(start);
+        for (int i = 1; i <= intervals; i++) {
+            double end = i == intervals ? max : min + i * width;
+            double endValue = this.eval(end);
+            queue.insert(this.makeInterval(start, startValue, end, endValue));
+            start = end;
+            startValue = endValue;
+        }
+        double maxValue = startValue;
+        int points = 2 * intervals + 1;
+
+        // Splitting an interval replaces it with two halves, whose midpoints
+        // are the two new samples
+        while (points + 2 <= capacity && queue.peekMax().error > tolerance) {
+            Interval worst = queue.removeMax();
+            queue.insert(this.makeInterval(worst.start, worst.startValue, worst.middle, worst.middleValue));
+            queue.insert(this.makeInterval(worst.middle, worst.middleValue, worst.end, worst.endValue));
+            points += 2;
+        }
+
+        Interval[] sorted = new Interval[queue.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = queue.removeMax();
+        }
+        Arrays.sort(sorted, (a, b) -> Double.compare(a.start, b.start));
+        int index = 0;
+        for (Interval interval : sorted) {
+            xs[index] = interval.start;
+            ys[index] = interval.startValue;
+            xs[index + 1] = interval.middle;
+            ys[index + 1] = interval.middleValue;
+            index += 2;
+        }
+        xs[index] = max;
+        ys[index] = maxValue;
+        return index + 1;
+    }
+
+    private double eval(double x) {
+        this.budget.visitMany(1);
+        this.slots[this.slot] = x;
+        return this.program.eval(this.slots);
+    }
+
+    private Interval makeInterval(double start, double startValue, double end, double endValue) {
+        double middle = start + (end - start) / 2;
+        double middleValue = this.eval(middle);
+        double error;
+        if (middle <= start || middle >= end) {
+            // Too narrow to split any further
+            error = 0;
+        } else if (isFinite(startValue) && isFinite(middleValue) && isFinite(endValue)) {
+            error = Math.abs(middleValue - (startValue + endValue) / 2);
+        } else if (isFinite(startValue) || isFinite(middleValue) || isFinite(endValue)) {
+            // The curve goes off to infinity or stops being defined somewhere
+            // in here, so find out where as precisely as possible
+            error = Double.POSITIVE_INFINITY;
+        } else {
+            error = 0;
+        }
+        return new Interval(start, startValue, middle, middleValue, end, endValue, error);
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    private static class Interval implements Comparable<Interval> {
+        public final double start;
+        public final double startValue;
+        public final double middle;
+        public final double middleValue;
+        public final double end;
+        public final double endValue;
+        public final double error;
+
+        public Interval(double start, double startValue, double middle, double middleValue,
+                        double end, double endValue, double error) {
+            this.start = start;
+            this.startValue = startValue;
+            this.middle = middle;
+            this.middleValue = middleValue;
+            this.end = end;
+            this.endValue = endValue;
+            this.error = error;
+        }
+
+        @Override
+        public int compareTo(Interval other) {
+            return Double.compare(this.error, other.error);
+        }
+    }
+}
@@ -4,6 +4,10 @@ import calculator.errors.EvaluationError;
 import datastructures.concrete.DoubleLinkedList;
 import datastructures.interfaces.IList;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
 /**
  * Represents a single node in an abstract syntax tree (AST).
  *
@@ -13,6 +17,14 @@ public class AstNode {
     private String name;
     private IList<AstNode> children;
     private ExprType type;
+    private int hash;
+
+    // The function this operation was last resolved to, and the stamp of
+    // the function table it was resolved against. Not part of the node's
+    // identity, so ignored by 'equals' and 'hashCode'.
+    private Object bindingStamp;
+    private AstManipulator boundFunction;
+    private boolean boundToSpecialFunction;
 
     /**
      * Creates a leaf node representing a single number.
@@ -113,6 +125,115 @@ public class AstNode {
         return this.children;
     }
 
+    /**
+     * Remembers which function this operation resolved to in the function
+     * table with the given stamp. A null function means the operation is a
+     * plain operation with no function attached.
+     *
+     * You should ignore this method.
+     */
+    public void setBinding(Object stamp, AstManipulator function, boolean special) {
+        this.boundFunction = function;
+        this.boundToSpecialFunction = special;
+        this.bindingStamp = stamp;
+    }
+
+    /**
+     * Returns 'true' if this node was bound by the function table with the
+     * given stamp.
+     */
+    public boolean isBoundTo(Object stamp) {
+        return this.bindingStamp == stamp;
+    }
+
+    /**
+     * Returns the function this node is bound to, or null if it is a plain
+     * operation.
+     */
+    public AstManipulator getBoundFunction() {
+        return this.boundFunction;
+    }
+
+    /**
+     * Returns 'true' if this node is bound to a special function, which takes
+     * complete control over evaluating the node.
+     */
+    public boolean isBoundToSpecialFunction() {
+        return this.boundToSpecialFunction;
+    }
+
+    /**
+     * Returns 'true' if the given object is an AstNode with the same kind,
+     * name or value, and structurally equal children as this one.
+     *
+     * Uses an explicit stack rather than recursion, so comparing very deep
+     * trees cannot overflow the thread stack.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof AstNode)) {
+            return false;
+        }
+        Deque<AstNode> mine = new ArrayDeque<>();
+        Deque<AstNode> theirs = new ArrayDeque<>();
+        mine.push(this);
+        theirs.push((AstNode) other);
+        while (!mine.isEmpty()) {
+            AstNode left = mine.pop();
+            AstNode right = theirs.pop();
+            if (left == right) {
+                continue;
+            }
+            if (left.type != right.type || !left.name.equals(right.name)
+                    || left.hashCode() != right.hashCode()
+                    || left.children.size() != right.children.size()) {
+                return false;
+            }
+            Iterator<AstNode> rightChildren = right.children.iterator();
+            for (AstNode child : left.children) {
+                mine.push(child);
+                theirs.push(rightChildren.next());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a hash code based on the structure of this node and all of its
+     * descendants.
+     *
+     * The hash is computed once and then remembered, so nodes must not be
+     * modified after they are first hashed or compared. Descendants are
+     * hashed bottom-up using an explicit stack rather than recursion.
+     */
+    @Override
+    public int hashCode() {
+        if (this.hash != 0) {
+            return this.hash;
+        }
+        Deque<AstNode> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            AstNode node = pending.peek();
+            boolean childrenReady = true;
+            for (AstNode child : node.children) {
+                if (child.hash == 0) {
+                    pending.push(child);
+                    childrenReady = false;
+                }
+            }
+            if (childrenReady) {
+                pending.pop();
+                int result = 31 * node.type.ordinal() + node.name.hashCode();
+                for (AstNode child : node.children) {
+                    result = 31 * result + child.hash;
+                }
+                node.hash = result == 0 ? 1 : result;
+            }
+        }
+        return this.hash;
+    }
+
     private enum ExprType {
         NUMBER,
         VARIABLE,
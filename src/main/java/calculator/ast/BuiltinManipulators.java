@@ -37,8 +37,15 @@ public class BuiltinManipulators {
                     var.isNumber() ? var.getNumericValue() : var.getName()));
         }
 
-        // Record and return result
+        // Record and return result. Inside a frame pushed by a builtin, the
+        // variable becomes local to the frame, and there are no caches to
+        // invalidate.
         env.getVariables().put(var.getName(), expr);
+        if (env.getDependencyGraph() != null) {
+            for (String affected : env.getDependencyGraph().define(var.getName(), expr)) {
+                env.getSimplifyCache().invalidate(affected);
+            }
+        }
         return expr;
     }
 
@@ -0,0 +1,315 @@
+package calculator.ast;
+
+import calculator.errors.EvaluationError;
+import datastructures.interfaces.IList;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Compiles an AstNode into a real JVM class implementing CompiledExpression.
+ *
+ * Arithmetic operators map directly onto the JVM's double instructions
+ * (dadd, dsub, dmul, ddiv, dneg), and the remaining functions become calls
+ * to the matching 'java.lang.Math' method, which the JIT treats as
+ * intrinsics. Each variable is read out of the 'slots' array using the
+ * index it has in the list of slot names given to 'compile'.
+ *
+ * Every compiled class is defined by its own throwaway class loader, so the
+ * class is unloaded as soon as the returned CompiledExpression is no longer
+ * reachable.
+ *
+ * Defining a class costs far more than compiling a StackProgram, and only
+ * pays off for an expression evaluated a very large number of times, so
+ * PreparedExpression only switches to this compiler once an expression has
+ * been evaluated PreparedExpression.BYTECODE_THRESHOLD times.
+ */
+public class BytecodeCompiler {
+    private static final String GENERATED_NAME = "calculator/ast/CompiledExpression$Generated";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String MATH = "java/lang/Math";
+    private static final String INTERFACE = "calculator/ast/CompiledExpression";
+
+    // The JVM limits the bytecode of a single method to 64 KiB, and records
+    // the most its operand stack holds in 16 bits
+    private static final int MAX_CODE_LENGTH = 0xFFFF;
+    private static final int MAX_STACK_DEPTH = 0xFFFF;
+
+    private static final int ICONST_0 = 0x03;
+    private static final int DCONST_0 = 0x0e;
+    private static final int DCONST_1 = 0x0f;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int DALOAD = 0x31;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int DNEG = 0x77;
+    private static final int DRETURN = 0xaf;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    private final ClassFileWriter writer;
+    private final Map<String, Integer> slotIndices;
+    private final ByteArrayOutputStream code;
+    private int stackDepth;
+    private int maxStackDepth;
+
+    private BytecodeCompiler(IList<String> slotNames) {
+        this.writer = new ClassFileWriter(GENERATED_NAME, OBJECT, INTERFACE);
+        this.slotIndices = new HashMap<>();
+        int index = 0;
+        for (String name : slotNames) {
+            if (!this.slotIndices.containsKey(name)) {
+                this.slotIndices.put(name, index);
+            }
+            index += 1;
+        }
+        this.code = new ByteArrayOutputStream();
+        this.stackDepth = 0;
+        this.maxStackDepth = 0;
+    }
+
+    /**
+     * Compiles the given expression. The value of the variable named
+     * 'slotNames.get(i)' will be read from 'slots[i]' when the result is
+     * evaluated.
+     *
+     * @throws EvaluationError  if the expression contains a variable not listed in
+     *                          'slotNames', uses an unknown operation or the wrong
+     *                          number of operands, or is too large to fit in a
+     *                          single JVM method
+     */
+    public static CompiledExpression compile(AstNode expression, IList<String> slotNames) {
+        BytecodeCompiler compiler = new BytecodeCompiler(slotNames);
+        compiler.emitExpression(expression);
+        compiler.emit(DRETURN);
+        compiler.pop(2);
+        return compiler.load();
+    }
+
+    private CompiledExpression load() {
+        this.checkSize();
+        byte[] body = this.code.toByteArray();
+        this.writer.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", 1, 1,
+                this.constructorBody());
+        this.writer.addMethod(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_FINAL,
+                "eval", "([D)D", this.maxStackDepth, 2, body);
+
+        byte[] classFile = this.writer.toByteArray();
+        ExpressionClassLoader loader = new ExpressionClassLoader();
+        try {
+            Class<?> compiled = loader.define(GENERATED_NAME.replace('/', '.'), classFile);
+            return (CompiledExpression) compiled.getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            throw new EvaluationError("Unable to load compiled expression", ex);
+        }
+    }
+
+    private byte[] constructorBody() {
+        int superInit = this.writer.methodRef(OBJECT, "<init>", "()V");
+        return new byte[] {
+                (byte) ALOAD_0,
+                (byte) INVOKESPECIAL, (byte) (superInit >> 8), (byte) superInit,
+                (byte) RETURN,
+        };
+    }
+
+    // Walks the tree with an explicit stack of frames, like StackProgram's
+    // assembler, so very deep expressions cannot overflow the thread stack.
+    // Gives up as soon as the code no longer fits in a single method.
+    private void emitExpression(AstNode root) {
+        Deque<Frame> pending = new ArrayDeque<>();
+        Frame rootFrame = this.visit(root);
+        if (rootFrame != null) {
+            pending.push(rootFrame);
+        }
+        while (!pending.isEmpty()) {
+            this.checkSize();
+            Frame frame = pending.peek();
+            if (frame.children.hasNext()) {
+                if (frame.childCount >= 2) {
+                    // Sums and products with more than two operands add each
+                    // one in as soon as it is on the stack
+                    this.emitOperation(frame.node);
+                }
+                frame.childCount += 1;
+                Frame child = this.visit(frame.children.next());
+                if (child != null) {
+                    pending.push(child);
+                }
+            } else {
+                pending.pop();
+                this.emitOperation(frame.node);
+            }
+        }
+        this.checkSize();
+    }
+
+    // Emits leaves immediately, and returns a frame for operations that
+    // still need their children emitted first
+    private Frame visit(AstNode node) {
+        if (node.isNumber()) {
+            this.emitConstant(node.getNumericValue());
+            return null;
+        } else if (node.isVariable()) {
+            Integer slot = this.slotIndices.get(node.getName());
+            if (slot == null) {
+                throw new EvaluationError("Undefined variable: " + node.getName());
+            }
+            this.emit(ALOAD_1);
+            this.push(1);
+            this.emitInt(slot);
+            this.emit(DALOAD);
+            this.pop(2);
+            this.push(2);
+            return null;
+        }
+        return new Frame(node);
+    }
+
+    // Emits the instruction applying the given operation to the operands on
+    // top of the stack
+    private void emitOperation(AstNode node) {
+        String name = node.getName();
+        IList<AstNode> children = node.getChildren();
+        if (ExpressionFlattener.isAssociative(name) && children.size() > 2) {
+            this.emit(name.equals("+") ? DADD : DMUL);
+            this.pop(4);
+            this.push(2);
+        } else if (name.equals("+")) {
+            this.emitBinary(children, DADD);
+        } else if (name.equals("-")) {
+            this.emitBinary(children, DSUB);
+        } else if (name.equals("*")) {
+            this.emitBinary(children, DMUL);
+        } else if (name.equals("/")) {
+            this.emitBinary(children, DDIV);
+        } else if (name.equals("^")) {
+            checkNumberOfOperands(children, 2);
+            this.emitMathCall("pow", "(DD)D");
+            this.pop(4);
+            this.push(2);
+        } else if (name.equals("negate")) {
+            checkNumberOfOperands(children, 1);
+            this.emit(DNEG);
+        } else if (name.equals("sin") || name.equals("cos") || name.equals("abs")
+                || name.equals("exp") || name.equals("sqrt")) {
+            checkNumberOfOperands(children, 1);
+            this.emitMathCall(name, "(D)D");
+        } else {
+            throw new EvaluationError("Unknown operation: " + name);
+        }
+    }
+
+    // Throws once the method no longer fits in a class file
+    private void checkSize() {
+        if (this.code.size() > MAX_CODE_LENGTH || this.maxStackDepth > MAX_STACK_DEPTH
+                || this.writer.isPoolFull()) {
+            throw new EvaluationError("Expression is too large to compile");
+        }
+    }
+
+    private void emitBinary(IList<AstNode> children, int opcode) {
+        checkNumberOfOperands(children, 2);
+        this.emit(opcode);
+        this.pop(4);
+        this.push(2);
+    }
+
+    private void emitMathCall(String name, String descriptor) {
+        int method = this.writer.methodRef(MATH, name, descriptor);
+        this.emit(INVOKESTATIC);
+        this.emitShort(method);
+    }
+
+    private void emitConstant(double value) {
+        if (Double.doubleToRawLongBits(value) == 0L) {
+            this.emit(DCONST_0);
+        } else if (value == 1.0) {
+            this.emit(DCONST_1);
+        } else {
+            this.emit(LDC2_W);
+            this.emitShort(this.writer.doubleConstant(value));
+        }
+        this.push(2);
+    }
+
+    private void emitInt(int value) {
+        if (value <= 5) {
+            this.emit(ICONST_0 + value);
+        } else if (value <= Byte.MAX_VALUE) {
+            this.emit(BIPUSH);
+            this.emit(value);
+        } else if (value <= Short.MAX_VALUE) {
+            this.emit(SIPUSH);
+            this.emitShort(value);
+        } else {
+            this.emit(LDC_W);
+            this.emitShort(this.writer.intConstant(value));
+        }
+        this.push(1);
+    }
+
+    private void emit(int value) {
+        this.code.write(value);
+    }
+
+    private void emitShort(int value) {
+        this.code.write(value >> 8);
+        this.code.write(value);
+    }
+
+    private void push(int words) {
+        this.stackDepth += words;
+        this.maxStackDepth = Math.max(this.maxStackDepth, this.stackDepth);
+    }
+
+    private void pop(int words) {
+        this.stackDepth -= words;
+    }
+
+    private static void checkNumberOfOperands(IList<AstNode> children, int count) {
+        if (children.size() != count) {
+            throw new EvaluationError(
+                    "Given " + children.size() + " operands, but expected " + count);
+        }
+    }
+
+    private static class Frame {
+        public final AstNode node;
+        public final Iterator<AstNode> children;
+        public int childCount;
+
+        public Frame(AstNode node) {
+            this.node = node;
+            this.children = node.getChildren().iterator();
+            this.childCount = 0;
+        }
+    }
+
+    /**
+     * Defines exactly one generated class. Because nothing but the compiled
+     * expression instance refers to this loader, both become unreachable
+     * together and the JVM is free to unload the generated class.
+     */
+    private static class ExpressionClassLoader extends ClassLoader {
+        public ExpressionClassLoader() {
+            super(CompiledExpression.class.getClassLoader());
+        }
+
+        public Class<?> define(String name, byte[] classFile) {
+            return this.defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package calculator.ast;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A deliberately tiny writer for JVM class files.
+ *
+ * It supports exactly what BytecodeCompiler needs: a single public final
+ * class with one interface, no fields, and methods made of straight-line
+ * code (no branches, so no StackMapTable frames are required).
+ *
+ * See chapter 4 of the Java Virtual Machine Specification for the format.
+ */
+class ClassFileWriter {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int JAVA_8_MAJOR_VERSION = 52;
+
+    private static final int TAG_UTF8 = 1;
+    private static final int TAG_INTEGER = 3;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_CLASS = 7;
+    private static final int TAG_METHODREF = 10;
+    private static final int TAG_NAME_AND_TYPE = 12;
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    private static final int MAX_CONSTANT_POOL_SIZE = 0xFFFF;
+
+    private final ByteArrayOutputStream poolBytes;
+    private final DataOutputStream pool;
+    private final Map<String, Integer> poolIndices;
+    private int poolCount;
+
+    private final ByteArrayOutputStream methodBytes;
+    private final DataOutputStream methods;
+    private int methodCount;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int interfaceClass;
+
+    /**
+     * Starts a new class. All names are internal names ('java/lang/Object',
+     * not 'java.lang.Object').
+     */
+    public ClassFileWriter(String className, String superName, String interfaceName) {
+        this.poolBytes = new ByteArrayOutputStream();
+        this.pool = new DataOutputStream(this.poolBytes);
+        this.poolIndices = new HashMap<>();
+        this.poolCount = 1;  // Index 0 of the constant pool is reserved
+
+        this.methodBytes = new ByteArrayOutputStream();
+        this.methods = new DataOutputStream(this.methodBytes);
+        this.methodCount = 0;
+
+        this.thisClass = this.classRef(className);
+        this.superClass = this.classRef(superName);
+        this.interfaceClass = this.classRef(interfaceName);
+    }
+
+    public int utf8(String value) {
+        Integer existing = this.poolIndices.get("U" + value);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            this.pool.writeByte(TAG_UTF8);
+            this.pool.writeUTF(value);
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+        return this.register("U" + value, 1);
+    }
+
+    public int classRef(String internalName) {
+        Integer existing = this.poolIndices.get("C" + internalName);
+        if (existing != null) {
+            return existing;
+        }
+        int name = this.utf8(internalName);
+        this.writeEntry(TAG_CLASS, name);
+        return this.register("C" + internalName, 1);
+    }
+
+    public int intConstant(int value) {
+        Integer existing = this.poolIndices.get("I" + value);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            this.pool.writeByte(TAG_INTEGER);
+            this.pool.writeInt(value);
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+        return this.register("I" + value, 1);
+    }
+
+    public int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        Integer existing = this.poolIndices.get("D" + bits);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            this.pool.writeByte(TAG_DOUBLE);
+            this.pool.writeLong(bits);
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+        // Doubles occupy two constant pool entries
+        return this.register("D" + bits, 2);
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+        String key = "M" + owner + "." + name + descriptor;
+        Integer existing = this.poolIndices.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        int ownerIndex = this.classRef(owner);
+        int nameIndex = this.utf8(name);
+        int descriptorIndex = this.utf8(descriptor);
+        this.writeEntry(TAG_NAME_AND_TYPE, nameIndex, descriptorIndex);
+        int nameAndType = this.register(key + "#nt", 1);
+        this.writeEntry(TAG_METHODREF, ownerIndex, nameAndType);
+        return this.register(key, 1);
+    }
+
+    /**
+     * Adds a method whose body is the given bytecode.
+     */
+    public void addMethod(int access, String name, String descriptor,
+                          int maxStack, int maxLocals, byte[] code) {
+        int nameIndex = this.utf8(name);
+        int descriptorIndex = this.utf8(descriptor);
+        int codeAttribute = this.utf8("Code");
+        try {
+            this.methods.writeShort(access);
+            this.methods.writeShort(nameIndex);
+            this.methods.writeShort(descriptorIndex);
+            this.methods.writeShort(1);  // attributes_count
+
+            this.methods.writeShort(codeAttribute);
+            this.methods.writeInt(2 + 2 + 4 + code.length + 2 + 2);
+            this.methods.writeShort(maxStack);
+            this.methods.writeShort(maxLocals);
+            this.methods.writeInt(code.length);
+            this.methods.write(code);
+            this.methods.writeShort(0);  // exception_table_length
+            this.methods.writeShort(0);  // attributes_count
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+        this.methodCount += 1;
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(JAVA_8_MAJOR_VERSION);
+            out.writeShort(this.poolCount);
+            this.poolBytes.writeTo(out);
+
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(this.thisClass);
+            out.writeShort(this.superClass);
+            out.writeShort(1);
+            out.writeShort(this.interfaceClass);
+            out.writeShort(0);  // fields_count
+            out.writeShort(this.methodCount);
+            this.methodBytes.writeTo(out);
+            out.writeShort(0);  // attributes_count
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns 'true' if the constant pool has grown past what a class file
+     * can index.
+     */
+    public boolean isPoolFull() {
+        return this.poolCount >= MAX_CONSTANT_POOL_SIZE;
+    }
+
+    private void writeEntry(int tag, int... indices) {
+        try {
+            this.pool.writeByte(tag);
+            for (int index : indices) {
+                this.pool.writeShort(index);
+            }
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private int register(String key, int width) {
+        int index = this.poolCount;
+        this.poolIndices.put(key, index);
+        this.poolCount += width;
+        return index;
+    }
+}
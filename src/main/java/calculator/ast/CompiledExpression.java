@@ -0,0 +1,17 @@
+package calculator.ast;
+
+/**
+ * An expression that has been compiled ahead of time into some form that can
+ * be evaluated repeatedly without walking the original AstNode tree.
+ *
+ * Variables are not looked up by name: instead, each variable is assigned an
+ * index ("slot") when the expression is compiled, and the caller passes in
+ * the current value of every variable through the 'slots' array.
+ */
+public interface CompiledExpression {
+    /**
+     * Evaluates this expression, reading the value of each variable from
+     * the corresponding index in 'slots'.
+     */
+    double eval(double[] slots);
+}
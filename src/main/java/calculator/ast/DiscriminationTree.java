@@ -0,0 +1,185 @@
+package calculator.ast;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of patterns that finds, for a given expression, the patterns
+ * that might match it without trying every pattern in turn.
+ *
+ * Each pattern is flattened into its sequence of symbols in preorder, where
+ * a symbol is an operation together with its number of operands, a number,
+ * or a wildcard standing for a metavariable. The sequences are stored in a
+ * trie. Looking an expression up walks the trie and the expression
+ * together: at each step it follows both the edge for the expression's next
+ * symbol and the wildcard edge, which skips the whole next subexpression.
+ *
+ * The cost of a lookup is bounded by the size of the trie that is reachable
+ * along the expression, not by the number of patterns. A metavariable that
+ * is used twice is treated as two independent wildcards, so candidates still
+ * have to be checked with RewriteRule.match.
+ */
+class DiscriminationTree<T> {
+    private final Node<T> root;
+
+    public DiscriminationTree() {
+        this.root = new Node<>();
+    }
+
+    /**
+     * Adds 'value' under the given pattern.
+     */
+    public void insert(AstNode pattern, T value) {
+        Node<T> node = this.root;
+        Deque<AstNode> pending = new ArrayDeque<>();
+        pending.push(pattern);
+        while (!pending.isEmpty()) {
+            AstNode current = pending.pop();
+            if (current.isVariable()) {
+                if (node.wildcard == null) {
+                    node.wildcard = new Node<>();
+                }
+                node = node.wildcard;
+                continue;
+            }
+            Object key = keyOf(current);
+            Node<T> next = node.edges.get(key);
+            if (next == null) {
+                next = new Node<>();
+                node.edges.put(key, next);
+            }
+            node = next;
+            pushChildren(current, pending);
+        }
+        node.values.add(value);
+    }
+
+    /**
+     * Returns every value whose pattern might match 'term', in no particular
+     * order.
+     */
+    public List<T> candidates(AstNode term) {
+        if (this.root.wildcard == null && !this.root.edges.containsKey(keyOf(term))) {
+            // Most nodes do not even share an operation with any pattern
+            return new ArrayList<>(0);
+        }
+        List<T> out = new ArrayList<>();
+        Deque<State<T>> states = new ArrayDeque<>();
+        states.push(new State<>(this.root, new Pending(term, null)));
+        while (!states.isEmpty()) {
+            State<T> state = states.pop();
+            if (state.rest == null) {
+                out.addAll(state.node.values);
+                continue;
+            }
+            AstNode next = state.rest.term;
+            if (state.node.wildcard != null) {
+                states.push(new State<>(state.node.wildcard, state.rest.next));
+            }
+            Node<T> child = state.node.edges.get(keyOf(next));
+            if (child != null) {
+                // Only now is it worth expanding the subexpression's operands
+                Pending rest = state.rest.next;
+                AstNode[] operands = operandsOf(next);
+                for (int i = operands.length - 1; i >= 0; i--) {
+                    rest = new Pending(operands[i], rest);
+                }
+                states.push(new State<>(child, rest));
+            }
+        }
+        return out;
+    }
+
+    private static Object keyOf(AstNode node) {
+        if (node.isNumber()) {
+            // Treat 0 and -0 as the same number, like RewriteRule.match does
+            double value = node.getNumericValue();
+            return value == 0 ? 0.0 : value;
+        }
+        return new Symbol(node.getName(), node.getChildren().size());
+    }
+
+    private static void pushChildren(AstNode node, Deque<AstNode> pending) {
+        AstNode[] operands = operandsOf(node);
+        for (int i = operands.length - 1; i >= 0; i--) {
+            pending.push(operands[i]);
+        }
+    }
+
+    private static AstNode[] operandsOf(AstNode node) {
+        AstNode[] operands = new AstNode[node.getChildren().size()];
+        Iterator<AstNode> iter = node.getChildren().iterator();
+        for (int i = 0; i < operands.length; i++) {
+            operands[i] = iter.next();
+        }
+        return operands;
+    }
+
+    private static class Node<T> {
+        public final Map<Object, Node<T>> edges;
+        public Node<T> wildcard;
+        public final List<T> values;
+
+        public Node() {
+            this.edges = new HashMap<>();
+            this.wildcard = null;
+            this.values = new ArrayList<>();
+        }
+    }
+
+    /**
+     * An operation together with its number of operands.
+     */
+    private static final class Symbol {
+        public final String name;
+        public final int arity;
+
+        public Symbol(String name, int arity) {
+            this.name = name;
+            this.arity = arity;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Symbol)) {
+                return false;
+            }
+            Symbol that = (Symbol) other;
+            return this.arity == that.arity && this.name.equals(that.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.name.hashCode() + this.arity;
+        }
+    }
+
+    /**
+     * The subexpressions still to be matched, as an immutable linked list so
+     * that alternative paths through the trie can share their tails.
+     */
+    private static class Pending {
+        public final AstNode term;
+        public final Pending next;
+
+        public Pending(AstNode term, Pending next) {
+            this.term = term;
+            this.next = next;
+        }
+    }
+
+    private static class State<T> {
+        public final Node<T> node;
+        public final Pending rest;
+
+        public State(Node<T> node, Pending rest) {
+            this.node = node;
+            this.rest = rest;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package calculator.ast;
+
+import datastructures.concrete.DoubleLinkedList;
+import datastructures.interfaces.IList;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Flattens chains of '+' and of '*' into single n-ary operations.
+ *
+ * The parser turns 'a + b + c + d' into '((a + b) + c) + d', one level of
+ * nesting per operator, so a long sum is as deep as it is long, and every
+ * pass over it has to walk (and possibly rebuild) that whole chain. The
+ * chain can instead be a single '+' node with every operand as a direct
+ * child, which has a depth of 1, and which every pass evaluates left to
+ * right, exactly like the chain it replaces.
+ *
+ * Only chains down the left operand are flattened. 'a + (b + c)' is left
+ * as it is, since adding 'b' and 'c' first may round differently, so
+ * flattening never changes what an expression evaluates to (or prints as).
+ * For the same reason, 'combine' only folds the numbers at the start of a
+ * chain, which are the ones evaluating it left to right would fold.
+ *
+ * Like every other pass, the tree is walked with an explicit stack, and
+ * subtrees that do not change are returned as they are.
+ */
+public class ExpressionFlattener {
+    private ExpressionFlattener() {
+    }
+
+    /**
+     * Returns whether the given operation is one this class flattens.
+     */
+    public static boolean isAssociative(String name) {
+        return name.equals("+") || name.equals("*");
+    }
+
+    /**
+     * Returns how many more visits walking the given operation took before
+     * it was flattened. A chain of k operands is k - 1 binary operations,
+     * each of which was visited once per operand and once when done. Passes
+     * charge these to the evaluation budget as well, so flattening does not
+     * make a budget go any further than it did.
+     */
+    public static int flattenedVisits(AstNode node) {
+        int operands = node.getChildren().size();
+        return isAssociative(node.getName()) && operands > 2 ? 2 * (operands - 2) : 0;
+    }
+
+    /**
+     * Returns the given expression with every chain of '+' and of '*'
+     * flattened. The expression itself is not modified.
+     */
+    public static AstNode flatten(AstNode expression) {
+        if (!expression.isOperation()) {
+            return expression;
+        }
+        Deque<Frame> pending = new ArrayDeque<>();
+        pending.push(new Frame(expression));
+        while (true) {
+            Frame frame = pending.peek();
+            if (frame.oldChildren.hasNext()) {
+                AstNode operand = frame.oldChildren.next();
+                if (operand.isOperation()) {
+                    pending.push(new Frame(operand));
+                } else {
+                    frame.add(operand, operand);
+                }
+                continue;
+            }
+            pending.pop();
+            AstNode result = frame.rebuild();
+            if (pending.isEmpty()) {
+                return result;
+            }
+            pending.peek().add(frame.node, result);
+        }
+    }
+
+    /**
+     * Returns whether 'combine' would change the given operands of the
+     * given operation: whether the first operand is the same operation, or
+     * the first two operands are numbers.
+     */
+    public static boolean canCombine(String name, IList<AstNode> operands) {
+        Iterator<AstNode> iter = operands.iterator();
+        if (!iter.hasNext()) {
+            return false;
+        }
+        AstNode first = iter.next();
+        if (first.isOperation() && first.getName().equals(name)) {
+            return true;
+        }
+        return first.isNumber() && iter.hasNext() && iter.next().isNumber();
+    }
+
+    /**
+     * Returns the given associative operation applied to 'operands'. If the
+     * first operand is itself the same operation, its children are spliced
+     * in, and the numbers at the start of the result are folded into one.
+     * Returns a number if every operand is one.
+     */
+    public static AstNode combine(String name, IList<AstNode> operands) {
+        // Operands are already flat, so one level of splicing suffices
+        IList<AstNode> parts = new DoubleLinkedList<>();
+        Iterator<AstNode> iter = operands.iterator();
+        AstNode first = iter.next();
+        if (first.isOperation() && first.getName().equals(name)) {
+            for (AstNode child : first.getChildren()) {
+                parts.add(child);
+            }
+        } else {
+            parts.add(first);
+        }
+        while (iter.hasNext()) {
+            parts.add(iter.next());
+        }
+
+        boolean isSum = name.equals("+");
+        IList<AstNode> rest = new DoubleLinkedList<>();
+        int leadingNumbers = 0;
+        double constant = 0;
+        for (AstNode part : parts) {
+            if (!rest.isEmpty() || !part.isNumber()) {
+                rest.add(part);
+            } else if (leadingNumbers == 0) {
+                constant = part.getNumericValue();
+                leadingNumbers += 1;
+            } else {
+                constant = isSum ? constant + part.getNumericValue() 
+                                 : constant * part.getNumericValue();
+                leadingNumbers += 1;
+            }
+        }
+
+        if (rest.isEmpty()) {
+            return new AstNode(constant);
+        } else if (leadingNumbers == 0 && rest.size() == 1) {
+            return rest.get(0);
+        }
+        IList<AstNode> children = new DoubleLinkedList<>();
+        if (leadingNumbers > 0) {
+            children.add(new AstNode(constant));
+        }
+        for (AstNode part : rest) {
+            children.add(part);
+        }
+        return new AstNode(name, children);
+    }
+
+    // Returns the operands of the chain of 'name' operations down the left
+    // operand of 'node', left to right
+    private static IList<AstNode> collectOperands(AstNode node) {
+        String name = node.getName();
+        Deque<AstNode> chain = new ArrayDeque<>();
+        AstNode current = node;
+        while (current.isOperation() && current.getName().equals(name) 
+                && !current.getChildren().isEmpty()) {
+            chain.push(current);
+            current = current.getChildren().get(0);
+        }
+
+        IList<AstNode> operands = new DoubleLinkedList<>();
+        operands.add(current);
+        while (!chain.isEmpty()) {
+            Iterator<AstNode> children = chain.pop().getChildren().iterator();
+            children.next();
+            while (children.hasNext()) {
+                operands.add(children.next());
+            }
+        }
+        return operands;
+    }
+
+    // A node whose operands are being flattened. The operands of a sum or
+    // product are those of the whole chain down its left operand.
+    private static class Frame extends TraversalFrame {
+        private final boolean chained;
+
+        public Frame(AstNode node) {
+            super(node, isAssociative(node.getName()) ? collectOperands(node) : node.getChildren());
+            this.chained = this.getChildren().size() != node.getChildren().size();
+        }
+
+        // Returns the original node if flattening did not change anything,
+        // and the flattened node otherwise
+        @Override
+        public AstNode rebuild() {
+            if (this.chained) {
+                return new AstNode(this.node.getName(), this.getChildren());
+            }
+            return super.rebuild();
+        }
+    }
+}
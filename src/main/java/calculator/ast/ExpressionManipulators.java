@@ -1,16 +1,30 @@
 package calculator.ast;
 
+import calculator.interpreter.DependencyGraph;
 import calculator.interpreter.Environment;
+import calculator.interpreter.EvaluationBudget;
 import calculator.errors.EvaluationError;
+import calculator.gui.ImageDrawer;
 import datastructures.concrete.DoubleLinkedList;
+import datastructures.concrete.dictionaries.ArrayDictionary;
 import datastructures.interfaces.IDictionary;
 import datastructures.interfaces.IList;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
 //This is a part of a Symbolic algebra calculator. It does not immediately
 //evaluate the expressions the user type in buy instead lets user manipulate
 //them symbolically. It can simplify an expression, convert an expression to
 //a double and plot an expression. 
 public class ExpressionManipulators {
+	private static final IList<String> NO_SLOTS = new DoubleLinkedList<>();
+	private static final double[] NO_VALUES = new double[0];
+
+	// The most points plotAdaptive samples when not told otherwise
+	private static final int DEFAULT_ADAPTIVE_POINTS = 2049;
+
 	// Pass an Environment object and AstNode object as parameters.
 	// return a node which attempts to evaluate the given
 	// AstNode into a single double node. Return an AstNode containing
@@ -20,74 +34,79 @@ public class ExpressionManipulators {
 	// Throw EvaluationError if any of the expressions 
 	// uses an unknown operation
 	public static AstNode toDouble(Environment env, AstNode node) {
+		if (node.isOperation() && node.getName().equals("toDouble")) {
+			checkNumberOfOperands(node.getChildren(), 1);
+			return new AstNode(toDoubleMemoized(env, node.getChildren().get(0)));
+		}
 		return new AstNode(toDoubleHelper(env.getVariables(), node));
 	}
 
+	// Pass an Environment object and an AstNode as parameters.
+	// return a double which attempts to evaluate the given AstNode, using
+	// the remembered numeric value of every defined variable it refers to.
+	// Gives the same result as simplifying the node and then evaluating it
+	// Variables whose value is not remembered yet are evaluated in
+	// dependency order (see DependencyGraph.resolutionOrder), so each
+	// definition only refers to values that are already known, and a long
+	// chain of definitions is resolved in a loop rather than by recursion.
+	// All of them share a single table of values
+	// Throws EvaluationError if any of the expressions contains an
+	// undefined variable or uses an unknown operation
+	private static double toDoubleMemoized(Environment env, AstNode node) {
+		IDictionary<String, AstNode> vars = env.getVariables();
+		DependencyGraph graph = graphOf(env);
+		IDictionary<String, AstNode> values = new ArrayDictionary<>();
+		for (String name : graph.resolutionOrder(node, vars, 
+								other -> graph.getNumericValue(other) != null)) {
+			Double value = graph.getNumericValue(name);
+			if (value == null) {
+				value = toDoubleHelper(values, vars.get(name));
+				graph.setNumericValue(name, value);
+			}
+			values.put(name, new AstNode(value));
+		}
+		return toDoubleHelper(values, node);
+	}
+
+	// Pass an Environment object (which may be null). Returns its
+	// dependency graph or, if it has none, a new graph to remember the
+	// values of variables in for the rest of a single call
+	private static DependencyGraph graphOf(Environment env) {
+		DependencyGraph graph = env == null ? null : env.getDependencyGraph();
+		return graph == null ? new DependencyGraph() : graph;
+	}
+
 	// Pass an IDictionary<> Object and a AstNode object as parameters.
 	// return a double which attempts to evaluate the given AstNode.
+	// The expression is compiled into a StackProgram and run in a single
+	// loop, so evaluating very deep expressions cannot overflow the stack.
 	// Throws EvaluationError if any of the expressions contains an
 	// undefined variable
 	// Throw EvaluationError if any of the expressions uses an 
 	// unknown operation
 	private static double toDoubleHelper(IDictionary<String, 
 									AstNode> variables, AstNode node) {
-		if (node.isNumber()) {
-			return node.getNumericValue();
-		} else if (node.isVariable()) {
-			if (!variables.containsKey(node.getName())) {
-				throw new EvaluationError("Undefined variable: " + 
-												node.getName());
-			}
-			return variables.get(node.getName()).getNumericValue();
-		} else {
-			String name = node.getName();
-			IList<AstNode> children = node.getChildren();
-			if (name.equals("+")) {
-				checkNumberOfOperands(children, 2);
-				return toDoubleHelper(variables, children.get(0)) + 
-								toDoubleHelper(variables, children.get(1));
-			} else if (name.equals("-")) {
-				checkNumberOfOperands(children, 2);
-				return toDoubleHelper(variables, children.get(0)) - 
-								toDoubleHelper(variables, children.get(1));
-			} else if (name.equals("*")) {
-				checkNumberOfOperands(children, 2);
-				return toDoubleHelper(variables, children.get(0)) * 
-								toDoubleHelper(variables, children.get(1));
-			} else if (name.equals("/")) {
-				checkNumberOfOperands(children, 2);
-				return toDoubleHelper(variables, children.get(0)) / 
-								toDoubleHelper(variables, children.get(1));
-			} else if (name.equals("^")) {
-				checkNumberOfOperands(children, 2);
-				return Math.pow(toDoubleHelper(variables, children.get(0)), 
-								toDoubleHelper(variables, children.get(1)));
-			} else if (name.equals("negate")) {
-				checkNumberOfOperands(children, 1);
-				return -1 * toDoubleHelper(variables, children.get(0));
-			} else if (name.equals("sin")) {
-				checkNumberOfOperands(children, 1);
-				return Math.sin(toDoubleHelper(variables, children.get(0)));
-			} else if (name.equals("cos")) {
-				checkNumberOfOperands(children, 1);
-				return Math.cos(toDoubleHelper(variables, children.get(0)));
-			} else if (name.equals("abs")) {
-				checkNumberOfOperands(children, 1);
-				return Math.abs(toDoubleHelper(variables, children.get(0)));
-			} else if (name.equals("exp")) {
-				checkNumberOfOperands(children, 1);
-				return Math.exp(toDoubleHelper(variables, children.get(0)));
-			} else if (name.equals("sqrt")) {
-				checkNumberOfOperands(children, 1);
-				return Math.sqrt(toDoubleHelper(variables, children.get(0)));
-			} else if (name.equals("toDouble")) {
-				checkNumberOfOperands(children, 1);
-				return toDoubleHelper(variables, 
-						simplifyHelper(variables, node.getChildren().get(0)));
-			} else {
-				throw new EvaluationError("Unknown operation: " + name);
-			}
+		return StackProgram.compile(node, NO_SLOTS, variables).eval(NO_VALUES);
+	}
+
+	// Pass an expression, the name of a variable and two arrays of the same
+	// length. Evaluates the expression once for every value of the variable
+	// in 'xs', storing the result for xs[i] in out[i].
+	// Rather than walking the tree once per value, the expression is
+	// compiled once and each operation is applied to a whole block of
+	// values at a time (see StackProgram.evalBatch).
+	// Throws EvaluationError if the expression contains any variable other
+	// than 'var', or uses an unknown operation
+	// Throws EvaluationError if 'out' is shorter than 'xs'
+	public static void evaluateBatch(AstNode expr, String var, 
+										double[] xs, double[] out) {
+		if (out.length < xs.length) {
+			throw new EvaluationError("output array is shorter than input");
 		}
+		IList<String> slotNames = new DoubleLinkedList<>();
+		slotNames.add(var);
+		StackProgram.compile(expr, slotNames).evalBatch(new double[1], 0, 
+															xs, out);
 	}
 
 	// Takes in the environment object as well as a root node of an expression 
@@ -97,43 +116,230 @@ public class ExpressionManipulators {
 	// incorrect number of operands
 	public static AstNode simplify(Environment env, AstNode node) {
 		IDictionary<String, AstNode> vars = env.getVariables();
-		if (node.isOperation()) {
-			String operation = node.getName();
-			if (operation.equals("simplify")) {
-				checkNumberOfOperands(node.getChildren(), 1);
-				return simplifyHelper(vars, node.getChildren().get(0));
-			} else {
-				return simplifyHelper(vars, node);
-			}
+		DependencyGraph graph = graphOf(env);
+		if (node.isOperation() && node.getName().equals("simplify")) {
+			checkNumberOfOperands(node.getChildren(), 1);
+			return simplifyCached(vars, env, graph, node.getChildren().get(0));
 		} else {
-			return simplifyHelper(vars, node);
+			return simplifyCached(vars, env, graph, node);
 		}
 	}
 
+	// Takes in the environment object and a collect(...) node. Simplifies
+	// its operand, then collects like terms in every part of the result
+	// that is a polynomial (see PolynomialForm), so for example
+	// 'collect((x + 1)^2 - x^2)' returns '2 * x + 1'. Polynomials are
+	// written in Horner form.
+	// Throw EvaluationError if the collect(...) operation contains the 
+	// incorrect number of operands
+	public static AstNode collect(Environment env, AstNode node) {
+		checkNumberOfOperands(node.getChildren(), 1);
+		AstNode simplified = simplify(env, node.getChildren().get(0));
+		return PolynomialForm.collect(simplified, env.getBudget());
+	}
+
+	// Takes in the current valid variables, the environment (which may be
+	// null, or have no cache), the graph remembering the simplified value
+	// of variables and a node to simplify. Returns the cached simplified
+	// version of the node if it is still current, and simplifies and caches
+	// it otherwise
+	private static AstNode simplifyCached(IDictionary<String, AstNode> vars,
+						Environment env, DependencyGraph graph, AstNode node) {
+		if (env == null || env.getSimplifyCache() == null 
+											|| !node.isOperation()) {
+			return simplifyHelper(vars, env, graph, node);
+		}
+		return env.getSimplifyCache().get(node, 
+							() -> simplifyHelper(vars, env, graph, node));
+	}
+
 	// Takes in the current valid variables and a node relative to simplify
 	// Returns a simplified version of the current node and that's node 
 	// children. Does not modify the current node or that node's children
+	// Works bottom-up in a single pass: children are simplified first, and
+	// a node is folded into a number exactly when all of its simplified
+	// children are numbers and its operation is foldable. Each node is
+	// therefore visited once, instead of re-scanning its subtree at every
+	// level to decide whether it is constant.
+	// Sums and products are flattened again and their leading numbers
+	// folded (see ExpressionFlattener), so substituting a variable defined
+	// as a sum as the first operand of another sum still gives a single
+	// n-ary node, and '1 + 2 + a' still becomes '3 + a'.
+	// Every operation is then rewritten using the identities of the
+	// environment (RuleSet.standard() when there is none), such as 'x * 1'
+	// to 'x', at most RewriteEngine.DEFAULT_MAX_REWRITES times per call.
+	// Rule sets are indexed once and shared, so only the (small) engine
+	// counting a pass's rewrites is created per call.
 	public static AstNode simplifyHelper(IDictionary<String, AstNode> vars, 
 															AstNode node) {
-		if (node.isOperation()) {
-			if (isExpression(vars, node)) {
-				IList<AstNode> newChildren = new DoubleLinkedList<AstNode>();
-				IList<AstNode> oldChildren = node.getChildren();
-				for (int i = 0; i < oldChildren.size(); i++) {
-					newChildren.add(simplifyHelper(vars, oldChildren.get(i)));
+		return simplifyHelper(vars, null, new DependencyGraph(), node);
+	}
+
+	// Same as above, but reuses the simplified value of each variable
+	// remembered by the given graph, and when given an environment, records
+	// every variable it looks up in the environment's cache and charges the
+	// work against its evaluation budget. The environment may be null.
+	// Walks the tree with an explicit stack of frames rather than recursion,
+	// so very deep expressions cannot overflow the thread stack
+	private static AstNode simplifyHelper(IDictionary<String, AstNode> vars,
+						Environment env, DependencyGraph graph, AstNode node) {
+		if (!node.isOperation()) {
+			return simplifyLeaf(vars, env, graph, node);
+		}
+		EvaluationBudget budget = env == null ? null : env.getBudget();
+		RuleSet rules = env == null ? RuleSet.standard() 
+									: env.getSimplifyRules();
+		RewriteEngine rewriter = new RewriteEngine(rules, 
+							RewriteEngine.DEFAULT_MAX_REWRITES, budget);
+		Deque<SimplifyFrame> frames = new ArrayDeque<>();
+		frames.push(new SimplifyFrame(node));
+		while (true) {
+			SimplifyFrame frame = frames.peek();
+			if (budget != null) {
+				budget.visit(frames.size());
+			}
+			AstNode oldChild;
+			AstNode newChild;
+			if (frame.oldChildren.hasNext()) {
+				oldChild = frame.oldChildren.next();
+				if (oldChild.isOperation()) {
+					frames.push(new SimplifyFrame(oldChild));
+					continue;
 				}
-				return new AstNode(node.getName(), newChildren);
+				newChild = simplifyLeaf(vars, env, graph, oldChild);
 			} else {
-				return new AstNode(toDoubleHelper(vars, node));
+				frames.pop();
+				if (budget != null) {
+					budget.visitMany(ExpressionFlattener.flattenedVisits(frame.node));
+				}
+				String name = frame.node.getName();
+				if (frame.allNumbers && isFoldable(name)) {
+					newChild = new AstNode(fold(name, frame.getChildren()));
+				} else if (ExpressionFlattener.isAssociative(name) 
+						&& ExpressionFlattener.canCombine(name, 
+													frame.getChildren())) {
+					newChild = ExpressionFlattener.combine(name, 
+													frame.getChildren());
+				} else {
+					newChild = frame.rebuild();
+				}
+				newChild = rewriter.rewriteNode(newChild);
+				if (budget != null && newChild != frame.node) {
+					budget.allocate(1);
+				}
+				if (frames.isEmpty()) {
+					return newChild;
+				}
+				oldChild = frame.node;
+				frame = frames.peek();
+			}
+			frame.allNumbers = frame.allNumbers && newChild.isNumber();
+			frame.add(oldChild, newChild);
+		}
+	}
+
+	// Takes in the current valid variables, the environment (which may be
+	// null), the graph remembering the simplified value of variables and a
+	// number or variable node. Returns the node itself, or the simplified
+	// value of the variable if it is defined
+	private static AstNode simplifyLeaf(IDictionary<String, AstNode> vars,
+						Environment env, DependencyGraph graph, AstNode node) {
+		if (node.isVariable()) {
+			if (env != null && env.getSimplifyCache() != null) {
+				env.getSimplifyCache().recordDependency(node.getName());
 			}
-		} else if (node.isVariable()) {
 			if (vars.containsKey(node.getName())) {
-				return simplifyHelper(vars, vars.get(node.getName()));
+				return simplifyVariable(vars, env, graph, node);
 			}
 		}
 		return node;
 	}
 
+	// Takes in the current valid variables, the environment (which may be
+	// null), the graph remembering the simplified value of variables and a
+	// defined variable. Returns the simplified value of the variable.
+	// If it is not remembered yet, simplifies it and every variable it
+	// depends on that is not remembered either in dependency order (see
+	// DependencyGraph.resolutionOrder) and remembers them all. Each
+	// definition then only refers to variables that are already simplified,
+	// so a long chain of definitions does not recurse once per link
+	private static AstNode simplifyVariable(IDictionary<String, AstNode> vars,
+						Environment env, DependencyGraph graph, AstNode node) {
+		AstNode value = graph.getSimplifiedValue(node.getName());
+		if (value != null) {
+			return value;
+		}
+		for (String name : graph.resolutionOrder(node, vars, 
+							other -> graph.getSimplifiedValue(other) != null)) {
+			if (graph.getSimplifiedValue(name) == null) {
+				graph.setSimplifiedValue(name, 
+								simplifyCached(vars, env, graph, vars.get(name)));
+			}
+		}
+		return graph.getSimplifiedValue(node.getName());
+	}
+
+	// Returns false for the operations that simplify leaves symbolic even
+	// when every operand is a number, and true otherwise
+	private static boolean isFoldable(String operation) {
+		return !operation.equals("/") && !operation.equals("sin") 
+										&& !operation.equals("cos");
+	}
+
+	// Pass an operation name and its operands, all of which must be number
+	// nodes. Returns the result of applying the operation to them.
+	// Sums and products may have any number of operands past the first two
+	// Throws EvaluationError if the operation is unknown or given the 
+	// wrong number of operands
+	private static double fold(String name, IList<AstNode> operands) {
+		if ((name.equals("+") || name.equals("*")) && operands.size() > 2) {
+			boolean isSum = name.equals("+");
+			Iterator<AstNode> iter = operands.iterator();
+			double result = iter.next().getNumericValue();
+			while (iter.hasNext()) {
+				double value = iter.next().getNumericValue();
+				result = isSum ? result + value : result * value;
+			}
+			return result;
+		} else if (name.equals("+") || name.equals("-") || name.equals("*") 
+							|| name.equals("/") || name.equals("^")) {
+			checkNumberOfOperands(operands, 2);
+			double left = operands.get(0).getNumericValue();
+			double right = operands.get(1).getNumericValue();
+			if (name.equals("+")) {
+				return left + right;
+			} else if (name.equals("-")) {
+				return left - right;
+			} else if (name.equals("*")) {
+				return left * right;
+			} else if (name.equals("/")) {
+				return left / right;
+			} else {
+				return Math.pow(left, right);
+			}
+		} else if (name.equals("negate") || name.equals("sin") 
+						|| name.equals("cos") || name.equals("abs") 
+						|| name.equals("exp") || name.equals("sqrt")) {
+			checkNumberOfOperands(operands, 1);
+			double value = operands.get(0).getNumericValue();
+			if (name.equals("negate")) {
+				return -1 * value;
+			} else if (name.equals("sin")) {
+				return Math.sin(value);
+			} else if (name.equals("cos")) {
+				return Math.cos(value);
+			} else if (name.equals("abs")) {
+				return Math.abs(value);
+			} else if (name.equals("exp")) {
+				return Math.exp(value);
+			} else {
+				return Math.sqrt(value);
+			}
+		} else {
+			throw new EvaluationError("Unknown operation: " + name);
+		}
+	}
+
 	// Pass an Environment Object and an AstNode as parameters. The AstNode
 	// contains data we need to plot an expression. The data contains
 	// expression which is used to plot the image, variable name,
@@ -159,42 +365,151 @@ public class ExpressionManipulators {
 										node.getChildren().get(4));
 
 		String varName = node.getChildren().get(1).getName();
-		for (AstNode child : expression.getChildren()) {
-			if (!isDefinedVariable(env.getVariables(), child, varName)) {
-				throw new EvaluationError
-						("the expression contains an undefined variable");
-			}
-		}
-		if (lowerBound > upperBound) {
-			throw new EvaluationError("varMin > varMax");
-		} else if (env.getVariables().containsKey(varName)) {
-			throw new EvaluationError("'var' was already defined");
-		} else if (step <= 0) {
+		checkPlotInputs(env, expression, varName, lowerBound, upperBound);
+		if (step <= 0) {
 			throw new EvaluationError("step is zero or negative");
 		}
 
+		// The bounds and the number of samples are computed once up front,
+		// and the samples are evaluated in a frame (see compileInFrame)
+		int count = PlotSampler.countSamples(lowerBound, upperBound, step);
+		env.getBudget().allocate(count);
+		double[] xs = new double[count];
+		double[] ys = new double[count];
+		Environment frame = env.pushFrame(varName, new AstNode(lowerBound));
+		if (env.getPlotCache() != null) {
+			// Reuses whatever samples an earlier plot of the same
+			// expression already computed
+			env.getPlotCache().sample(PlotSampler.common(), expression, varName, 
+						() -> compileInFrame(frame, expression), lowerBound, 
+						step, xs, ys, env.getBudget());
+		} else {
+			PlotSampler.common().sample(compileInFrame(frame, expression), 
+						new double[1], 0, lowerBound, step, xs, ys, 
+						env.getBudget());
+		}
+		drawPlot(env, varName, xs, ys, count);
+		return expression;
+	}
+
+	// Pass an Environment Object and an AstNode as parameters. Works like
+	// plot, except that the AstNode holds an error tolerance in place of
+	// the step, optionally followed by the most points to sample.
+	// Starting from a coarse grid, it keeps splitting whichever interval
+	// differs most from a straight line between its ends, until every
+	// interval is within the tolerance or the points run out. Smooth
+	// curves need far fewer samples than with plot, while sharp features
+	// are still sampled finely.
+	// It returns a node which contains simplified version of the
+	// expression(if possible)
+	// throws EvaluationError for the same reasons as plot, and also if
+	// the tolerance is negative or fewer than 3 points are allowed
+	public static AstNode plotAdaptive(Environment env, AstNode node) {
+		IList<AstNode> children = node.getChildren();
+		if (children.size() != 5 && children.size() != 6) {
+			checkNumberOfOperands(children, 5);
+		}
+		AstNode expression = simplify(env, children.get(0));
+		double lowerBound = toDoubleHelper(env.getVariables(), children.get(2));
+		double upperBound = toDoubleHelper(env.getVariables(), children.get(3));
+		double tolerance = toDoubleHelper(env.getVariables(), children.get(4));
+		double maxPoints = children.size() == 6 
+				? toDoubleHelper(env.getVariables(), children.get(5)) 
+				: DEFAULT_ADAPTIVE_POINTS;
+
+		String varName = children.get(1).getName();
+		checkPlotInputs(env, expression, varName, lowerBound, upperBound);
+		if (!(tolerance >= 0)) {
+			throw new EvaluationError("tolerance is negative");
+		} else if (!(maxPoints >= 3)) {
+			throw new EvaluationError("fewer than 3 points to plot");
+		} else if (maxPoints > Integer.MAX_VALUE - 8) {
+			throw new EvaluationError("too many samples to plot");
+		}
+
+		int capacity = (int) maxPoints;
+		env.getBudget().allocate(capacity);
+		Environment frame = env.pushFrame(varName, new AstNode(lowerBound));
+		StackProgram program = compileInFrame(frame, expression);
+		double[] xs = new double[capacity];
+		double[] ys = new double[capacity];
+		AdaptiveSampler sampler = new AdaptiveSampler(program, new double[1], 0,
+														env.getBudget());
+		int count = sampler.sample(lowerBound, upperBound, tolerance, xs, ys);
+		drawPlot(env, varName, xs, ys, count);
+		return expression;
+	}
+
+	// Pass a frame pushed over the environment whose only local is the
+	// variable being plotted, and an already simplified expression.
+	// Compiles the expression with the frame's locals as its slots, so the
+	// variable is read from slot 0 and every other variable is looked up
+	// through the frame. Sampling then only writes each value of the
+	// variable into the slot array, which costs O(expression size) per
+	// sample and allocates nothing, and never binds the variable in the
+	// environment itself, so the global variables (and anything the
+	// simplify cache and dependency graph remember about them) are left
+	// alone. Samples only need to be good to a pixel, so the expression is
+	// compiled in fast-math mode (see ExpressionOptimizer)
+	private static StackProgram compileInFrame(Environment frame, 
+												AstNode expression) {
+		return StackProgram.compile(expression, frame.getLocalNames(), 
+									frame.getVariables(), true);
+	}
+
+	// Pass an Environment Object, the name of the plotted variable and
+	// the first 'count' samples, sorted by x, as parameters.
+	// Thins the samples out to a few per pixel column of the chart's data
+	// area before drawing them, so drawing costs the same however many
+	// samples there are, then draws them
+	private static void drawPlot(Environment env, String varName, double[] xs, 
+									double[] ys, int count) {
+		ImageDrawer drawer = env.getImageDrawer();
+		double yMin = Double.POSITIVE_INFINITY;
+		double yMax = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < count; i++) {
+			if (Math.abs(ys[i]) < Double.POSITIVE_INFINITY) {
+				yMin = Math.min(yMin, ys[i]);
+				yMax = Math.max(yMax, ys[i]);
+			}
+		}
+		if (yMin > yMax) {
+			// Nothing finite to plot, so any range gives the same layout
+			yMin = 0;
+			yMax = 1;
+		}
+		int kept = count;
+		if (count > 0) {
+			int columns = drawer.getPlotColumns("plot", varName, "output", 
+									xs[0], xs[count - 1], yMin, yMax);
+			kept = PlotDecimator.decimate(xs, ys, count, columns);
+		}
 		IList<Double> xValues = new DoubleLinkedList<>();
 		IList<Double> yValues = new DoubleLinkedList<>();
-		for (int i = 0; i <= (getNumericValue(env, node, 3) - 
-							getNumericValue(env, node, 2)) / step; i++) {
-			double increments = i * step;
-			xValues.add(lowerBound + increments);
-			env.getVariables().put(varName, new AstNode(xValues.get(i)));
-			yValues.add(toDoubleHelper(env.getVariables(), expression));
+		for (int i = 0; i < kept; i++) {
+			xValues.add(xs[i]);
+			yValues.add(ys[i]);
 		}
-		// remove the temporary value added during the loop
-		env.getVariables().remove(varName);
-		env.getImageDrawer().drawScatterPlot("plot", varName, 
-											"output", xValues, yValues);
-		return expression;
+		drawer.drawScatterPlot("plot", varName, "output", xValues, yValues);
 	}
 
-	// Pass an Environment Object, an AstNode and an integer as parameters.
-	// Use integer to determine the index of the object we want to get.
-	// Return a double based on the index of the node's children
-	private static double getNumericValue(Environment env, 
-											AstNode node, int index) {
-		return toDouble(env, node.getChildren().get(index)).getNumericValue();
+	// Pass an Environment Object, an already simplified expression, the
+	// name of the variable to plot over and its bounds as parameters.
+	// throws EvaluationError if the expression contains an undefined
+	// variable, if the minimum is larger than the maximum, or if the
+	// variable is already defined
+	private static void checkPlotInputs(Environment env, AstNode expression, 
+										String varName, double lowerBound, 
+										double upperBound) {
+		if (containsOtherVariable(expression, varName)) {
+			throw new EvaluationError
+					("the expression contains an undefined variable");
+		}
+		if (lowerBound > upperBound) {
+			throw new EvaluationError("varMin > varMax");
+		} else if (env.getVariables().containsKey(varName)) {
+			throw new EvaluationError("'var' was already defined");
+		}
 	}
 
 	// Pass a IList<> object and an integer as parameters.
@@ -209,69 +524,35 @@ public class ExpressionManipulators {
 		}
 	}
 
-	// Pass an IDictionary<> object and an AstNode as parameters.
-	// Return true if the given node is an expression (contains at least on
-	// undefined variable). Otherwise false
-	private static boolean isExpression(IDictionary<String, AstNode> 
-												variables, AstNode node) {
-		if (node.isOperation()) {
-			String operationName = node.getName();
-			if (operationName.equals("/") || operationName.equals("sin") 
-											|| operationName.equals("cos")) {
-				return true;
-			} else {
-				for (AstNode child : node.getChildren()) {
-					if (isExpression(variables, child)) {
-						return true;
-					}
+	// Pass an already simplified AstNode and a String as parameters.
+	// Simplification has substituted every defined variable, so any
+	// variable left in the node other than the given one is undefined.
+	// Return true if such a variable exists. Otherwise false.
+	private static boolean containsOtherVariable(AstNode node, String varName) {
+		Deque<AstNode> pending = new ArrayDeque<>();
+		pending.push(node);
+		while (!pending.isEmpty()) {
+			AstNode current = pending.pop();
+			if (current.isOperation()) {
+				for (AstNode child : current.getChildren()) {
+					pending.push(child);
 				}
-				return false;
-			}
-		} else if (node.isVariable()) {
-			if (isConstant(variables, node)) {
-				return false;
-			} else {
-				return true;
-			}
-		} else {
-			return false;
-		}
-	}
-
-	// Returns true if a variable evaluates to a constant
-	// Returns false if the variable evaluates to an 
-	// expression or is not a variable
-	private static boolean isConstant(IDictionary<String, AstNode> 
-										vars, AstNode var) {
-		if (var.isVariable() && vars.containsKey(var.getName())) {
-			AstNode value = vars.get(var.getName());
-			if (value.isNumber()) {
+			} else if (current.isVariable() 
+								&& !current.getName().equals(varName)) {
 				return true;
-			} else {
-				return !isExpression(vars, value);
 			}
 		}
 		return false;
 	}
 
-	// Pass an Environment object, an AstNode and a String as parameters.
-	// return false if the given node is not a defined variable and its
-	// name does not match the given String. Otherwise return true.
-	private static boolean isDefinedVariable(IDictionary<String, AstNode> 
-									variables, AstNode node, String varName) {
-		if (node.isOperation()) {
-			boolean result = true;
-			for (AstNode child : node.getChildren()) {
-				result = isDefinedVariable(variables, child, varName);
-				if (!result) {
-					return result;
-				}
-			}
-		} else if (node.isVariable() && !node.getName().equals(varName)) {
-			if (!isConstant(variables, node)) {
-				return variables.containsKey(node.getName());
-			}
+	// A node whose children are being simplified, which also tracks
+	// whether every simplified child so far is a number
+	private static class SimplifyFrame extends TraversalFrame {
+		public boolean allNumbers;
+
+		public SimplifyFrame(AstNode node) {
+			super(node);
+			this.allNumbers = true;
 		}
-		return true;
 	}
 }
@@ -0,0 +1,241 @@
+package calculator.ast;
+
+import datastructures.concrete.DoubleLinkedList;
+import datastructures.interfaces.IList;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Rewrites an expression into an equivalent one that is cheaper to evaluate
+ * many times over, before it is compiled.
+ *
+ * Two things happen in a single bottom-up pass:
+ *
+ * - Structurally equal subexpressions are merged into a single shared node,
+ *   so 'sin(x)^2 + sin(x)*cos(x)' refers to the same 'sin(x)' node twice.
+ *   A compiler can then tell that it only needs to evaluate it once.
+ * - Operations are strength-reduced where the estimated cost of the
+ *   replacement is lower. By default only rewrites that give exactly the
+ *   same result are made, such as 'a^1' to 'a' and 'a^0' to 1.
+ *
+ * In fast-math mode, rewrites that may round differently in the last few
+ * bits are made as well: 'a^n' for a small whole number 'n' becomes a chain
+ * of multiplications by repeated squaring (with the squares shared), and
+ * 'a/c + b/c' becomes '(a + b)/c'. That is only meant for callers such as
+ * plotting, where nobody can see the difference.
+ *
+ * Like every other pass, the tree is walked with an explicit stack, so very
+ * deep expressions are safe to optimize.
+ */
+public class ExpressionOptimizer {
+    // The largest exponent expanded into multiplications. Each multiply can
+    // add half an ulp of error, so this keeps the result within a few ulps
+    // of what Math.pow would return.
+    private static final int MAX_EXPANDED_EXPONENT = 32;
+
+    // Rough relative costs of evaluating each operation once
+    private static final int CHEAP_COST = 1;
+    private static final int DIVIDE_COST = 4;
+    private static final int SQRT_COST = 6;
+    private static final int EXP_COST = 20;
+    private static final int TRIG_COST = 25;
+    private static final int POWER_COST = 40;
+
+    private final Map<AstNode, AstNode> canonical;
+    private final boolean fastMath;
+
+    private ExpressionOptimizer(boolean fastMath) {
+        this.canonical = new HashMap<>();
+        this.fastMath = fastMath;
+    }
+
+    /**
+     * Returns an optimized version of the given expression, which evaluates
+     * to exactly the same result. The expression itself is not modified.
+     */
+    public static AstNode optimize(AstNode expression) {
+        return optimize(expression, false);
+    }
+
+    /**
+     * Returns an optimized version of the given expression, which in
+     * fast-math mode may round differently in the last few bits. The
+     * expression itself is not modified.
+     */
+    public static AstNode optimize(AstNode expression, boolean fastMath) {
+        return new ExpressionOptimizer(fastMath).run(expression);
+    }
+
+    private AstNode run(AstNode root) {
+        if (!root.isOperation()) {
+            return this.intern(root);
+        }
+        Deque<TraversalFrame> pending = new ArrayDeque<>();
+        pending.push(new TraversalFrame(root));
+        AstNode result = null;
+        while (!pending.isEmpty()) {
+            TraversalFrame frame = pending.peek();
+            if (frame.oldChildren.hasNext()) {
+                AstNode child = frame.oldChildren.next();
+                if (child.isOperation()) {
+                    pending.push(new TraversalFrame(child));
+                } else {
+                    frame.add(child, this.intern(child));
+                }
+                continue;
+            }
+            pending.pop();
+            AstNode optimized = this.intern(this.rewrite(this.intern(frame.rebuild())));
+            if (pending.isEmpty()) {
+                result = optimized;
+            } else {
+                TraversalFrame parent = pending.peek();
+                parent.add(frame.node, optimized);
+            }
+        }
+        return result;
+    }
+
+    // Returns the shared node equal to the given one, whose children must
+    // already be shared nodes
+    private AstNode intern(AstNode node) {
+        AstNode existing = this.canonical.get(node);
+        if (existing != null) {
+            return existing;
+        }
+        this.canonical.put(node, node);
+        return node;
+    }
+
+    // Returns the cheapest of the rewrites that apply to the given node
+    private AstNode rewrite(AstNode node) {
+        String name = node.getName();
+        IList<AstNode> children = node.getChildren();
+        if (children.size() != 2) {
+            return node;
+        }
+        AstNode left = children.get(0);
+        AstNode right = children.get(1);
+        if (name.equals("^")) {
+            return cheaper(node, this.expandPower(left, right), left);
+        } else if (this.fastMath && (name.equals("+") || name.equals("-"))
+                && isDivision(left) && isDivision(right)) {
+            AstNode[] operands = {
+                left.getChildren().get(0), right.getChildren().get(0), left.getChildren().get(1)
+            };
+            return cheaper(node, this.combineFractions(name, left, right), operands);
+        }
+        return node;
+    }
+
+    // Returns 'base' raised to 'exponent' by repeated squaring, or null if
+    // the exponent is not a small enough whole number. Outside fast-math
+    // mode, only exponents for which Math.pow is exact are expanded
+    private AstNode expandPower(AstNode base, AstNode exponent) {
+        if (!exponent.isNumber()) {
+            return null;
+        }
+        double value = exponent.getNumericValue();
+        if (value != Math.rint(value) || value < 0 || value > MAX_EXPANDED_EXPONENT) {
+            return null;
+        }
+        int n = (int) value;
+        if (n == 0) {
+            // Math.pow returns exactly 1 for a zero exponent, even for NaN
+            return this.intern(new AstNode(1));
+        } else if (n == 1) {
+            // ...and exactly its base for an exponent of one
+            return base;
+        } else if (!this.fastMath) {
+            return null;
+        }
+        AstNode result = null;
+        AstNode square = base;
+        while (true) {
+            if ((n & 1) != 0) {
+                result = result == null ? square : this.intern(binary("*", result, square));
+            }
+            n >>>= 1;
+            if (n == 0) {
+                return result;
+            }
+            square = this.intern(binary("*", square, square));
+        }
+    }
+
+    // Returns '(a + b) / c' for 'a/c + b/c' (or likewise for '-'), or null
+    // if both divisions are not by the same thing
+    private AstNode combineFractions(String name, AstNode left, AstNode right) {
+        AstNode denominator = left.getChildren().get(1);
+        if (denominator != right.getChildren().get(1)) {
+            return null;
+        }
+        AstNode numerator = this.intern(binary(name, left.getChildren().get(0),
+                right.getChildren().get(0)));
+        return this.intern(binary("/", numerator, denominator));
+    }
+
+    private static boolean isDivision(AstNode node) {
+        return node.isOperation() && node.getName().equals("/") && node.getChildren().size() == 2;
+    }
+
+    private static AstNode binary(String name, AstNode left, AstNode right) {
+        IList<AstNode> children = new DoubleLinkedList<>();
+        children.add(left);
+        children.add(right);
+        return new AstNode(name, children);
+    }
+
+    // Returns whichever of the original node and its rewrite costs less,
+    // where both compute their result from the given operands
+    private static AstNode cheaper(AstNode original, AstNode rewritten, AstNode... operands) {
+        if (rewritten == null || cost(rewritten, operands) >= cost(original, operands)) {
+            return original;
+        }
+        return rewritten;
+    }
+
+    // Returns the estimated cost of evaluating the given expression once,
+    // given that the operands have already been evaluated. Nodes that are
+    // shared are only counted once.
+    private static int cost(AstNode root, AstNode... operands) {
+        Map<AstNode, Boolean> seen = new IdentityHashMap<>();
+        for (AstNode operand : operands) {
+            seen.put(operand, true);
+        }
+        Deque<AstNode> pending = new ArrayDeque<>();
+        pending.push(root);
+        int total = 0;
+        while (!pending.isEmpty()) {
+            AstNode node = pending.pop();
+            if (!node.isOperation() || seen.put(node, true) != null) {
+                continue;
+            }
+            total += operationCost(node.getName());
+            for (AstNode child : node.getChildren()) {
+                pending.push(child);
+            }
+        }
+        return total;
+    }
+
+    private static int operationCost(String name) {
+        if (name.equals("/")) {
+            return DIVIDE_COST;
+        } else if (name.equals("^")) {
+            return POWER_COST;
+        } else if (name.equals("sqrt")) {
+            return SQRT_COST;
+        } else if (name.equals("exp")) {
+            return EXP_COST;
+        } else if (name.equals("sin") || name.equals("cos")) {
+            return TRIG_COST;
+        } else {
+            return CHEAP_COST;
+        }
+    }
+}
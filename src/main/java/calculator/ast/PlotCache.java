@@ -0,0 +1,282 @@
+package calculator.ast;
+
+import calculator.interpreter.EvaluationBudget;
+import datastructures.concrete.DoubleLinkedList;
+import datastructures.interfaces.IList;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the samples computed by earlier plots, so plotting the same
+ * expression again does not need to evaluate it again.
+ *
+ * Entries are keyed on the simplified expression, the name of the variable
+ * being plotted, and the step between samples. Simplification substitutes
+ * the value of every other variable the expression uses, so two plots with
+ * equal keys are of the same function, whatever the variables were called.
+ *
+ * Each entry holds a contiguous run of samples on the grid 'origin + i *
+ * step'. A plot whose range lies on the same grid reuses every sample the
+ * entry already has, and only evaluates the ones it is missing, which are
+ * then added to the entry. A plot that does not line up with the grid
+ * replaces the entry instead.
+ *
+ * The cache holds a bounded number of samples in total, and evicts the
+ * least recently used entries to stay within it.
+ */
+public class PlotCache {
+    public static final int DEFAULT_MAX_SAMPLES = 1 << 20;
+
+    private final Map<Key, Series> entries;
+    private final int maxSamples;
+    private long cachedSamples;
+    private long hitCount;
+    private long missCount;
+
+    public PlotCache() {
+        this(DEFAULT_MAX_SAMPLES);
+    }
+
+    public PlotCache(int maxSamples) {
+        if (maxSamples <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.maxSamples = maxSamples;
+        this.cachedSamples = 0;
+        this.hitCount = 0;
+        this.missCount = 0;
+    }
+
+    /**
+     * Returns the number of plots answered entirely from the cache.
+     */
+    public long getHitCount() {
+        return this.hitCount;
+    }
+
+    /**
+     * Returns the number of plots that had to evaluate at least one sample.
+     */
+    public long getMissCount() {
+        return this.missCount;
+    }
+
+    /**
+     * Returns the number of samples currently held.
+     */
+    public long getCachedSamples() {
+        return this.cachedSamples;
+    }
+
+    /**
+     * Fills 'xs' and 'ys' with 'xs.length' samples of 'expression', starting
+     * at 'min' and taken 'step' apart, as 'PlotSampler.sample' would (though
+     * reused x values may differ from freshly computed ones in the last
+     * bit). Only the samples not already cached are evaluated, using
+     * 'sampler'.
+     *
+     * The expression must already be simplified, and must not contain any
+     * variables other than 'varName'.
+     */
+    public void sample(PlotSampler sampler, AstNode expression, String varName,
+                       double min, double step, double[] xs, double[] ys,
+                       EvaluationBudget budget) {
+        this.sample(sampler, expression, varName, null, min, step, xs, ys, budget);
+    }
+
+    /**
+     * Samples as above, but compiles the expression (if any sample is
+     * missing) with 'compiler', whose program must read 'varName' from
+     * slot 0. If 'compiler' is null, the expression is compiled with
+     * 'varName' as its only slot.
+     */
+    public void sample(PlotSampler sampler, AstNode expression, String varName,
+                       Supplier<StackProgram> compiler, double min, double step,
+                       double[] xs, double[] ys, EvaluationBudget budget) {
+        int count = xs.length;
+        Key key = new Key(expression, varName, step);
+        Series series = this.entries.get(key);
+
+        long first = series == null ? 0 : series.indexOf(min);
+        if (series == null || first == Series.NOT_ON_GRID
+                || first > series.end || first + count < series.start
+                || Math.max(first + count, series.end) - Math.min(first, series.start) > this.maxSamples) {
+            // Nothing can be reused (or the result would be too big to keep),
+            // so start over with a grid based here
+            this.missCount += 1;
+            this.sampleFresh(sampler, key, compiler, min, xs, ys, budget);
+            return;
+        }
+
+        long last = first + count;
+        if (first < series.start || last > series.end) {
+            this.missCount += 1;
+            this.cachedSamples -= series.size();
+            series = this.extend(sampler, key, compiler, series, first, last, budget);
+            this.cachedSamples += series.size();
+            this.entries.put(key, series);
+            this.evict(key);
+        } else {
+            this.hitCount += 1;
+        }
+        int offset = (int) (first - series.start);
+        System.arraycopy(series.xs, offset, xs, 0, count);
+        System.arraycopy(series.ys, offset, ys, 0, count);
+    }
+
+    private void sampleFresh(PlotSampler sampler, Key key, Supplier<StackProgram> compiler,
+                             double min, double[] xs, double[] ys, EvaluationBudget budget) {
+        this.removeEntry(key);
+        sampler.sample(key.compile(compiler), new double[1], 0, min, key.step, xs, ys, budget);
+        if (xs.length <= this.maxSamples) {
+            this.entries.put(key, new Series(min, key.step, 0, xs.clone(), ys.clone()));
+            this.cachedSamples += xs.length;
+            this.evict(key);
+        }
+    }
+
+    // Returns a copy of 'series' that also covers the grid indices from
+    // 'first' up to (but not including) 'last', evaluating only the new ones
+    private Series extend(PlotSampler sampler, Key key, Supplier<StackProgram> compiler,
+                          Series series, long first, long last, EvaluationBudget budget) {
+        long start = Math.min(first, series.start);
+        long end = Math.max(last, series.end);
+        int size = (int) (end - start);
+        budget.allocate(size);
+        double[] xs = new double[size];
+        double[] ys = new double[size];
+        int existing = (int) (series.start - start);
+        System.arraycopy(series.xs, 0, xs, existing, series.size());
+        System.arraycopy(series.ys, 0, ys, existing, series.size());
+
+        StackProgram program = key.compile(compiler);
+        if (existing > 0) {
+            this.sampleInto(sampler, program, series.xAt(start), series.step, existing, xs, ys, 0, budget);
+        }
+        int after = (int) (end - series.end);
+        if (after > 0) {
+            this.sampleInto(sampler, program, series.xAt(series.end), series.step, after,
+                    xs, ys, size - after, budget);
+        }
+        return new Series(series.origin, series.step, start, xs, ys);
+    }
+
+    private void sampleInto(PlotSampler sampler, StackProgram program, double min, double step,
+                            int count, double[] xs, double[] ys, int offset, EvaluationBudget budget) {
+        double[] newXs = new double[count];
+        double[] newYs = new double[count];
+        sampler.sample(program, new double[1], 0, min, step, newXs, newYs, budget);
+        System.arraycopy(newXs, 0, xs, offset, count);
+        System.arraycopy(newYs, 0, ys, offset, count);
+    }
+
+    private void removeEntry(Key key) {
+        Series removed = this.entries.remove(key);
+        if (removed != null) {
+            this.cachedSamples -= removed.size();
+        }
+    }
+
+    // Evicts the least recently used entries other than 'keep' until the
+    // cache is back within its limit
+    private void evict(Key keep) {
+        Iterator<Map.Entry<Key, Series>> iter = this.entries.entrySet().iterator();
+        while (this.cachedSamples > this.maxSamples && iter.hasNext()) {
+            Map.Entry<Key, Series> eldest = iter.next();
+            if (!eldest.getKey().equals(keep)) {
+                this.cachedSamples -= eldest.getValue().size();
+                iter.remove();
+            }
+        }
+        if (this.cachedSamples > this.maxSamples) {
+            this.removeEntry(keep);
+        }
+    }
+
+    private static final class Key {
+        public final AstNode expression;
+        public final String varName;
+        public final double step;
+
+        public Key(AstNode expression, String varName, double step) {
+            this.expression = expression;
+            this.varName = varName;
+            this.step = step;
+        }
+
+        // Compiles the expression with 'compiler', or with the variable as
+        // its only slot if there is none. The compiler is not part of the
+        // key (nor kept by it), since any program for the expression will do
+        public StackProgram compile(Supplier<StackProgram> compiler) {
+            if (compiler != null) {
+                return compiler.get();
+            }
+            IList<String> slotNames = new DoubleLinkedList<>();
+            slotNames.add(this.varName);
+            return StackProgram.compile(this.expression, slotNames, true);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) other;
+            return Double.compare(this.step, that.step) == 0
+                    && this.varName.equals(that.varName)
+                    && this.expression.equals(that.expression);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = this.expression.hashCode();
+            result = 31 * result + this.varName.hashCode();
+            return 31 * result + Double.hashCode(this.step);
+        }
+    }
+
+    /**
+     * The samples at grid indices 'start' (inclusive) to 'end' (exclusive),
+     * where the sample at index i is taken at 'origin + i * step'.
+     */
+    private static final class Series {
+        public static final long NOT_ON_GRID = Long.MIN_VALUE;
+
+        public final double origin;
+        public final double step;
+        public final long start;
+        public final long end;
+        public final double[] xs;
+        public final double[] ys;
+
+        public Series(double origin, double step, long start, double[] xs, double[] ys) {
+            this.origin = origin;
+            this.step = step;
+            this.start = start;
+            this.end = start + xs.length;
+            this.xs = xs;
+            this.ys = ys;
+        }
+
+        public int size() {
+            return this.xs.length;
+        }
+
+        public double xAt(long index) {
+            return this.origin + index * this.step;
+        }
+
+        // Returns the grid index that 'x' falls exactly on, or NOT_ON_GRID
+        public long indexOf(double x) {
+            double index = Math.rint((x - this.origin) / this.step);
+            if (!(Math.abs(index) < (1L << 52)) || this.xAt((long) index) != x) {
+                return NOT_ON_GRID;
+            }
+            return (long) index;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package calculator.ast;
+
+/**
+ * Thins out a plot's samples before they are drawn, so that drawing takes
+ * time proportional to the width of the image rather than to the number of
+ * samples.
+ *
+ * The samples are split into one bucket per pixel column of the chart's
+ * data area, by x value. From each bucket only the first and last samples
+ * and the samples with the smallest and largest y values are kept. This
+ * keeps the vertical extent of every column and where the curve enters and
+ * leaves it, but it is not lossless: plots are drawn as one marker per
+ * sample rather than as lines, so samples strictly between a column's
+ * extremes would have drawn markers of their own. The curve therefore
+ * keeps its outline, but a steep stretch may show two markers per column
+ * where it used to show a solid run of them. (Were the samples joined by
+ * lines, the kept ones would cover exactly the same pixels.)
+ *
+ * Decimation runs in a single pass over primitive arrays, compacting the
+ * kept samples in place.
+ */
+public class PlotDecimator {
+    /**
+     * The most samples kept per pixel column.
+     */
+    public static final int SAMPLES_PER_COLUMN = 4;
+
+    private PlotDecimator() {
+        // Only has static methods
+    }
+
+    /**
+     * Reduces the first 'count' samples in 'xs' and 'ys' to at most
+     * 'SAMPLES_PER_COLUMN' samples per column, when they are spread across
+     * 'columns' pixel columns. The kept samples are moved to the front of
+     * the arrays, in their original order, and their number is returned.
+     *
+     * The samples must be sorted by increasing x value, and 'columns' should
+     * be the number of pixel columns they span once drawn (see
+     * ImageDrawer.getPlotColumns). If 'columns' is not positive, or there are
+     * already few enough samples, nothing changes.
+     */
+    public static int decimate(double[] xs, double[] ys, int count, int columns) {
+        if (columns <= 0 || count <= SAMPLES_PER_COLUMN * columns) {
+            return count;
+        }
+        double min = xs[0];
+        double scale = columns / (xs[count - 1] - min);
+        if (!(scale < Double.POSITIVE_INFINITY)) {
+            // Every sample has the same x value, so it is all one column
+            scale = 0;
+        }
+
+        // Every bucket is scanned in full before any of it is written, and
+        // at most as many samples are written as were read, so compacting
+        // never overwrites a sample that has not been read yet
+        int kept = 0;
+        int start = 0;
+        while (start < count) {
+            int column = columnOf(xs[start], min, scale, columns);
+            int end = start + 1;
+            int lowest = -1;
+            int highest = -1;
+            for (int i = start; i < count; i++) {
+                if (i > start && columnOf(xs[i], min, scale, columns) != column) {
+                    break;
+                }
+                end = i + 1;
+                double y = ys[i];
+                if (y == y) {
+                    if (lowest < 0 || y < ys[lowest]) {
+                        lowest = i;
+                    }
+                    if (highest < 0 || y > ys[highest]) {
+                        highest = i;
+                    }
+                }
+            }
+
+            int last = end - 1;
+            int first = lowest < highest ? lowest : highest;
+            int second = lowest < highest ? highest : lowest;
+            kept = copy(xs, ys, start, kept);
+            if (first > start) {
+                kept = copy(xs, ys, first, kept);
+            }
+            if (second > first && second > start) {
+                kept = copy(xs, ys, second, kept);
+            }
+            if (last > start && last > second) {
+                kept = copy(xs, ys, last, kept);
+            }
+            start = end;
+        }
+        return kept;
+    }
+
+    private static int columnOf(double x, double min, double scale, int columns) {
+        int column = (int) ((x - min) * scale);
+        return column < columns ? column : columns - 1;
+    }
+
+    private static int copy(double[] xs, double[] ys, int from, int to) {
+        xs[to] = xs[from];
+        ys[to] = ys[from];
+        return to + 1;
+    }
+}
@@ -0,0 +1,139 @@
+package calculator.ast;
+
+import calculator.errors.BudgetExceededError;
+import calculator.errors.EvaluationError;
+import calculator.interpreter.EvaluationBudget;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Samples a compiled expression over an evenly spaced range of values, split
+ * into chunks that are evaluated in parallel on a ForkJoinPool.
+ *
+ * Every chunk binds the loop variable through its own private slot array and
+ * scratch columns, and writes into its own range of the preallocated output
+ * arrays, so chunks share no mutable state. Each sample is computed the same
+ * way no matter which thread handles it, so the output is identical to
+ * sampling sequentially.
+ *
+ * The evaluation budget is not thread-safe, so it is only consulted on the
+ * calling thread, between waves of chunks.
+ */
+public class PlotSampler {
+    /**
+     * The number of samples a single task evaluates without splitting further.
+     */
+    public static final int CHUNK_SIZE = 8 * StackProgram.BATCH_BLOCK_SIZE;
+
+    // The largest array the JVM will reliably allocate
+    private static final int MAX_SAMPLES = Integer.MAX_VALUE - 8;
+
+    // Charge the budget and check the clock after this many chunks per thread
+    private static final int CHUNKS_PER_WAVE = 4;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a sampler that runs its tasks on the given pool.
+     */
+    public PlotSampler(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns a sampler that uses the common ForkJoinPool.
+     */
+    public static PlotSampler common() {
+        return new PlotSampler(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns the number of samples from 'min' to 'max' (both inclusive)
+     * taken 'step' apart.
+     *
+     * @throws EvaluationError  if there would be too many samples to store
+     */
+    public static int countSamples(double min, double max, double step) {
+        double intervals = Math.floor((max - min) / step);
+        if (!(intervals < MAX_SAMPLES)) {
+            throw new EvaluationError("too many samples to plot");
+        }
+        return (int) intervals + 1;
+    }
+
+    /**
+     * Sets xs[i] to 'min + i * step', and ys[i] to the value of the program
+     * when the slot at index 'slot' holds xs[i], for every index of 'xs'.
+     * Every other slot keeps its value from 'slots'.
+     *
+     * @throws BudgetExceededError  if the budget runs out part way through,
+     *                              in which case only some samples are filled
+     */
+    public void sample(StackProgram program, double[] slots, int slot, double min, double step,
+                       double[] xs, double[] ys, EvaluationBudget budget) {
+        int count = xs.length;
+        if (count <= CHUNK_SIZE) {
+            // Not worth handing off to another thread
+            budget.visitMany(count);
+            budget.checkTime();
+            new SampleTask(program, slots, slot, min, step, xs, ys, 0, count).compute();
+            return;
+        }
+        int wave = CHUNK_SIZE * CHUNKS_PER_WAVE * this.pool.getParallelism();
+        int start = 0;
+        while (start < count) {
+            int end = (int) Math.min(count, (long) start + wave);
+            budget.visitMany(end - start);
+            budget.checkTime();
+            this.pool.invoke(new SampleTask(program, slots, slot, min, step, xs, ys, start, end));
+            start = end;
+        }
+    }
+
+    private static class SampleTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final StackProgram program;
+        private final double[] slots;
+        private final int slot;
+        private final double min;
+        private final double step;
+        private final double[] xs;
+        private final double[] ys;
+        private final int from;
+        private final int to;
+
+        public SampleTask(StackProgram program, double[] slots, int slot, double min, double step,
+                          double[] xs, double[] ys, int from, int to) {
+            this.program = program;
+            this.slots = slots;
+            this.slot = slot;
+            this.min = min;
+            this.step = step;
+            this.xs = xs;
+            this.ys = ys;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > CHUNK_SIZE) {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(
+                        new SampleTask(this.program, this.slots, this.slot, this.min, this.step,
+                                this.xs, this.ys, this.from, middle),
+                        new SampleTask(this.program, this.slots, this.slot, this.min, this.step,
+                                this.xs, this.ys, middle, this.to));
+                return;
+            }
+            for (int i = this.from; i < this.to; i++) {
+                this.xs[i] = this.min + i * this.step;
+            }
+            double[] privateSlots = this.slots.clone();
+            this.program.evalBatch(privateSlots, this.slot, this.xs, this.from, this.to,
+                    this.ys, this.program.newBatchColumns());
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package calculator.ast;
+
+import calculator.interpreter.EvaluationBudget;
+import datastructures.concrete.DoubleLinkedList;
+import datastructures.interfaces.IList;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects like terms in an expression.
+ *
+ * Every subexpression built only out of numbers, variables, '+', '-', '*',
+ * 'negate', and '^' with a whole number exponent is a polynomial. Any other
+ * subexpression, such as 'sin(x)', is treated as if it were one more
+ * variable. Each polynomial is converted into a sparse canonical form: a
+ * hash map from the vector of exponents of each monomial to its
+ * coefficient. Sums and products are computed directly on that form, so
+ * like terms combine as they appear.
+ *
+ * The result is turned back into an AstNode in Horner form, which needs
+ * the fewest multiplications to evaluate.
+ *
+ * Polynomials that would grow too large, or use too many variables, are
+ * left alone rather than expanded.
+ */
+public class PolynomialForm {
+    // Exponent vectors hold one entry per variable, so this bounds their size
+    private static final int MAX_VARIABLES = 64;
+
+    // The largest exponent expanded by repeated multiplication
+    private static final int MAX_EXPONENT = 1024;
+
+    // The most terms a single polynomial may have
+    private static final int MAX_TERMS = 1 << 16;
+
+    // Every variable, and every subexpression standing in for one
+    private final Map<AstNode, Integer> variableIndices;
+    private final List<AstNode> variables;
+    private final EvaluationBudget budget;
+
+    private PolynomialForm(EvaluationBudget budget) {
+        this.variableIndices = new HashMap<>();
+        this.variables = new ArrayList<>();
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the given expression with like terms collected, written in
+     * Horner form. The expression itself is not modified.
+     *
+     * Each multiplication of two polynomials is charged against the budget
+     * as one visit per pair of terms multiplied.
+     */
+    public static AstNode collect(AstNode expression, EvaluationBudget budget) {
+        return new PolynomialForm(budget).run(expression);
+    }
+
+    private AstNode run(AstNode root) {
+        if (!root.isOperation()) {
+            return root;
+        }
+        // Each node ends up as a polynomial, with operations that are not
+        // polynomial standing in as variables. Only if there are too many of
+        // those does a node have no polynomial, and just its rewritten node.
+        Deque<Frame> pending = new ArrayDeque<>();
+        pending.push(new Frame(root));
+        while (true) {
+            Frame frame = pending.peek();
+            if (frame.oldChildren.hasNext()) {
+                AstNode child = frame.oldChildren.next();
+                if (child.isOperation()) {
+                    pending.push(new Frame(child));
+                } else {
+                    frame.addChild(child, child, this.leaf(child));
+                }
+                continue;
+            }
+            pending.pop();
+            Polynomial polynomial = frame.allPolynomial ? this.combine(frame) : null;
+            AstNode node = frame.node;
+            if (polynomial == null) {
+                node = this.rebuild(frame);
+                polynomial = this.variable(node);
+            }
+            if (pending.isEmpty()) {
+                return polynomial == null ? node : this.toHorner(polynomial);
+            }
+            pending.peek().addChild(frame.node, node, polynomial);
+        }
+    }
+
+    // Returns the polynomial for a number or variable
+    private Polynomial leaf(AstNode node) {
+        if (node.isNumber()) {
+            return Polynomial.constant(node.getNumericValue());
+        }
+        return this.variable(node);
+    }
+
+    // Returns the polynomial consisting of just the given variable (or
+    // subexpression), or null if there are already too many to track
+    private Polynomial variable(AstNode node) {
+        Integer index = this.variableIndices.get(node);
+        if (index == null) {
+            if (this.variables.size() == MAX_VARIABLES) {
+                return null;
+            }
+            index = this.variables.size();
+            this.variableIndices.put(node, index);
+            this.variables.add(node);
+        }
+        return Polynomial.variable(index);
+    }
+
+    // Returns the polynomial computed by the frame's operation from its
+    // children, or null if it is not a polynomial operation or the result
+    // would be too large
+    private Polynomial combine(Frame frame) {
+        String name = frame.node.getName();
+        List<Polynomial> operands = frame.polynomials;
+        if (operands.size() > 2 && ExpressionFlattener.isAssociative(name)) {
+            // A flattened sum or product
+            Polynomial result = operands.get(0);
+            for (int i = 1; i < operands.size() && result != null; i++) {
+                result = name.equals("+") ? result.plus(operands.get(i), 1)
+                        : this.times(result, operands.get(i));
+            }
+            return result;
+        } else if (operands.size() == 2 && (name.equals("+") || name.equals("-") || name.equals("*"))) {
+            Polynomial left = operands.get(0);
+            Polynomial right = operands.get(1);
+            if (name.equals("+")) {
+                return left.plus(right, 1);
+            } else if (name.equals("-")) {
+                return left.plus(right, -1);
+            } else {
+                return this.times(left, right);
+            }
+        } else if (operands.size() == 1 && name.equals("negate")) {
+            return Polynomial.constant(0).plus(operands.get(0), -1);
+        } else if (operands.size() == 2 && name.equals("^")) {
+            double exponent = operands.get(1).constantValue();
+            if (exponent != Math.rint(exponent) || exponent < 0 || exponent > MAX_EXPONENT) {
+                return null;
+            }
+            return this.power(operands.get(0), (int) exponent);
+        }
+        return null;
+    }
+
+    private Polynomial times(Polynomial left, Polynomial right) {
+        if (left == null || right == null) {
+            return null;
+        }
+        long work = (long) left.size() * right.size();
+        if (work > MAX_TERMS * 16L) {
+            return null;
+        }
+        Polynomial result = left.times(right, this.budget);
+        return result.size() > MAX_TERMS ? null : result;
+    }
+
+    // Raises the base to the given power by repeated squaring
+    private Polynomial power(Polynomial base, int exponent) {
+        Polynomial result = Polynomial.constant(1);
+        Polynomial square = base;
+        while (exponent > 0 && result != null) {
+            if ((exponent & 1) != 0) {
+                result = this.times(result, square);
+            }
+            exponent >>>= 1;
+            if (exponent > 0) {
+                square = this.times(square, square);
+            }
+        }
+        return result;
+    }
+
+    // Returns the frame's node with each child that is a polynomial turned
+    // back into an AstNode. Children that are just a single variable (or a
+    // subexpression standing in for one) are kept as they are.
+    private AstNode rebuild(Frame frame) {
+        IList<AstNode> children = new DoubleLinkedList<>();
+        Iterator<AstNode> nodes = frame.getChildren().iterator();
+        boolean changed = false;
+        for (Polynomial polynomial : frame.polynomials) {
+            AstNode node = nodes.next();
+            AstNode child = polynomial == null || polynomial.isVariable() || !node.isOperation()
+                    ? node : this.toHorner(polynomial);
+            children.add(child);
+            changed = changed || child != node;
+        }
+        return changed ? new AstNode(frame.node.getName(), children) : frame.node;
+    }
+
+    private AstNode toHorner(Polynomial polynomial) {
+        List<Map.Entry<Monomial, Double>> terms = new ArrayList<>(polynomial.terms.entrySet());
+        if (terms.isEmpty()) {
+            return new AstNode(0);
+        }
+        return this.toHorner(terms, 0);
+    }
+
+    // Writes the terms in Horner form, taking the variables in index order
+    // starting from 'variable'. Recurses at most once per variable.
+    private AstNode toHorner(List<Map.Entry<Monomial, Double>> terms, int variable) {
+        while (variable < this.variables.size() && !usesVariable(terms, variable)) {
+            variable += 1;
+        }
+        if (variable == this.variables.size()) {
+            // Only the constant term is left
+            return new AstNode(terms.get(0).getValue());
+        }
+
+        // Group the terms by the power of this variable, highest first
+        TreeMap<Integer, List<Map.Entry<Monomial, Double>>> byPower = new TreeMap<>();
+        for (Map.Entry<Monomial, Double> term : terms) {
+            int power = term.getKey().exponent(variable);
+            List<Map.Entry<Monomial, Double>> group = byPower.get(-power);
+            if (group == null) {
+                group = new ArrayList<>();
+                byPower.put(-power, group);
+            }
+            group.add(term);
+        }
+
+        AstNode x = this.variables.get(variable);
+        AstNode result = null;
+        int previous = 0;
+        for (Map.Entry<Integer, List<Map.Entry<Monomial, Double>>> group : byPower.entrySet()) {
+            int power = -group.getKey();
+            AstNode coefficient = this.toHorner(group.getValue(), variable + 1);
+            if (result == null) {
+                result = coefficient;
+            } else {
+                result = plus(timesPower(result, x, previous - power), coefficient);
+            }
+            previous = power;
+        }
+        return timesPower(result, x, previous);
+    }
+
+    private static boolean usesVariable(List<Map.Entry<Monomial, Double>> terms, int variable) {
+        for (Map.Entry<Monomial, Double> term : terms) {
+            if (term.getKey().exponent(variable) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns 'left * x^power', leaving out factors that are exactly 1
+    private static AstNode timesPower(AstNode left, AstNode x, int power) {
+        if (power == 0) {
+            return left;
+        }
+        AstNode factor = power == 1 ? x : binary("^", x, new AstNode(power));
+        if (left.isNumber() && left.getNumericValue() == 1) {
+            return factor;
+        } else if (left.isNumber() && left.getNumericValue() == -1) {
+            IList<AstNode> children = new DoubleLinkedList<>();
+            children.add(factor);
+            return new AstNode("negate", children);
+        }
+        return binary("*", left, factor);
+    }
+
+    // Returns 'left + right', written as a subtraction if 'right' is a
+    // negative number
+    private static AstNode plus(AstNode left, AstNode right) {
+        if (right.isNumber() && right.getNumericValue() < 0) {
+            return binary("-", left, new AstNode(-right.getNumericValue()));
+        }
+        return binary("+", left, right);
+    }
+
+    private static AstNode binary(String name, AstNode left, AstNode right) {
+        IList<AstNode> children = new DoubleLinkedList<>();
+        children.add(left);
+        children.add(right);
+        return new AstNode(name, children);
+    }
+
+    /**
+     * The exponent of every variable in a single monomial, indexed the same
+     * way as the variables of the PolynomialForm that created it. Vectors of
+     * different lengths are equal if they only differ by trailing zeroes.
+     */
+    private static final class Monomial {
+        public static final Monomial ONE = new Monomial(new int[0]);
+
+        private final int[] exponents;
+        private final int hash;
+
+        public Monomial(int[] exponents) {
+            int length = exponents.length;
+            while (length > 0 && exponents[length - 1] == 0) {
+                length -= 1;
+            }
+            this.exponents = length == exponents.length
+                    ? exponents : Arrays.copyOf(exponents, length);
+            this.hash = Arrays.hashCode(this.exponents);
+        }
+
+        public int exponent(int variable) {
+            return variable < this.exponents.length ? this.exponents[variable] : 0;
+        }
+
+        public Monomial times(Monomial other) {
+            int[] product = new int[Math.max(this.exponents.length, other.exponents.length)];
+            for (int i = 0; i < product.length; i++) {
+                product[i] = this.exponent(i) + other.exponent(i);
+            }
+            return new Monomial(product);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Monomial
+                    && Arrays.equals(this.exponents, ((Monomial) other).exponents);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * A sum of monomials, each with a nonzero coefficient.
+     */
+    private static final class Polynomial {
+        public final Map<Monomial, Double> terms;
+
+        private Polynomial() {
+            this.terms = new HashMap<>();
+        }
+
+        public static Polynomial constant(double value) {
+            Polynomial result = new Polynomial();
+            result.add(Monomial.ONE, value);
+            return result;
+        }
+
+        public static Polynomial variable(int index) {
+            int[] exponents = new int[index + 1];
+            exponents[index] = 1;
+            Polynomial result = new Polynomial();
+            result.add(new Monomial(exponents), 1);
+            return result;
+        }
+
+        public int size() {
+            return this.terms.size();
+        }
+
+        // Returns whether this polynomial is a single variable on its own
+        public boolean isVariable() {
+            if (this.terms.size() != 1) {
+                return false;
+            }
+            Map.Entry<Monomial, Double> term = this.terms.entrySet().iterator().next();
+            int[] exponents = term.getKey().exponents;
+            return term.getValue() == 1 && exponents[exponents.length - 1] == 1
+                    && Arrays.stream(exponents).sum() == 1;
+        }
+
+        // Returns the value of this polynomial if it is a constant, and NaN
+        // otherwise
+        public double constantValue() {
+            if (this.terms.isEmpty()) {
+                return 0;
+            } else if (this.terms.size() == 1 && this.terms.containsKey(Monomial.ONE)) {
+                return this.terms.get(Monomial.ONE);
+            }
+            return Double.NaN;
+        }
+
+        // Returns 'this + sign * other'
+        public Polynomial plus(Polynomial other, double sign) {
+            Polynomial result = new Polynomial();
+            result.terms.putAll(this.terms);
+            for (Map.Entry<Monomial, Double> term : other.terms.entrySet()) {
+                result.add(term.getKey(), sign * term.getValue());
+            }
+            return result;
+        }
+
+        // Charges the budget (which may be null) one row of the product at a
+        // time, so a long multiplication can still be stopped part way
+        public Polynomial times(Polynomial other, EvaluationBudget budget) {
+            Polynomial result = new Polynomial();
+            for (Map.Entry<Monomial, Double> left : this.terms.entrySet()) {
+                if (budget != null) {
+                    budget.visitMany(other.size());
+                }
+                for (Map.Entry<Monomial, Double> right : other.terms.entrySet()) {
+                    result.add(left.getKey().times(right.getKey()),
+                            left.getValue() * right.getValue());
+                }
+            }
+            return result;
+        }
+
+        private void add(Monomial monomial, double coefficient) {
+            Double existing = this.terms.get(monomial);
+            double sum = existing == null ? coefficient : existing + coefficient;
+            if (sum == 0) {
+                this.terms.remove(monomial);
+            } else {
+                this.terms.put(monomial, sum);
+            }
+        }
+    }
+
+    // A node whose children are being turned into polynomials
+    private static class Frame extends TraversalFrame {
+        public final List<Polynomial> polynomials;
+        public boolean allPolynomial;
+
+        public Frame(AstNode node) {
+            super(node);
+            this.polynomials = new ArrayList<>();
+            this.allPolynomial = true;
+        }
+
+        // Records the next child, which is now the given node (rewritten, if
+        // it needed to be), along with its polynomial if it has one
+        public void addChild(AstNode oldChild, AstNode node, Polynomial polynomial) {
+            this.add(oldChild, node);
+            this.polynomials.add(polynomial);
+            this.allPolynomial = this.allPolynomial && polynomial != null;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package calculator.ast;
+
+import calculator.interpreter.EvaluationBudget;
+import datastructures.concrete.DoubleLinkedList;
+import datastructures.interfaces.IList;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies the rules of a RuleSet to expressions until none of them apply
+ * any more, or until a fixed number of rewrites have been made.
+ *
+ * Expressions are rewritten bottom-up, so by the time a node is rewritten
+ * its children are already as rewritten as they will get. Only the rules
+ * the RuleSet's index returns as candidates are tried against each node,
+ * so adding rules does not slow down matching nodes they cannot apply to.
+ *
+ * An engine keeps count of its rewrites, so each pass (such as a single
+ * call to 'simplify') should use a new one. Once the limit is reached, an
+ * engine with a budget reports it there (which throws a
+ * BudgetExceededError), so a partly rewritten result is never mistaken for
+ * a finished one. Without a budget, expressions are returned as they are,
+ * without any further rewriting.
+ */
+public class RewriteEngine {
+    /**
+     * The number of rewrites a pass makes when not told otherwise.
+     */
+    public static final int DEFAULT_MAX_REWRITES = 1 << 16;
+
+    // How deeply rewriting the nodes a replacement creates may nest. Only
+    // rules that keep producing more to rewrite ever get this deep.
+    private static final int MAX_NESTING = 64;
+
+    private final RuleSet rules;
+    private final int maxRewrites;
+    private final EvaluationBudget budget;
+    private int rewriteCount;
+    private int nesting;
+
+    /**
+     * Creates an engine that makes at most 'maxRewrites' rewrites, and
+     * charges every match it attempts against 'budget' (which may be null).
+     * If a rule still applies once the limit is reached, the engine calls
+     * the budget's 'rewritesExhausted'.
+     */
+    public RewriteEngine(RuleSet rules, int maxRewrites, EvaluationBudget budget) {
+        this.rules = rules;
+        this.maxRewrites = maxRewrites;
+        this.budget = budget;
+        this.rewriteCount = 0;
+        this.nesting = 0;
+    }
+
+    public int getRewriteCount() {
+        return this.rewriteCount;
+    }
+
+    /**
+     * Returns the given expression with the rules applied everywhere in it
+     * until none of them apply. The expression itself is not modified.
+     */
+    public AstNode rewrite(AstNode expression) {
+        if (!expression.isOperation()) {
+            return expression;
+        }
+        Deque<TraversalFrame> pending = new ArrayDeque<>();
+        pending.push(new TraversalFrame(expression));
+        while (true) {
+            TraversalFrame frame = pending.peek();
+            if (frame.oldChildren.hasNext()) {
+                AstNode child = frame.oldChildren.next();
+                if (child.isOperation()) {
+                    pending.push(new TraversalFrame(child));
+                } else {
+                    frame.add(child, child);
+                }
+                continue;
+            }
+            pending.pop();
+            AstNode result = this.rewriteNode(rebuild(frame));
+            if (pending.isEmpty()) {
+                return result;
+            }
+            pending.peek().add(frame.node, result);
+        }
+    }
+
+    /**
+     * Applies the rules to the given node until none of them apply, assuming
+     * its children have already been rewritten. The node itself is not
+     * modified.
+     */
+    public AstNode rewriteNode(AstNode node) {
+        AstNode current = node;
+        while (current.isOperation()) {
+            AstNode next = this.applyOnce(current);
+            if (next == null) {
+                break;
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    // Returns the result of applying the highest priority rule that matches
+    // the node, or null if none do (or the limit has been reached). Every
+    // match attempted, including those on operand pairs, binds into the
+    // same map.
+    private AstNode applyOnce(AstNode node) {
+        Map<String, AstNode> bindings = new HashMap<>();
+        for (int id : this.rules.candidates(node)) {
+            RewriteRule rule = this.rules.get(id);
+            bindings.clear();
+            this.charge(1);
+            if (RewriteRule.match(rule.getPattern(), node, bindings)) {
+                if (!this.countRewrite()) {
+                    return null;
+                }
+                return this.instantiate(rule.getReplacement(), bindings);
+            }
+        }
+        if (ExpressionFlattener.isAssociative(node.getName()) && node.getChildren().size() > 2) {
+            return this.applyToOperandPair(node, bindings);
+        }
+        return null;
+    }
+
+    // Applies the highest priority rule of two operands that matches any
+    // two operands of the given flattened sum or product, replacing the
+    // pair with the result. Returns null if none match.
+    private AstNode applyToOperandPair(AstNode node, Map<String, AstNode> bindings) {
+        AstNode[] operands = new AstNode[node.getChildren().size()];
+        Map<Integer, List<Integer>> firsts = new HashMap<>();
+        Map<Integer, List<Integer>> seconds = new HashMap<>();
+        Iterator<AstNode> iter = node.getChildren().iterator();
+        for (int i = 0; i < operands.length; i++) {
+            operands[i] = iter.next();
+            for (int entry : this.rules.operandCandidates(operands[i])) {
+                Map<Integer, List<Integer>> positions = entry % 2 == 0 ? firsts : seconds;
+                List<Integer> indices = positions.get(entry / 2);
+                if (indices == null) {
+                    indices = new ArrayList<>();
+                    positions.put(entry / 2, indices);
+                }
+                indices.add(i);
+            }
+        }
+        this.charge(operands.length);
+
+        // Only rules that some operand might be the first operand of can
+        // apply, so there is no need to look at any others
+        List<Integer> ids = new ArrayList<>(firsts.keySet());
+        Collections.sort(ids);
+        for (int id : ids) {
+            List<Integer> lefts = firsts.get(id);
+            List<Integer> rights = seconds.get(id);
+            if (rights == null) {
+                continue;
+            }
+            RewriteRule rule = this.rules.get(id);
+            if (!rule.getPattern().getName().equals(node.getName())) {
+                continue;
+            }
+            AstNode leftPattern = rule.getPattern().getChildren().get(0);
+            AstNode rightPattern = rule.getPattern().getChildren().get(1);
+            for (int left : lefts) {
+                for (int right : rights) {
+                    if (left == right) {
+                        continue;
+                    }
+                    bindings.clear();
+                    this.charge(1);
+                    if (RewriteRule.match(leftPattern, operands[left], bindings)
+                            && RewriteRule.match(rightPattern, operands[right], bindings)) {
+                        if (!this.countRewrite()) {
+                            return null;
+                        }
+                        AstNode replacement = this.instantiate(rule.getReplacement(), bindings);
+                        return replacePair(node.getName(), operands, left, right, replacement);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    // Counts a rewrite about to be made, before instantiating (which may
+    // rewrite further). Returns false if the limit has already been reached,
+    // once the budget (if any) has been told.
+    private boolean countRewrite() {
+        if (this.rewriteCount >= this.maxRewrites) {
+            if (this.budget != null) {
+                this.budget.rewritesExhausted();
+            }
+            return false;
+        }
+        this.rewriteCount += 1;
+        return true;
+    }
+
+    // Returns the operation with the operands at 'left' and 'right' replaced
+    // by a single 'replacement', where the first of them was
+    private static AstNode replacePair(String name, AstNode[] operands, int left, int right,
+                                       AstNode replacement) {
+        int keep = Math.min(left, right);
+        int drop = Math.max(left, right);
+        IList<AstNode> children = new DoubleLinkedList<>();
+        for (int i = 0; i < operands.length; i++) {
+            if (i == keep) {
+                children.add(replacement);
+            } else if (i != drop) {
+                children.add(operands[i]);
+            }
+        }
+        return ExpressionFlattener.combine(name, children);
+    }
+
+    // Builds the replacement with every metavariable substituted. The
+    // subexpressions bound to metavariables have already been rewritten, so
+    // only the nodes the template itself creates need rewriting.
+    private AstNode instantiate(AstNode template, Map<String, AstNode> bindings) {
+        if (template.isVariable()) {
+            return bindings.get(template.getName());
+        } else if (template.isNumber()) {
+            return template;
+        }
+        // Templates are as small as the rules that hold them, so recursing
+        // over them is safe
+        IList<AstNode> children = new DoubleLinkedList<>();
+        for (AstNode child : template.getChildren()) {
+            children.add(this.instantiate(child, bindings));
+        }
+        String name = template.getName();
+        AstNode created = ExpressionFlattener.isAssociative(name)
+                ? ExpressionFlattener.combine(name, children) : new AstNode(name, children);
+        if (this.nesting == MAX_NESTING) {
+            return created;
+        }
+        this.nesting += 1;
+        AstNode rewritten = this.rewriteNode(created);
+        this.nesting -= 1;
+        return rewritten;
+    }
+
+    // Returns the frame's node with its rewritten children. Sums and
+    // products are kept flat, since a child may have been rewritten into one.
+    private static AstNode rebuild(TraversalFrame frame) {
+        String name = frame.node.getName();
+        if (frame.hasChanged() && ExpressionFlattener.isAssociative(name)) {
+            return ExpressionFlattener.combine(name, frame.getChildren());
+        }
+        return frame.rebuild();
+    }
+
+    private void charge(int count) {
+        if (this.budget != null) {
+            this.budget.visitMany(count);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package calculator.ast;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An algebraic identity that rewrites one shape of expression into another,
+ * such as 'x * 1' into 'x'.
+ *
+ * Every variable in the pattern is a metavariable, which matches any
+ * subexpression at all. A metavariable used more than once, like the 'x' in
+ * 'x - x', only matches if every place it appears holds an equal
+ * subexpression. Numbers and operations in the pattern only match
+ * themselves.
+ *
+ * The replacement is instantiated by substituting whatever each
+ * metavariable matched, so it may only use metavariables from the pattern.
+ */
+public class RewriteRule {
+    private final AstNode pattern;
+    private final AstNode replacement;
+
+    /**
+     * Creates a rule that rewrites anything matching 'pattern' into
+     * 'replacement'.
+     *
+     * @throws IllegalArgumentException  if the pattern is a lone metavariable,
+     *                                   or the replacement uses a variable
+     *                                   that is not in the pattern
+     */
+    public RewriteRule(AstNode pattern, AstNode replacement) {
+        if (pattern.isVariable()) {
+            throw new IllegalArgumentException("Pattern matches everything");
+        }
+        Set<String> metavariables = variablesOf(pattern);
+        for (String name : variablesOf(replacement)) {
+            if (!metavariables.contains(name)) {
+                throw new IllegalArgumentException("Unbound metavariable: " + name);
+            }
+        }
+        this.pattern = pattern;
+        this.replacement = replacement;
+    }
+
+    public AstNode getPattern() {
+        return this.pattern;
+    }
+
+    public AstNode getReplacement() {
+        return this.replacement;
+    }
+
+    /**
+     * Returns whether 'term' matches the pattern 'pattern' (part of some
+     * rule's pattern), adding what each new metavariable matched to
+     * 'bindings'. Metavariables already in 'bindings' must match an equal
+     * subexpression. On failure, 'bindings' may have been partly filled in.
+     */
+    public static boolean match(AstNode pattern, AstNode term, Map<String, AstNode> bindings) {
+        // Patterns are tiny, but terms need not be, so walk them in step
+        // rather than recursing
+        Deque<AstNode> patterns = new ArrayDeque<>();
+        Deque<AstNode> terms = new ArrayDeque<>();
+        patterns.push(pattern);
+        terms.push(term);
+        while (!patterns.isEmpty()) {
+            AstNode p = patterns.pop();
+            AstNode t = terms.pop();
+            if (p.isVariable()) {
+                AstNode bound = bindings.get(p.getName());
+                if (bound == null) {
+                    bindings.put(p.getName(), t);
+                } else if (!bound.equals(t)) {
+                    return false;
+                }
+            } else if (p.isNumber()) {
+                if (!t.isNumber() || p.getNumericValue() != t.getNumericValue()) {
+                    return false;
+                }
+            } else {
+                if (!t.isOperation() || !p.getName().equals(t.getName())
+                        || p.getChildren().size() != t.getChildren().size()) {
+                    return false;
+                }
+                for (AstNode child : p.getChildren()) {
+                    patterns.push(child);
+                }
+                for (AstNode child : t.getChildren()) {
+                    terms.push(child);
+                }
+            }
+        }
+        return true;
+    }
+
+    private static Set<String> variablesOf(AstNode node) {
+        Set<String> names = new HashSet<>();
+        Deque<AstNode> pending = new ArrayDeque<>();
+        pending.push(node);
+        while (!pending.isEmpty()) {
+            AstNode current = pending.pop();
+            if (current.isVariable()) {
+                names.add(current.getName());
+            }
+            for (AstNode child : current.getChildren()) {
+                pending.push(child);
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,137 @@
+package calculator.ast;
+
+import datastructures.concrete.DoubleLinkedList;
+import datastructures.interfaces.IList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An ordered collection of rewrite rules, indexed so the rules that might
+ * apply to an expression can be found quickly. Earlier rules take priority
+ * over later ones.
+ *
+ * Rules are indexed in a DiscriminationTree on their whole pattern. Rules
+ * whose pattern is a '+' or '*' of two operands are also indexed on each
+ * operand separately, so they can be applied to any two operands of a
+ * flattened sum or product (see ExpressionFlattener).
+ *
+ * A RuleSet never changes once created, so one can be shared freely.
+ */
+public class RuleSet {
+    private static final RuleSet STANDARD = create(false);
+    private static final RuleSet ASSUMING_FINITE = create(true);
+
+    private final List<RewriteRule> rules;
+    private final DiscriminationTree<Integer> index;
+    private final DiscriminationTree<Integer> operandIndex;
+
+    /**
+     * Creates a rule set holding the given rules, in priority order.
+     */
+    public RuleSet(Iterable<RewriteRule> rules) {
+        this.rules = new ArrayList<>();
+        this.index = new DiscriminationTree<>();
+        this.operandIndex = new DiscriminationTree<>();
+        for (RewriteRule rule : rules) {
+            int id = this.rules.size();
+            this.rules.add(rule);
+            AstNode pattern = rule.getPattern();
+            this.index.insert(pattern, id);
+            if (isPairPattern(pattern)) {
+                // Operand 'i' of rule 'id' is stored as '2 * id + i'
+                this.operandIndex.insert(pattern.getChildren().get(0), 2 * id);
+                this.operandIndex.insert(pattern.getChildren().get(1), 2 * id + 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the identities 'simplify' applies by default. Each one holds
+     * for every double, including infinities, NaN and negative zero, so
+     * applying them never changes what an expression evaluates to.
+     */
+    public static RuleSet standard() {
+        return STANDARD;
+    }
+
+    /**
+     * Returns the standard identities along with those that only hold for
+     * finite values, such as '0 * x' to 0 (which is NaN when 'x' is
+     * infinite) and 'x - x' to 0. Applying these may turn an expression
+     * whose value is NaN or negative zero into one whose value is not.
+     */
+    public static RuleSet assumingFinite() {
+        return ASSUMING_FINITE;
+    }
+
+    public int size() {
+        return this.rules.size();
+    }
+
+    public RewriteRule get(int id) {
+        return this.rules.get(id);
+    }
+
+    /**
+     * Returns the ids of the rules whose whole pattern might match 'term',
+     * highest priority first.
+     */
+    public List<Integer> candidates(AstNode term) {
+        List<Integer> ids = this.index.candidates(term);
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Returns the rules of two operands that 'operand' might be an operand
+     * of, each encoded as '2 * id + i' where 'i' is the position it might
+     * match in rule 'id'.
+     */
+    public List<Integer> operandCandidates(AstNode operand) {
+        return this.operandIndex.candidates(operand);
+    }
+
+    private static boolean isPairPattern(AstNode pattern) {
+        return pattern.isOperation() && ExpressionFlattener.isAssociative(pattern.getName())
+                && pattern.getChildren().size() == 2;
+    }
+
+    private static RuleSet create(boolean assumeFinite) {
+        AstNode x = new AstNode("x");
+        AstNode zero = new AstNode(0);
+        AstNode one = new AstNode(1);
+
+        List<RewriteRule> rules = new ArrayList<>();
+        rules.add(new RewriteRule(op("*", one, x), x));
+        rules.add(new RewriteRule(op("*", x, one), x));
+        rules.add(new RewriteRule(op("-", x, zero), x));
+        rules.add(new RewriteRule(op("/", x, one), x));
+        rules.add(new RewriteRule(op("^", x, zero), one));
+        rules.add(new RewriteRule(op("^", x, one), x));
+        if (assumeFinite) {
+            // '0 + x' is 0 rather than 'x' when 'x' is negative zero, and
+            // '0 - x' is 0 rather than negative zero when 'x' is 0
+            AstNode sinSquared = op("^", op("sin", x), new AstNode(2));
+            AstNode cosSquared = op("^", op("cos", x), new AstNode(2));
+            rules.add(new RewriteRule(op("*", zero, x), zero));
+            rules.add(new RewriteRule(op("*", x, zero), zero));
+            rules.add(new RewriteRule(op("+", zero, x), x));
+            rules.add(new RewriteRule(op("+", x, zero), x));
+            rules.add(new RewriteRule(op("-", x, x), zero));
+            rules.add(new RewriteRule(op("-", zero, x), op("negate", x)));
+            rules.add(new RewriteRule(op("+", sinSquared, cosSquared), one));
+            rules.add(new RewriteRule(op("+", cosSquared, sinSquared), one));
+        }
+        return new RuleSet(rules);
+    }
+
+    private static AstNode op(String name, AstNode... operands) {
+        IList<AstNode> children = new DoubleLinkedList<>();
+        for (AstNode operand : operands) {
+            children.add(operand);
+        }
+        return new AstNode(name, children);
+    }
+}
@@ -0,0 +1,165 @@
+package calculator.ast;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the results of simplifying expressions across evaluations.
+ *
+ * Entries are keyed on the structure of the expression being simplified.
+ * Every entry also records which variables were looked up while computing
+ * it, along with the "version" each of those variables had at the time.
+ * Reassigning a variable bumps its version, which makes exactly the entries
+ * that depended on it stale; all other entries remain usable.
+ *
+ * The cache holds a bounded number of entries and evicts the least recently
+ * used one when it is full.
+ */
+public class SimplifyCache {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final Map<AstNode, CacheEntry> entries;
+    private final Map<String, Integer> versions;
+    private final Deque<Set<String>> dependencies;
+    private long hitCount;
+    private long missCount;
+
+    public SimplifyCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SimplifyCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.entries = new LinkedHashMap<AstNode, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<AstNode, CacheEntry> eldest) {
+                return this.size() > capacity;
+            }
+        };
+        this.versions = new HashMap<>();
+        this.dependencies = new ArrayDeque<>();
+        this.hitCount = 0;
+        this.missCount = 0;
+    }
+
+    /**
+     * Marks every entry that depends on the given variable as stale. This must
+     * be called whenever the variable is defined or redefined.
+     */
+    public void invalidate(String variable) {
+        Integer version = this.versions.get(variable);
+        this.versions.put(variable, version == null ? 1 : version + 1);
+    }
+
+    /**
+     * Forgets every entry, such as when what simplifying does has changed.
+     * The hit and miss counts are kept.
+     */
+    public void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     */
+    public long getHitCount() {
+        return this.hitCount;
+    }
+
+    /**
+     * Returns the number of lookups that had to simplify from scratch.
+     */
+    public long getMissCount() {
+        return this.missCount;
+    }
+
+    /**
+     * Returns the number of entries currently held.
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the cached simplification of 'key' if there is a current one;
+     * otherwise runs 'simplifier', caches whatever it returns, and returns it.
+     *
+     * Lookups may be nested: variables recorded while computing an inner
+     * entry are also recorded as dependencies of every enclosing entry.
+     */
+    public AstNode get(AstNode key, Supplier<AstNode> simplifier) {
+        CacheEntry entry = this.entries.get(key);
+        if (entry != null && entry.isCurrent(this.versions)) {
+            this.hitCount += 1;
+            for (String name : entry.names) {
+                this.recordDependency(name);
+            }
+            return entry.result;
+        }
+
+        this.missCount += 1;
+        this.dependencies.push(new HashSet<>());
+        AstNode result;
+        Set<String> used;
+        try {
+            result = simplifier.get();
+        } finally {
+            used = this.dependencies.pop();
+        }
+        this.entries.put(key, new CacheEntry(result, used, this.versions));
+        if (!this.dependencies.isEmpty()) {
+            this.dependencies.peek().addAll(used);
+        }
+        return result;
+    }
+
+    /**
+     * Records that the simplification currently being computed looked up the
+     * given variable, whether or not that variable is defined.
+     */
+    public void recordDependency(String variable) {
+        if (!this.dependencies.isEmpty()) {
+            this.dependencies.peek().add(variable);
+        }
+    }
+
+    private static class CacheEntry {
+        public final AstNode result;
+        public final String[] names;
+        public final int[] versions;
+
+        public CacheEntry(AstNode result, Set<String> names, Map<String, Integer> versions) {
+            this.result = result;
+            this.names = new String[names.size()];
+            this.versions = new int[names.size()];
+            Iterator<String> iter = names.iterator();
+            for (int i = 0; i < this.names.length; i++) {
+                this.names[i] = iter.next();
+                this.versions[i] = versionOf(versions, this.names[i]);
+            }
+        }
+
+        public boolean isCurrent(Map<String, Integer> versions) {
+            for (int i = 0; i < this.names.length; i++) {
+                if (versionOf(versions, this.names[i]) != this.versions[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int versionOf(Map<String, Integer> versions, String name) {
+            Integer version = versions.get(name);
+            return version == null ? 0 : version;
+        }
+    }
+}
@@ -0,0 +1,763 @@
+package calculator.ast;
+
+import calculator.errors.EvaluationError;
+import datastructures.concrete.dictionaries.ArrayDictionary;
+import datastructures.interfaces.IDictionary;
+import datastructures.interfaces.IList;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An expression compiled into instructions for a small stack-based virtual
+ * machine.
+ *
+ * Each instruction is a single int: the low 8 bits hold the opcode and the
+ * remaining bits hold an optional operand (an index into the constant pool
+ * for CONST, or an index into the slots array for LOAD). Instructions are
+ * laid out in postorder, so evaluation is a single loop over the array with
+ * no recursion, no matter how deeply nested the original expression was.
+ *
+ * Subexpressions that occur more than once are only evaluated once: the
+ * first time, STORE_TEMP copies the value on top of the stack into a
+ * temporary, and every later occurrence becomes a LOAD_TEMP. Temporaries
+ * live in the same array as the operand stack, just past its deepest entry.
+ *
+ * The operand stack is allocated once, when the program is compiled, so
+ * evaluating a program does not allocate. This also means a single program
+ * must not be evaluated by two threads at once through 'eval(slots)'; use
+ * 'eval(slots, stack)' with a separate stack per thread instead.
+ */
+public class StackProgram implements CompiledExpression {
+    private static final int CONST = 0;
+    private static final int LOAD = 1;
+    private static final int ADD = 2;
+    private static final int SUB = 3;
+    private static final int MUL = 4;
+    private static final int DIV = 5;
+    private static final int POW = 6;
+    private static final int NEG = 7;
+    private static final int SIN = 8;
+    private static final int COS = 9;
+    private static final int ABS = 10;
+    private static final int EXP = 11;
+    private static final int SQRT = 12;
+    private static final int STORE_TEMP = 13;
+    private static final int LOAD_TEMP = 14;
+
+    private static final int OPCODE_BITS = 8;
+    private static final int OPCODE_MASK = (1 << OPCODE_BITS) - 1;
+    private static final int MAX_OPERAND = Integer.MAX_VALUE >>> OPCODE_BITS;
+
+    /**
+     * The number of points 'evalBatch' pushes through each instruction at a
+     * time. Small enough that every scratch column stays in cache.
+     */
+    public static final int BATCH_BLOCK_SIZE = 1024;
+
+    private final int[] code;
+    private final int codeLength;
+    private final double[] constants;
+    private final int maxStackDepth;
+    private final int tempCount;
+    private final double[] stack;
+    private double[][] batchColumns;
+
+    private StackProgram(int[] code, int codeLength, double[] constants, int maxStackDepth,
+                         int tempCount) {
+        this.code = code;
+        this.codeLength = codeLength;
+        this.constants = constants;
+        this.maxStackDepth = maxStackDepth;
+        this.tempCount = tempCount;
+        this.stack = new double[maxStackDepth + tempCount];
+    }
+
+    /**
+     * Compiles the given expression. The value of the variable named
+     * 'slotNames.get(i)' will be read from 'slots[i]' when the program is
+     * evaluated.
+     *
+     * The expression is first run through the ExpressionOptimizer, so
+     * repeated subexpressions are only evaluated (or folded) once. The
+     * optimizer is not allowed to change the result.
+     *
+     * @throws EvaluationError  if the expression contains a variable not listed in
+     *                          'slotNames', or uses an unknown operation or the
+     *                          wrong number of operands
+     */
+    public static StackProgram compile(AstNode expression, IList<String> slotNames) {
+        return compile(expression, slotNames, new ArrayDictionary<>(), false);
+    }
+
+    /**
+     * Compiles the given expression as above, optionally letting the
+     * ExpressionOptimizer make fast-math rewrites that may round differently
+     * in the last few bits.
+     */
+    public static StackProgram compile(AstNode expression, IList<String> slotNames,
+                                       boolean fastMath) {
+        return compile(expression, slotNames, new ArrayDictionary<>(), fastMath);
+    }
+
+    /**
+     * Compiles the given expression. Variables listed in 'slotNames' are read
+     * from the slots array as above; any other variable is looked up in
+     * 'variables' and baked into the program as a constant.
+     *
+     * @throws EvaluationError  if the expression contains a variable that is neither
+     *                          a slot nor defined as a number in 'variables', or
+     *                          uses an unknown operation or the wrong number of
+     *                          operands
+     */
+    public static StackProgram compile(AstNode expression, IList<String> slotNames,
+                                       IDictionary<String, AstNode> variables) {
+        return compile(expression, slotNames, variables, false);
+    }
+
+    /**
+     * Compiles the given expression as above, optionally in fast-math mode.
+     */
+    public static StackProgram compile(AstNode expression, IList<String> slotNames,
+                                       IDictionary<String, AstNode> variables, boolean fastMath) {
+        AstNode optimized = ExpressionOptimizer.optimize(expression, fastMath);
+        return new Assembler(slotNames, variables).assemble(optimized);
+    }
+
+    /**
+     * Returns the number of instructions in this program.
+     */
+    public int getInstructionCount() {
+        return this.codeLength;
+    }
+
+    /**
+     * Returns the number of stack entries this program needs, including
+     * the ones holding temporaries.
+     */
+    public int getMaxStackDepth() {
+        return this.maxStackDepth + this.tempCount;
+    }
+
+    /**
+     * Returns the number of temporaries holding shared subexpressions.
+     */
+    public int getTempCount() {
+        return this.tempCount;
+    }
+
+    @Override
+    public double eval(double[] slots) {
+        return this.eval(slots, this.stack);
+    }
+
+    /**
+     * Evaluates this program using the given operand stack, which must hold at
+     * least 'getMaxStackDepth()' entries.
+     */
+    public double eval(double[] slots, double[] stack) {
+        return execute(this.code, 0, this.codeLength, this.constants, slots, stack,
+                this.maxStackDepth);
+    }
+
+    /**
+     * Runs the instructions from 'from' (inclusive) to 'to' (exclusive),
+     * which must leave exactly one value on the stack, and returns it.
+     * Temporaries are kept in 'stack' starting at index 'tempBase'.
+     */
+    private static double execute(int[] code, int from, int to, double[] constants,
+                                  double[] slots, double[] stack, int tempBase) {
+        int top = -1;
+        for (int pc = from; pc < to; pc++) {
+            int instruction = code[pc];
+            switch (instruction & OPCODE_MASK) {
+                case CONST:
+                    stack[++top] = constants[instruction >>> OPCODE_BITS];
+                    break;
+                case LOAD:
+                    stack[++top] = slots[instruction >>> OPCODE_BITS];
+                    break;
+                case ADD:
+                    top -= 1;
+                    stack[top] = stack[top] + stack[top + 1];
+                    break;
+                case SUB:
+                    top -= 1;
+                    stack[top] = stack[top] - stack[top + 1];
+                    break;
+                case MUL:
+                    top -= 1;
+                    stack[top] = stack[top] * stack[top + 1];
+                    break;
+                case DIV:
+                    top -= 1;
+                    stack[top] = stack[top] / stack[top + 1];
+                    break;
+                case POW:
+                    top -= 1;
+                    stack[top] = Math.pow(stack[top], stack[top + 1]);
+                    break;
+                case NEG:
+                    stack[top] = -1 * stack[top];
+                    break;
+                case SIN:
+                    stack[top] = Math.sin(stack[top]);
+                    break;
+                case COS:
+                    stack[top] = Math.cos(stack[top]);
+                    break;
+                case ABS:
+                    stack[top] = Math.abs(stack[top]);
+                    break;
+                case EXP:
+                    stack[top] = Math.exp(stack[top]);
+                    break;
+                case SQRT:
+                    stack[top] = Math.sqrt(stack[top]);
+                    break;
+                case STORE_TEMP:
+                    stack[tempBase + (instruction >>> OPCODE_BITS)] = stack[top];
+                    break;
+                case LOAD_TEMP:
+                    stack[++top] = stack[tempBase + (instruction >>> OPCODE_BITS)];
+                    break;
+                default:
+                    throw new AssertionError();
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Evaluates this program once for every value in 'xs', writing the
+     * results into the matching indices of 'out'. The slot at 'batchSlot'
+     * takes each value of 'xs' in turn; every other slot keeps its value
+     * from 'slots'.
+     *
+     * Rather than running the whole program per point, each instruction is
+     * applied to a block of up to BATCH_BLOCK_SIZE points at once, so the
+     * inner loops are simple array kernels. Uses scratch columns owned by
+     * this program, so the same thread-safety caveat as 'eval(slots)' applies.
+     */
+    public void evalBatch(double[] slots, int batchSlot, double[] xs, double[] out) {
+        this.evalBatch(slots, batchSlot, xs, 0, xs.length, out, this.getBatchColumns());
+    }
+
+    /**
+     * Same as above, but only evaluates the points in 'xs' from index 'from'
+     * (inclusive) to 'to' (exclusive), using the given scratch columns. There
+     * must be at least 'getMaxStackDepth()' columns, each holding at least
+     * BATCH_BLOCK_SIZE entries.
+     */
+    public void evalBatch(double[] slots, int batchSlot, double[] xs, int from, int to,
+                          double[] out, double[][] columns) {
+        // Operands that are the same for every point are kept as scalars,
+        // so constants never need to be copied into a whole column
+        // Temporaries are stored just past the operand stack, the same way
+        // as in 'eval'
+        int size = this.getMaxStackDepth();
+        boolean[] isScalar = new boolean[size];
+        double[] scalars = new double[size];
+        int[] code = this.code;
+        for (int start = from; start < to; start += BATCH_BLOCK_SIZE) {
+            int length = Math.min(BATCH_BLOCK_SIZE, to - start);
+            int top = -1;
+            for (int pc = 0; pc < this.codeLength; pc++) {
+                int instruction = code[pc];
+                int opcode = instruction & OPCODE_MASK;
+                if (opcode == CONST) {
+                    top += 1;
+                    isScalar[top] = true;
+                    scalars[top] = this.constants[instruction >>> OPCODE_BITS];
+                } else if (opcode == LOAD) {
+                    top += 1;
+                    int slot = instruction >>> OPCODE_BITS;
+                    isScalar[top] = slot != batchSlot;
+                    if (slot == batchSlot) {
+                        System.arraycopy(xs, start, columns[top], 0, length);
+                    } else {
+                        scalars[top] = slots[slot];
+                    }
+                } else if (opcode == STORE_TEMP || opcode == LOAD_TEMP) {
+                    int temp = this.maxStackDepth + (instruction >>> OPCODE_BITS);
+                    int source = opcode == STORE_TEMP ? top : temp;
+                    int target = opcode == STORE_TEMP ? temp : ++top;
+                    isScalar[target] = isScalar[source];
+                    if (isScalar[source]) {
+                        scalars[target] = scalars[source];
+                    } else {
+                        System.arraycopy(columns[source], 0, columns[target], 0, length);
+                    }
+                } else if (opcode >= ADD && opcode <= POW) {
+                    top -= 1;
+                    if (isScalar[top] && isScalar[top + 1]) {
+                        scalars[top] = applyBinary(opcode, scalars[top], scalars[top + 1]);
+                    } else if (isScalar[top + 1]) {
+                        binaryColumnScalar(opcode, columns[top], scalars[top + 1], length);
+                    } else if (isScalar[top]) {
+                        binaryScalarColumn(opcode, scalars[top], columns[top + 1], columns[top], length);
+                        isScalar[top] = false;
+                    } else {
+                        binaryColumnColumn(opcode, columns[top], columns[top + 1], length);
+                    }
+                } else if (isScalar[top]) {
+                    scalars[top] = applyUnary(opcode, scalars[top]);
+                } else {
+                    unaryColumn(opcode, columns[top], length);
+                }
+            }
+            if (isScalar[0]) {
+                Arrays.fill(out, start, start + length, scalars[0]);
+            } else {
+                System.arraycopy(columns[0], 0, out, start, length);
+            }
+        }
+    }
+
+    /**
+     * Returns a fresh set of scratch columns big enough for 'evalBatch'.
+     */
+    public double[][] newBatchColumns() {
+        return new double[this.getMaxStackDepth()][BATCH_BLOCK_SIZE];
+    }
+
+    private double[][] getBatchColumns() {
+        if (this.batchColumns == null) {
+            this.batchColumns = this.newBatchColumns();
+        }
+        return this.batchColumns;
+    }
+
+    private static double applyBinary(int opcode, double left, double right) {
+        switch (opcode) {
+            case ADD:
+                return left + right;
+            case SUB:
+                return left - right;
+            case MUL:
+                return left * right;
+            case DIV:
+                return left / right;
+            default:
+                return Math.pow(left, right);
+        }
+    }
+
+    private static double applyUnary(int opcode, double value) {
+        switch (opcode) {
+            case NEG:
+                return -1 * value;
+            case SIN:
+                return Math.sin(value);
+            case COS:
+                return Math.cos(value);
+            case ABS:
+                return Math.abs(value);
+            case EXP:
+                return Math.exp(value);
+            default:
+                return Math.sqrt(value);
+        }
+    }
+
+    // The kernels below each loop over a single column with the operation
+    // fixed: a counted loop from 0, no branches, and no calls other than
+    // intrinsics. This is the shape the JIT's auto-vectorizer recognizes, so
+    // '+', '-', '*', '/', negate, abs and sqrt may compile to SIMD
+    // instructions, with the leftover tail handled by scalar code. Whether
+    // they do is up to the JIT; there is no separate SIMD backend. Every
+    // kernel computes each point with exactly the operation 'eval' uses.
+
+    private static void binaryColumnColumn(int opcode, double[] left, double[] right, int length) {
+        switch (opcode) {
+            case ADD:
+                for (int i = 0; i < length; i++) {
+                    left[i] += right[i];
+                }
+                break;
+            case SUB:
+                for (int i = 0; i < length; i++) {
+                    left[i] -= right[i];
+                }
+                break;
+            case MUL:
+                for (int i = 0; i < length; i++) {
+                    left[i] *= right[i];
+                }
+                break;
+            case DIV:
+                for (int i = 0; i < length; i++) {
+                    left[i] /= right[i];
+                }
+                break;
+            default:
+                for (int i = 0; i < length; i++) {
+                    left[i] = Math.pow(left[i], right[i]);
+                }
+                break;
+        }
+    }
+
+    private static void binaryColumnScalar(int opcode, double[] left, double right, int length) {
+        if (opcode == POW && right == 1) {
+            // Math.pow(x, 1) is exactly x. (Other powers, even 2, go through
+            // Math.pow like in 'eval', so both give bit-identical results.)
+            return;
+        }
+        switch (opcode) {
+            case ADD:
+                for (int i = 0; i < length; i++) {
+                    left[i] += right;
+                }
+                break;
+            case SUB:
+                for (int i = 0; i < length; i++) {
+                    left[i] -= right;
+                }
+                break;
+            case MUL:
+                for (int i = 0; i < length; i++) {
+                    left[i] *= right;
+                }
+                break;
+            case DIV:
+                for (int i = 0; i < length; i++) {
+                    left[i] /= right;
+                }
+                break;
+            default:
+                for (int i = 0; i < length; i++) {
+                    left[i] = Math.pow(left[i], right);
+                }
+                break;
+        }
+    }
+
+    private static void binaryScalarColumn(int opcode, double left, double[] right,
+                                           double[] result, int length) {
+        switch (opcode) {
+            case ADD:
+                for (int i = 0; i < length; i++) {
+                    result[i] = left + right[i];
+                }
+                break;
+            case SUB:
+                for (int i = 0; i < length; i++) {
+                    result[i] = left - right[i];
+                }
+                break;
+            case MUL:
+                for (int i = 0; i < length; i++) {
+                    result[i] = left * right[i];
+                }
+                break;
+            case DIV:
+                for (int i = 0; i < length; i++) {
+                    result[i] = left / right[i];
+                }
+                break;
+            default:
+                for (int i = 0; i < length; i++) {
+                    result[i] = Math.pow(left, right[i]);
+                }
+                break;
+        }
+    }
+
+    private static void unaryColumn(int opcode, double[] values, int length) {
+        switch (opcode) {
+            case NEG:
+                for (int i = 0; i < length; i++) {
+                    values[i] = -values[i];
+                }
+                break;
+            case SIN:
+                for (int i = 0; i < length; i++) {
+                    values[i] = Math.sin(values[i]);
+                }
+                break;
+            case COS:
+                for (int i = 0; i < length; i++) {
+                    values[i] = Math.cos(values[i]);
+                }
+                break;
+            case ABS:
+                for (int i = 0; i < length; i++) {
+                    values[i] = Math.abs(values[i]);
+                }
+                break;
+            case EXP:
+                for (int i = 0; i < length; i++) {
+                    values[i] = Math.exp(values[i]);
+                }
+                break;
+            default:
+                for (int i = 0; i < length; i++) {
+                    values[i] = Math.sqrt(values[i]);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Translates an AstNode into instructions using an explicit work stack,
+     * so compiling is just as safe as evaluating for very deep expressions.
+     *
+     * Any operation whose operands do not read a slot has the same value
+     * every time the program runs, no matter what the slots hold. Such an
+     * operation is evaluated once, as soon as it has been emitted, and its
+     * instructions are replaced with a single constant. Sweeping a slot
+     * over many values then only pays for the parts of the expression that
+     * actually depend on the slots.
+     *
+     * When there are slots, any operation node that is referenced from more
+     * than one place (such as the shared nodes ExpressionOptimizer creates)
+     * is only compiled once, with its value kept in a temporary for reuse.
+     */
+    private static class Assembler {
+        private static final double[] NO_SLOTS = new double[0];
+
+        private final IDictionary<String, Integer> slotIndices;
+        private final IDictionary<String, AstNode> variables;
+
+        private int[] code;
+        private int codeLength;
+        private double[] constants;
+        private int constantCount;
+        private int stackDepth;
+        private int maxStackDepth;
+        private int lastLoad;
+        private final double[] foldStack;
+
+        private final Map<AstNode, Integer> references;
+        private final Map<AstNode, Integer> temps;
+        private final Map<AstNode, Double> sharedConstants;
+        private int tempCount;
+
+        public Assembler(IList<String> slotNames, IDictionary<String, AstNode> variables) {
+            this.slotIndices = new ArrayDictionary<>();
+            int index = 0;
+            for (String name : slotNames) {
+                if (!this.slotIndices.containsKey(name)) {
+                    this.slotIndices.put(name, index);
+                }
+                index += 1;
+            }
+            this.variables = variables;
+            this.code = new int[16];
+            this.constants = new double[8];
+            this.lastLoad = -1;
+
+            // Operands are always folded before the operation using them,
+            // so folding never needs more than a binary operation's worth
+            this.foldStack = new double[2];
+
+            this.references = new IdentityHashMap<>();
+            this.temps = new IdentityHashMap<>();
+            this.sharedConstants = new IdentityHashMap<>();
+            this.tempCount = 0;
+        }
+
+        public StackProgram assemble(AstNode root) {
+            if (!this.slotIndices.isEmpty()) {
+                this.countReferences(root);
+            }
+            Deque<Frame> pending = new ArrayDeque<>();
+            Frame rootFrame = this.visit(root);
+            if (rootFrame != null) {
+                pending.push(rootFrame);
+            }
+            while (!pending.isEmpty()) {
+                Frame frame = pending.peek();
+                if (frame.children.hasNext()) {
+                    if (frame.childCount >= 2) {
+                        // Sums and products with more than two operands add
+                        // each one in as soon as it is ready, so the operand
+                        // stack stays shallow however many there are
+                        this.emitOperation(frame.node);
+                    }
+                    frame.childCount += 1;
+                    Frame child = this.visit(frame.children.next());
+                    if (child != null) {
+                        pending.push(child);
+                    }
+                } else {
+                    pending.pop();
+                    this.emitOperation(frame.node);
+                    boolean invariant = this.lastLoad < frame.codeStart;
+                    double value = invariant ? this.fold(frame) : 0;
+                    if (this.isShared(frame.node)) {
+                        if (invariant) {
+                            this.sharedConstants.put(frame.node, value);
+                        } else {
+                            this.temps.put(frame.node, this.tempCount);
+                            this.emit(STORE_TEMP, this.tempCount, 0);
+                            this.tempCount += 1;
+                        }
+                    }
+                }
+            }
+            return new StackProgram(this.code, this.codeLength, this.constants, this.maxStackDepth,
+                    this.tempCount);
+        }
+
+        // Counts how many distinct places refer to each operation node,
+        // without looking inside a node more than once
+        private void countReferences(AstNode root) {
+            Deque<AstNode> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                AstNode node = pending.pop();
+                if (!node.isOperation()) {
+                    continue;
+                }
+                Integer count = this.references.get(node);
+                this.references.put(node, count == null ? 1 : count + 1);
+                if (count == null) {
+                    for (AstNode child : node.getChildren()) {
+                        pending.push(child);
+                    }
+                }
+            }
+        }
+
+        private boolean isShared(AstNode node) {
+            Integer count = this.references.get(node);
+            return count != null && count > 1;
+        }
+
+        // Emits leaves immediately, and returns a frame for operations that
+        // still need their children emitted first.
+        private Frame visit(AstNode node) {
+            if (node.isNumber()) {
+                this.emitConstant(node.getNumericValue());
+                return null;
+            } else if (node.isVariable()) {
+                String name = node.getName();
+                if (this.slotIndices.containsKey(name)) {
+                    this.lastLoad = this.codeLength;
+                    this.emit(LOAD, this.slotIndices.get(name), 1);
+                } else if (this.variables.containsKey(name)) {
+                    this.emitConstant(this.variables.get(name).getNumericValue());
+                } else {
+                    throw new EvaluationError("Undefined variable: " + name);
+                }
+                return null;
+            } else if (this.temps.containsKey(node)) {
+                this.lastLoad = this.codeLength;
+                this.emit(LOAD_TEMP, this.temps.get(node), 1);
+                return null;
+            } else if (this.sharedConstants.containsKey(node)) {
+                this.emitConstant(this.sharedConstants.get(node));
+                return null;
+            } else {
+                checkNumberOfOperands(node.getName(), node.getChildren());
+                return new Frame(node, this.codeLength, this.constantCount);
+            }
+        }
+
+        private void emitOperation(AstNode node) {
+            String name = node.getName();
+            if (name.equals("+")) {
+                this.emit(ADD, 0, -1);
+            } else if (name.equals("-")) {
+                this.emit(SUB, 0, -1);
+            } else if (name.equals("*")) {
+                this.emit(MUL, 0, -1);
+            } else if (name.equals("/")) {
+                this.emit(DIV, 0, -1);
+            } else if (name.equals("^")) {
+                this.emit(POW, 0, -1);
+            } else if (name.equals("negate")) {
+                this.emit(NEG, 0, 0);
+            } else if (name.equals("sin")) {
+                this.emit(SIN, 0, 0);
+            } else if (name.equals("cos")) {
+                this.emit(COS, 0, 0);
+            } else if (name.equals("abs")) {
+                this.emit(ABS, 0, 0);
+            } else if (name.equals("exp")) {
+                this.emit(EXP, 0, 0);
+            } else {
+                this.emit(SQRT, 0, 0);
+            }
+        }
+
+        // Replaces the instructions emitted for the given frame's operation,
+        // which must not read any slots, with the constant they compute, and
+        // returns that constant
+        private double fold(Frame frame) {
+            double value = execute(this.code, frame.codeStart, this.codeLength,
+                    this.constants, NO_SLOTS, this.foldStack, this.foldStack.length);
+            this.codeLength = frame.codeStart;
+            this.constantCount = frame.constantStart;
+            this.stackDepth -= 1;
+            this.emitConstant(value);
+            return value;
+        }
+
+        private void emitConstant(double value) {
+            if (this.constantCount == this.constants.length) {
+                double[] bigger = new double[this.constants.length * 2];
+                System.arraycopy(this.constants, 0, bigger, 0, this.constantCount);
+                this.constants = bigger;
+            }
+            this.constants[this.constantCount] = value;
+            this.emit(CONST, this.constantCount, 1);
+            this.constantCount += 1;
+        }
+
+        private void emit(int opcode, int operand, int stackEffect) {
+            if (operand > MAX_OPERAND) {
+                throw new EvaluationError("Expression is too large to compile");
+            }
+            if (this.codeLength == this.code.length) {
+                int[] bigger = new int[this.code.length * 2];
+                System.arraycopy(this.code, 0, bigger, 0, this.codeLength);
+                this.code = bigger;
+            }
+            this.code[this.codeLength] = opcode | (operand << OPCODE_BITS);
+            this.codeLength += 1;
+            this.stackDepth += stackEffect;
+            this.maxStackDepth = Math.max(this.maxStackDepth, this.stackDepth);
+        }
+
+        private static void checkNumberOfOperands(String name, IList<AstNode> children) {
+            int expected;
+            if (ExpressionFlattener.isAssociative(name) && children.size() > 2) {
+                return;
+            } else if ("+-*/^".contains(name) && name.length() == 1) {
+                expected = 2;
+            } else if (name.equals("negate") || name.equals("sin") || name.equals("cos")
+                    || name.equals("abs") || name.equals("exp") || name.equals("sqrt")) {
+                expected = 1;
+            } else {
+                throw new EvaluationError("Unknown operation: " + name);
+            }
+            if (children.size() != expected) {
+                throw new EvaluationError(
+                        "Given " + children.size() + " operands, but expected " + expected);
+            }
+        }
+    }
+
+    private static class Frame {
+        public final AstNode node;
+        public final Iterator<AstNode> children;
+        public final int codeStart;
+        public final int constantStart;
+        public int childCount;
+
+        public Frame(AstNode node, int codeStart, int constantStart) {
+            this.node = node;
+            this.children = node.getChildren().iterator();
+            this.codeStart = codeStart;
+            this.constantStart = constantStart;
+            this.childCount = 0;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package calculator.ast;
+
+import datastructures.concrete.DoubleLinkedList;
+import datastructures.interfaces.IList;
+
+import java.util.Iterator;
+
+/**
+ * One operation on the explicit stack of a pass that rebuilds an
+ * expression bottom-up: the operation, an iterator over the children still
+ * to be visited, and the new versions of the children visited so far.
+ *
+ * Rebuilding is copy-on-write. The list of new children is only created
+ * once some child actually changes, so an operation none of whose children
+ * changed is returned as it is, and only the paths that change are copied.
+ *
+ * Passes that need to track more per operation extend this class.
+ */
+public class TraversalFrame {
+    public final AstNode node;
+    public final Iterator<AstNode> oldChildren;
+    private final IList<AstNode> originals;
+    private IList<AstNode> newChildren;
+    private int childCount;
+
+    /**
+     * Creates a frame that visits the children of the given operation.
+     */
+    public TraversalFrame(AstNode node) {
+        this(node, node.getChildren());
+    }
+
+    /**
+     * Creates a frame that visits 'operands' in place of the children of
+     * the given operation, such as the operands of a whole chain of sums.
+     */
+    public TraversalFrame(AstNode node, IList<AstNode> operands) {
+        this.node = node;
+        this.originals = operands;
+        this.oldChildren = operands.iterator();
+        this.newChildren = null;
+        this.childCount = 0;
+    }
+
+    /**
+     * Records the new version of the next child.
+     */
+    public void add(AstNode oldChild, AstNode newChild) {
+        if (this.newChildren == null && newChild != oldChild) {
+            this.newChildren = new DoubleLinkedList<>();
+            Iterator<AstNode> unchanged = this.originals.iterator();
+            for (int i = 0; i < this.childCount; i++) {
+                this.newChildren.add(unchanged.next());
+            }
+        }
+        if (this.newChildren != null) {
+            this.newChildren.add(newChild);
+        }
+        this.childCount += 1;
+    }
+
+    /**
+     * Returns whether any child recorded so far has changed.
+     */
+    public boolean hasChanged() {
+        return this.newChildren != null;
+    }
+
+    /**
+     * Returns the new children recorded so far, which is the original list
+     * if none of them changed.
+     */
+    public IList<AstNode> getChildren() {
+        return this.newChildren == null ? this.originals : this.newChildren;
+    }
+
+    /**
+     * Returns the original operation if none of its children changed, and a
+     * copy with the new children otherwise.
+     */
+    public AstNode rebuild() {
+        if (this.newChildren == null) {
+            return this.node;
+        }
+        return new AstNode(this.node.getName(), this.newChildren);
+    }
+}
@@ -0,0 +1,53 @@
+package calculator.errors;
+
+/**
+ * An error thrown when evaluating an expression uses up more of some
+ * resource than its EvaluationBudget allows.
+ *
+ * Besides the usual message, it records how much of every resource the
+ * evaluation had used by the time it was stopped.
+ */
+public class BudgetExceededError extends EvaluationError {
+    private final String limit;
+    private final long nodesVisited;
+    private final long nodesAllocated;
+    private final int maxDepth;
+    private final long elapsedMillis;
+
+    public BudgetExceededError(String limit, long nodesVisited, long nodesAllocated,
+                               int maxDepth, long elapsedMillis) {
+        super(String.format(
+                "Evaluation exceeded its %s limit (visited %d nodes, allocated %d nodes, "
+                        + "reached depth %d, ran for %d ms)",
+                limit, nodesVisited, nodesAllocated, maxDepth, elapsedMillis));
+        this.limit = limit;
+        this.nodesVisited = nodesVisited;
+        this.nodesAllocated = nodesAllocated;
+        this.maxDepth = maxDepth;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * Returns the name of the limit that was exceeded: "node visit",
+     * "node allocation", "depth", "time", or "rewrite".
+     */
+    public String getLimit() {
+        return this.limit;
+    }
+
+    public long getNodesVisited() {
+        return this.nodesVisited;
+    }
+
+    public long getNodesAllocated() {
+        return this.nodesAllocated;
+    }
+
+    public int getMaxDepth() {
+        return this.maxDepth;
+    }
+
+    public long getElapsedMillis() {
+        return this.elapsedMillis;
+    }
+}
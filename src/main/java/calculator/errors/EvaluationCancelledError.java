@@ -0,0 +1,11 @@
+package calculator.errors;
+
+/**
+ * An error thrown when an evaluation is stopped part way through because
+ * it was cancelled, for example by the user pressing Ctrl-C in the GUI.
+ */
+public class EvaluationCancelledError extends EvaluationError {
+    public EvaluationCancelledError() {
+        super("Evaluation was cancelled");
+    }
+}
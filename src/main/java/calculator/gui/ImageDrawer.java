@@ -2,12 +2,16 @@ package calculator.gui;
 
 import datastructures.interfaces.IList;
 import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartRenderingInfo;
 import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.ValueAxis;
 import org.jfree.data.xy.XYSeries;
 import org.jfree.data.xy.XYSeriesCollection;
 
+import javax.swing.SwingUtilities;
 import java.awt.*;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
 import java.awt.image.ImageObserver;
 import java.util.Iterator;
 
@@ -58,6 +62,55 @@ public class ImageDrawer implements ImageObserver {
         return this.graphics;
     }
 
+    /**
+     * Returns the width of the image in pixels, or a negative number if it
+     * is not known yet.
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Returns how many pixel columns the x values from 'xMin' to 'xMax' span
+     * in a scatter plot drawn over the entire window by 'drawScatterPlot',
+     * whose points range from 'xMin' to 'xMax' and from 'yMin' to 'yMax'.
+     * Returns a negative number if the size of the image is not known yet.
+     *
+     * The points are drawn in the chart's data area, which is what is left
+     * once the title, axes and labels have their space, and the axes add a
+     * margin around the points. To find out how wide that area is, a chart
+     * with the same labels and ranges (but only two points) is laid out at
+     * the size of the image, onto a single scratch pixel.
+     */
+    public int getPlotColumns(String title, String xAxisLabel, String yAxisLabel,
+                              double xMin, double xMax, double yMin, double yMax) {
+        if (this.width == UNKNOWN_DIMENSION || this.height == UNKNOWN_DIMENSION) {
+            return UNKNOWN_DIMENSION;
+        }
+        XYSeries corners = new XYSeries("Series 1");
+        corners.add(xMin, yMin);
+        corners.add(xMax, yMax);
+        JFreeChart chart = createScatterPlot(title, xAxisLabel, yAxisLabel, corners);
+
+        // Only the layout is needed, so all but one pixel is clipped away
+        BufferedImage scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = scratch.createGraphics();
+        ChartRenderingInfo info = new ChartRenderingInfo();
+        try {
+            chart.draw(g2, new Rectangle2D.Double(0, 0, this.width, this.height), info);
+        } finally {
+            g2.dispose();
+        }
+
+        double dataWidth = info.getPlotInfo().getDataArea().getWidth();
+        ValueAxis axis = chart.getXYPlot().getDomainAxis();
+        double span = axis.getUpperBound() - axis.getLowerBound();
+        if (!(xMax > xMin) || !(span > 0)) {
+            return 1;
+        }
+        return (int) Math.max(1, Math.ceil(dataWidth * (xMax - xMin) / span));
+    }
+
     /**
      * Draws a scatter plot that occupies the entire window.
      *
@@ -85,6 +138,8 @@ public class ImageDrawer implements ImageObserver {
 
     /**
      * Draws a scatter plot that occupies the given portion of the window.
+     * Unless called on the event dispatch thread, the chart is drawn there
+     * shortly after this returns.
      *
      * Note: the xValues and the yValues represent the x coordinates and the y coordinates
      * you want to plot. The two lists will be "paired up" element-by-element.
@@ -117,6 +172,23 @@ public class ImageDrawer implements ImageObserver {
             series.add(xIter.next(), yIter.next());
         }
 
+        JFreeChart chart = createScatterPlot(title, xAxisLabel, yAxisLabel, series);
+
+        // We then draw this chart using the underlying Graphics object.
+        // That is the image the window paints from, so only the event
+        // dispatch thread may draw on it: when called from any other thread
+        // (such as the calculator's evaluator thread), the finished chart is
+        // handed over to be drawn there.
+        Graphics2D g2 = (Graphics2D) this.getGraphics();
+        if (SwingUtilities.isEventDispatchThread()) {
+            chart.draw(g2, drawRegion);
+        } else {
+            SwingUtilities.invokeLater(() -> chart.draw(g2, drawRegion));
+        }
+    }
+
+    private static JFreeChart createScatterPlot(String title, String xAxisLabel,
+                                                String yAxisLabel, XYSeries series) {
         // We add our series to the series collection. A SeriesCollection
         // may contain multiple series in case we want to plot multiple
         // datasets on the same chart. We don't do this, however.
@@ -131,10 +203,7 @@ public class ImageDrawer implements ImageObserver {
                 yAxisLabel,
                 seriesCollection);
         chart.removeLegend();
-
-        // We then draw this chart using the underlying Graphics object.
-        Graphics2D g2 = (Graphics2D) this.getGraphics();
-        chart.draw(g2, drawRegion);
+        return chart;
     }
 
     @Override
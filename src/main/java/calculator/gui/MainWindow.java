@@ -14,6 +14,9 @@ import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class MainWindow extends JFrame {
     public static final int DEFAULT_WIDTH = 800;
@@ -116,12 +119,19 @@ public class MainWindow extends JFrame {
     }
 
     private static class TextAreaResponder implements KeyListener {
+        // Shown in place of the prompt while an evaluation is running
+        private static final String BUSY_PROMPT = "[busy - press Ctrl-C to cancel]";
+
         private JFrame frame;
         private JTextArea area;
         private DisallowEditingPastContentFilter filter;
         private Calculator calculator;
 
         private String tempText;
+        // The evaluation currently running, or null if there is none. Only
+        // read and written on the event dispatch thread.
+        private CompletableFuture<String> pending;
+        private int busyPromptStart;
 
         public TextAreaResponder(JFrame frame,
                                  JTextArea area,
@@ -132,10 +142,16 @@ public class MainWindow extends JFrame {
             this.filter = filter;
             this.calculator = calculator;
             this.tempText = "";
+            this.pending = null;
         }
 
         @Override
         public void keyTyped(KeyEvent e) {
+            if (this.pending != null) {
+                // Nothing can be entered until the current input is done
+                e.consume();
+                return;
+            }
             try {
                 if (e.getKeyChar() == '\n') {
                     // Get input
@@ -149,45 +165,90 @@ public class MainWindow extends JFrame {
 
                     this.tempText += enteredText;
 
-                    // Run command and handle error processing
-                    boolean complete = true;
-                    String response = "";
-                    try {
-                        response = this.calculator.evaluate(this.tempText);
-                    } catch (IncompleteInputError ex) {
-                        complete = false;
-                    } catch (EvaluationError ex) {
-                        response = "ERROR: " + ex.getMessage();
-                    } catch (QuitError ex) {
-                        this.frame.dispose();
-                        return;
-                    } catch (Exception ex) {
-                        this.frame.dispose();
-                        throw ex;
-                    }
-
-                    // Add response
-                    this.filter.allowEditing();
-                    if (complete) {
-                        this.area.append(response + "\n");
-                        this.area.append(">>> ");
-                        this.tempText = "";
-                    } else {
-                        this.area.append("... ");
-                    }
-                    this.filter.disallowEditing();
-
-                    int newOffset = this.area.getDocument().getLength();
-                    this.filter.setPromptPosition(newOffset);
+                    // Run the command on the calculator's own thread, so the
+                    // window keeps repainting while it works
+                    this.showBusyPrompt();
+                    CompletableFuture<String> evaluation = this.calculator.evaluateAsync(this.tempText);
+                    this.pending = evaluation;
+                    evaluation.whenComplete((response, ex) ->
+                            EventQueue.invokeLater(() -> this.finish(evaluation, response, ex)));
                 }
             } catch (BadLocationException ex) {
                 throw new RuntimeException(ex);
             }
         }
 
+        // Handles the outcome of an evaluation. Runs on the event dispatch
+        // thread.
+        private void finish(CompletableFuture<String> evaluation, String response, Throwable ex) {
+            if (evaluation != this.pending) {
+                return;
+            }
+            this.pending = null;
+            this.hideBusyPrompt();
+
+            // Handle error processing
+            boolean complete = true;
+            if (ex instanceof CompletionException) {
+                ex = ex.getCause();
+            }
+            if (ex instanceof CancellationException) {
+                response = "ERROR: Evaluation was cancelled";
+            } else if (ex instanceof IncompleteInputError) {
+                complete = false;
+            } else if (ex instanceof EvaluationError) {
+                response = "ERROR: " + ex.getMessage();
+            } else if (ex instanceof QuitError) {
+                this.frame.dispose();
+                return;
+            } else if (ex instanceof RuntimeException) {
+                this.frame.dispose();
+                throw (RuntimeException) ex;
+            } else if (ex != null) {
+                this.frame.dispose();
+                throw new RuntimeException(ex);
+            }
+
+            // Add response
+            this.filter.allowEditing();
+            if (complete) {
+                this.area.append(response + "\n");
+                this.area.append(">>> ");
+                this.tempText = "";
+            } else {
+                this.area.append("... ");
+            }
+            this.filter.disallowEditing();
+
+            int newOffset = this.area.getDocument().getLength();
+            this.filter.setPromptPosition(newOffset);
+        }
+
+        private void showBusyPrompt() {
+            this.busyPromptStart = this.area.getDocument().getLength();
+            this.filter.allowEditing();
+            this.area.append(BUSY_PROMPT);
+            this.filter.disallowEditing();
+            this.filter.setPromptPosition(Integer.MAX_VALUE);
+            this.area.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        }
+
+        private void hideBusyPrompt() {
+            this.filter.allowEditing();
+            this.area.replaceRange("", this.busyPromptStart, this.area.getDocument().getLength());
+            this.filter.disallowEditing();
+            this.area.setCursor(Cursor.getPredefinedCursor(Cursor.TEXT_CURSOR));
+        }
+
         @Override
         public void keyPressed(KeyEvent e) {
-            // Do nothing
+            // Ctrl-C only cancels while something is running, and copies
+            // text as usual otherwise. Input stays disabled until the
+            // evaluation has actually stopped and its future is done.
+            if (this.pending != null && e.getKeyCode() == KeyEvent.VK_C && e.isControlDown()) {
+                this.pending.cancel(true);
+                e.consume();
+            }
         }
 
         @Override
@@ -2,8 +2,12 @@ package calculator.interpreter;
 
 import calculator.ast.AstNode;
 import calculator.ast.BuiltinManipulators;
+import calculator.ast.ExpressionFlattener;
 import calculator.ast.ExpressionManipulators;
-import calculator.ast.AstManipulator;
+import calculator.ast.PlotCache;
+import calculator.ast.RuleSet;
+import calculator.ast.SimplifyCache;
+import calculator.ast.TraversalFrame;
 import calculator.gui.ImageDrawer;
 import calculator.parser.Parser;
 import datastructures.concrete.DoubleLinkedList;
@@ -11,9 +15,19 @@ import datastructures.concrete.dictionaries.ArrayDictionary;
 import datastructures.interfaces.IDictionary;
 import datastructures.interfaces.IList;
 
-import java.util.Iterator;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Calculator {
+    // The stack size of the thread that runs asynchronous evaluations. The
+    // parser recurses on nested input, so it gets more than the default.
+    private static final long EVALUATOR_STACK_SIZE = 64L * 1024 * 1024;
+
     // Components used by the calculator
     private Parser parser;
     private Interpreter interpreter;
@@ -21,14 +35,24 @@ public class Calculator {
     // State
     private IDictionary<String, AstNode> variables;
     private ImageDrawer imageDrawer;
+    private SimplifyCache simplifyCache;
+    private PlotCache plotCache;
+    private DependencyGraph dependencyGraph;
+    private EvaluationBudget budget;
+    private RuleSet simplifyRules;
 
     // Internal data
-    private IDictionary<String, AstManipulator> customFunctions;
-    private IDictionary<String, AstManipulator> specialFunctions;
+    private FunctionTable functions;
     private IDictionary<String, Integer> precedenceMap;
+    private ExpressionPrinter printer;
+    private long maxOutputLength;
 
-    private static final int STRONGEST_PRECEDENCE = 0;
-    private static final int WEAKEST_PRECEDENCE = Integer.MAX_VALUE;
+    // Runs 'evaluateAsync' requests one at a time, created on first use
+    private ExecutorService evaluator;
+    // The asynchronous evaluation currently running, if any
+    private volatile Evaluation running;
+    // The asynchronous evaluation requested most recently, if any
+    private volatile Evaluation latest;
 
     public Calculator() {
         this(null);
@@ -40,21 +64,27 @@ public class Calculator {
 
         this.variables = new ArrayDictionary<>();
         this.imageDrawer = imageDrawer;
+        this.simplifyCache = new SimplifyCache();
+        this.plotCache = new PlotCache();
+        this.dependencyGraph = new DependencyGraph();
+        this.budget = EvaluationBudget.unlimited();
+        this.simplifyRules = RuleSet.standard();
 
-        this.customFunctions = new ArrayDictionary<>();
-        this.specialFunctions = new ArrayDictionary<>();
+        this.functions = new FunctionTable();
         this.precedenceMap = new ArrayDictionary<>();
 
         // Your functions
-        this.customFunctions.put("simplify", ExpressionManipulators::simplify);
-        this.customFunctions.put("toDouble", ExpressionManipulators::toDouble);
-        this.customFunctions.put("plot", ExpressionManipulators::plot);
+        this.functions.putCustom("simplify", ExpressionManipulators::simplify);
+        this.functions.putCustom("toDouble", ExpressionManipulators::toDouble);
+        this.functions.putCustom("collect", ExpressionManipulators::collect);
+        this.functions.putCustom("plot", ExpressionManipulators::plot);
+        this.functions.putCustom("plotAdaptive", ExpressionManipulators::plotAdaptive);
 
         // Internal functions (that need to manipulate control flow or the environment somehow)
-        this.specialFunctions.put("block", BuiltinManipulators::handleBlock);
-        this.specialFunctions.put("assign", BuiltinManipulators::handleAssign);
-        this.specialFunctions.put("quit", BuiltinManipulators::handleQuit);
-        this.specialFunctions.put("exit", BuiltinManipulators::handleQuit);
+        this.functions.putSpecial("block", BuiltinManipulators::handleBlock);
+        this.functions.putSpecial("assign", BuiltinManipulators::handleAssign);
+        this.functions.putSpecial("quit", BuiltinManipulators::handleQuit);
+        this.functions.putSpecial("exit", BuiltinManipulators::handleQuit);
 
         this.precedenceMap.put("^", 1);
         this.precedenceMap.put("negate", 2);
@@ -62,121 +92,325 @@ public class Calculator {
         this.precedenceMap.put("/", 3);
         this.precedenceMap.put("+", 4);
         this.precedenceMap.put("-", 4);
+
+        this.printer = new ExpressionPrinter(this.precedenceMap);
+        this.maxOutputLength = ExpressionPrinter.UNLIMITED;
     }
 
     public void setImageDrawer(ImageDrawer imageDrawer) {
         this.imageDrawer = imageDrawer;
     }
 
+    /**
+     * Returns the cache used to avoid re-simplifying the same expressions,
+     * mostly so its hit and miss counts can be inspected.
+     */
+    public SimplifyCache getSimplifyCache() {
+        return this.simplifyCache;
+    }
+
+    /**
+     * Returns the cache used to avoid re-sampling the same plots, mostly so
+     * its hit and miss counts can be inspected.
+     */
+    public PlotCache getPlotCache() {
+        return this.plotCache;
+    }
+
+    /**
+     * Sets the limits that every later call to 'evaluate' must stay within.
+     * The budget is reset at the start of each evaluation.
+     */
+    public void setBudget(EvaluationBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the current budget, whose usage reflects the most recent
+     * evaluation.
+     */
+    public EvaluationBudget getBudget() {
+        return this.budget;
+    }
+
+    /**
+     * Sets whether 'simplify' may assume every value is finite, and so apply
+     * identities such as '0 * x' to 0 and 'sin(x)^2 + cos(x)^2' to 1 (see
+     * RuleSet.assumingFinite). These are off by default, since they change
+     * the value of expressions involving infinities or NaN.
+     */
+    public void setAssumeFinite(boolean assumeFinite) {
+        RuleSet rules = assumeFinite ? RuleSet.assumingFinite() : RuleSet.standard();
+        if (rules != this.simplifyRules) {
+            this.simplifyRules = rules;
+            this.simplifyCache.clear();
+            this.dependencyGraph.forgetSimplifiedValues();
+        }
+    }
+
+    /**
+     * Limits how many characters of each result 'evaluate' returns. Longer
+     * results are cut short and end with ExpressionPrinter.ELLIPSIS.
+     */
+    public void setMaxOutputLength(long maxOutputLength) {
+        this.maxOutputLength = maxOutputLength;
+    }
+
     public String evaluate(String input) {
         if (input.trim().equals("")) {
             return "";
         }
+        return this.printer.toString(this.evaluateToAst(input), this.maxOutputLength);
+    }
+
+    /**
+     * Evaluates the given input like 'evaluate', but on a separate thread,
+     * so the caller (such as the Swing event dispatch thread) is never
+     * blocked. Requests run one at a time, in the order they were made.
+     *
+     * The returned future completes with the result, or exceptionally with
+     * whatever 'evaluate' would have thrown, and never before the evaluation
+     * has finished using this calculator.
+     *
+     * Cancelling the future completes it as cancelled right away, and asks
+     * the evaluation to stop: it stops the next time it reports progress to
+     * the budget, which every loop of the interpreter does regularly, and a
+     * request that has not started yet never runs at all. Each request only
+     * starts once the one before it has actually stopped, cancelled or not.
+     *
+     * No other method of this calculator may be called until every
+     * evaluation has stopped. A future that completes normally or
+     * exceptionally has stopped; after cancelling, use 'awaitIdle'.
+     */
+    public CompletableFuture<String> evaluateAsync(String input) {
+        Evaluation previous = this.latest;
+        Evaluation evaluation = new Evaluation();
+        this.latest = evaluation;
+        this.getEvaluator().execute(() -> {
+            if (previous != null) {
+                previous.awaitStopped();
+            }
+            // The budget is captured before the evaluation is published as
+            // running, so a cancel always reaches the budget it uses
+            evaluation.budget = this.budget;
+            this.running = evaluation;
+            String result = null;
+            Throwable error = null;
+            try {
+                if (!evaluation.isCancelRequested()) {
+                    result = this.evaluate(input);
+                }
+            } catch (Throwable ex) {
+                error = ex;
+            } finally {
+                this.running = null;
+                evaluation.stopped.countDown();
+            }
+            evaluation.finish(result, error);
+        });
+        return evaluation;
+    }
+
+    /**
+     * Waits until every evaluation requested through 'evaluateAsync' has
+     * stopped, including any that were cancelled but had not noticed yet.
+     */
+    public void awaitIdle() {
+        Evaluation latest = this.latest;
+        if (latest != null) {
+            latest.awaitStopped();
+        }
+    }
+
+    private ExecutorService getEvaluator() {
+        if (this.evaluator == null) {
+            this.evaluator = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(null, task, "calculator-evaluator", EVALUATOR_STACK_SIZE);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return this.evaluator;
+    }
+
+    /**
+     * Evaluates the given input like 'evaluate', but writes the result
+     * straight into 'out' instead of building a string.
+     */
+    public void evaluate(String input, Appendable out) throws IOException {
+        if (input.trim().equals("")) {
+            return;
+        }
+        this.printer.print(this.evaluateToAst(input), out, this.maxOutputLength);
+    }
+
+    private AstNode evaluateToAst(String input) {
         Environment env = this.prepareEnvironment();
-        AstNode ast = this.parser.parse(input + "\n");
+        AstNode ast = ExpressionFlattener.flatten(this.parser.parse(input + "\n"));
         AstNode normalizedAst = injectSimplify(env, ast);
-        AstNode output = this.interpreter.evaluate(env, normalizedAst);
-        return this.convertToString(output);
+        return this.interpreter.evaluate(env, normalizedAst);
+    }
+
+    /**
+     * Parses and simplifies the given numeric expression once, so that it
+     * can then be evaluated many times without going through 'evaluate'.
+     *
+     * Variables that are currently defined are substituted into the result;
+     * every other variable must be bound on the returned PreparedExpression
+     * before it is evaluated. The input must be a single expression; a
+     * top-level 'simplify' or 'toDouble' call is ignored, since the result is
+     * always evaluated to a double.
+     *
+     * @throws EvaluationError  if the input uses an operation that cannot be
+     *                          evaluated to a number, such as 'plot' or ':='
+     */
+    public PreparedExpression prepare(String input) {
+        Environment env = this.prepareEnvironment();
+        AstNode ast = ExpressionFlattener.flatten(this.parser.parse(input + "\n"));
+        while (ast.isOperation() && ast.getChildren().size() == 1
+                && (ast.getName().equals("block") || ast.getName().equals("simplify")
+                        || ast.getName().equals("toDouble"))) {
+            ast = ast.getChildren().get(0);
+        }
+        return new PreparedExpression(ExpressionManipulators.simplify(env, ast));
     }
 
     private Environment prepareEnvironment() {
-        return new Environment(
+        this.budget.reset();
+        // Resetting forgets any cancellation, so make sure one that arrived
+        // just before it is not lost
+        Evaluation running = this.running;
+        if (running != null && running.isCancelRequested()) {
+            this.budget.cancel();
+        }
+        Environment env = new Environment(
                 this.variables,
                 this.imageDrawer,
-                this.customFunctions,
-                this.specialFunctions,
-                this.interpreter);
+                this.functions,
+                this.interpreter,
+                this.simplifyCache,
+                this.plotCache,
+                this.dependencyGraph,
+                this.budget);
+        env.setSimplifyRules(this.simplifyRules);
+        return env;
     }
 
+    // Wraps the parsed input in calls to 'simplify', and binds every
+    // operation in the result to the function it calls, so the interpreter
+    // does not need to look functions up by name
     private static AstNode injectSimplify(Environment env, AstNode node) {
-        return wrapSimplifyFunc(injectSimplifyHelper(env, node));
+        FunctionTable functions = env.getFunctionTable();
+        return wrapSimplifyFunc(functions, injectSimplifyHelper(functions, node));
     }
 
-    private static AstNode injectSimplifyHelper(Environment env, AstNode node) {
+    private static AstNode injectSimplifyHelper(FunctionTable functions, AstNode node) {
         if (node.isNumber()) {
             return node;
         } else if (node.isVariable()) {
             return node;
-        } else {
-            IList<AstNode> newChildren = new DoubleLinkedList<>();
-            for (AstNode oldChild : node.getChildren()) {
-                newChildren.add(injectSimplifyHelper(env, oldChild));
+        }
+
+        // Rebuild the tree bottom-up using an explicit stack, so that very
+        // deep inputs cannot overflow the thread stack
+        Deque<TraversalFrame> frames = new ArrayDeque<>();
+        frames.push(new TraversalFrame(node));
+        while (true) {
+            TraversalFrame frame = frames.peek();
+            if (frame.oldChildren.hasNext()) {
+                AstNode oldChild = frame.oldChildren.next();
+                if (oldChild.isOperation()) {
+                    frames.push(new TraversalFrame(oldChild));
+                } else {
+                    frame.add(oldChild, oldChild);
+                }
+                continue;
             }
 
-            if (env.getSpecialFunctions().containsKey(node.getName())) {
-                for (int i = 0; i < newChildren.size(); i++) {
-                    newChildren.set(i, wrapSimplifyFunc(newChildren.get(i)));
+            frames.pop();
+            AstNode output;
+            if (functions.bind(frame.node).isBoundToSpecialFunction()) {
+                IList<AstNode> newChildren = new DoubleLinkedList<>();
+                for (AstNode child : frame.getChildren()) {
+                    newChildren.add(wrapSimplifyFunc(functions, child));
                 }
 
-                return wrapSimplifyFunc(new AstNode(node.getName(), newChildren));
+                output = functions.bind(new AstNode(frame.node.getName(), newChildren));
+                output = wrapSimplifyFunc(functions, output);
             } else {
-                return new AstNode(node.getName(), newChildren);
+                // Operations none of whose children changed are kept as is
+                output = functions.bind(frame.rebuild());
             }
+
+            if (frames.isEmpty()) {
+                return output;
+            }
+            frames.peek().add(frame.node, output);
         }
     }
 
-    private static AstNode wrapSimplifyFunc(AstNode inner) {
+    private static AstNode wrapSimplifyFunc(FunctionTable functions, AstNode inner) {
         if (inner.isOperation() && inner.getName().equals("simplify")) {
             return inner;
         } else {
             IList<AstNode> children = new DoubleLinkedList<>();
             children.add(inner);
-            return new AstNode("simplify", children);
+            return functions.bind(new AstNode("simplify", children));
         }
     }
 
-    private String convertToString(AstNode node) {
-        return this.convertToString(node, WEAKEST_PRECEDENCE);
-    }
+    /**
+     * The future returned by 'evaluateAsync'. Cancelling it completes it
+     * right away and signals the evaluation to stop; 'stopped' is released
+     * by the evaluator thread once the evaluation is no longer running.
+     */
+    private class Evaluation extends CompletableFuture<String> {
+        private final CountDownLatch stopped = new CountDownLatch(1);
+        private volatile boolean cancelRequested;
+        // The budget the evaluation runs under, set before it starts
+        private volatile EvaluationBudget budget;
 
-    private String convertToString(AstNode node, int parentPrecedenceLevel) {
-        if (node.isNumber()) {
-            double val = node.getNumericValue();
-            if (val == (long) val) {
-                return String.format("%d", (long) val);
-            } else {
-                return String.format("%s", val);
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // Completed first, so the evaluator cannot complete it some
+            // other way once it notices the budget was cancelled
+            if (this.isDone() || !super.cancel(mayInterruptIfRunning)) {
+                return false;
             }
-        } else if (node.isVariable()) {
-            return node.getName();
-        } else {
-            String name = node.getName();
-
-            boolean hasPrecedence = this.precedenceMap.containsKey(name);
-            int currPrecedenceLevel = hasPrecedence ? this.precedenceMap.get(name) : STRONGEST_PRECEDENCE;
-            int childPrecedenceLevel = hasPrecedence ? currPrecedenceLevel : WEAKEST_PRECEDENCE;
-
-            IList<String> children = new DoubleLinkedList<>();
-            for (AstNode child : node.getChildren()) {
-                children.add(this.convertToString(child, childPrecedenceLevel));
+            this.cancelRequested = true;
+            if (Calculator.this.running == this) {
+                this.budget.cancel();
             }
+            return true;
+        }
 
-            String out;
-            if ("-+*/^".contains(name)) {
-                out = this.join(" " + name + " ", children);
-            } else if ("negate".equals(name)) {
-                out = "-" + children.get(0);
-            } else {
-                out = name + "(" + this.join(", ", children) + ")";
-            }
+        public boolean isCancelRequested() {
+            return this.cancelRequested;
+        }
 
-            if (currPrecedenceLevel > parentPrecedenceLevel) {
-                out = "(" + out + ")";
+        public void awaitStopped() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    this.stopped.await();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
-
-            return out;
         }
-    }
 
-    private String join(String connector, IList<String> items) {
-        String out = "";
-        if (!items.isEmpty()) {
-            Iterator<String> iter = items.iterator();
-            out = iter.next();
-            while (iter.hasNext()) {
-                out += connector + iter.next();
+        // Called on the evaluator thread once the evaluation has stopped.
+        // Does nothing if the future was already cancelled.
+        public void finish(String result, Throwable error) {
+            if (error != null) {
+                this.completeExceptionally(error);
+            } else {
+                this.complete(result);
             }
         }
-        return out;
     }
 }
@@ -0,0 +1,262 @@
+package calculator.interpreter;
+
+import calculator.ast.AstNode;
+import calculator.errors.EvaluationError;
+import datastructures.concrete.DoubleLinkedList;
+import datastructures.interfaces.IDictionary;
+import datastructures.interfaces.IList;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Tracks which variables each variable's definition refers to, and
+ * remembers the simplified and numeric value of every variable until one of
+ * the variables it depends on is redefined.
+ *
+ * This works much like a spreadsheet: redefining a variable only throws away
+ * the remembered values of that variable and of the variables that
+ * (directly or indirectly) depend on it. Everything else is left alone.
+ *
+ * A graph nobody defines anything in is still useful as a table of values
+ * for a single evaluation, which 'resolutionOrder' can fill in one
+ * variable at a time.
+ */
+public class DependencyGraph {
+    private final Map<String, Set<String>> references;
+    private final Map<String, Set<String>> dependents;
+    private final Map<String, AstNode> simplifiedValues;
+    private final Map<String, Double> numericValues;
+
+    public DependencyGraph() {
+        this.references = new HashMap<>();
+        this.dependents = new HashMap<>();
+        this.simplifiedValues = new HashMap<>();
+        this.numericValues = new HashMap<>();
+    }
+
+    /**
+     * Records that 'variable' is now defined as 'definition', and forgets the
+     * remembered values of every variable affected by the change.
+     *
+     * Returns the affected variables in topological order: the redefined
+     * variable comes first, and every other variable comes after all of the
+     * affected variables its definition refers to. (Variables caught in a
+     * cycle of definitions are listed last, in no particular order.)
+     */
+    public IList<String> define(String variable, AstNode definition) {
+        Set<String> oldReferences = this.references.remove(variable);
+        if (oldReferences != null) {
+            for (String name : oldReferences) {
+                this.dependents.get(name).remove(variable);
+            }
+        }
+
+        Set<String> newReferences = collectVariables(definition);
+        this.references.put(variable, newReferences);
+        for (String name : newReferences) {
+            Set<String> users = this.dependents.get(name);
+            if (users == null) {
+                users = new HashSet<>();
+                this.dependents.put(name, users);
+            }
+            users.add(variable);
+        }
+
+        IList<String> affected = this.affectedBy(variable);
+        for (String name : affected) {
+            this.simplifiedValues.remove(name);
+            this.numericValues.remove(name);
+        }
+        return affected;
+    }
+
+    /**
+     * Returns the variables that the definition of the given variable refers
+     * to directly.
+     */
+    public Set<String> getReferences(String variable) {
+        Set<String> out = this.references.get(variable);
+        return out == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(out);
+    }
+
+    /**
+     * Returns the remembered simplified value of the given variable, or null
+     * if there is none.
+     */
+    public AstNode getSimplifiedValue(String variable) {
+        return this.simplifiedValues.get(variable);
+    }
+
+    public void setSimplifiedValue(String variable, AstNode value) {
+        this.simplifiedValues.put(variable, value);
+    }
+
+    /**
+     * Forgets the simplified value of every variable, such as when what
+     * simplifying does has changed. Numeric values are kept.
+     */
+    public void forgetSimplifiedValues() {
+        this.simplifiedValues.clear();
+    }
+
+    /**
+     * Returns the remembered numeric value of the given variable, or null if
+     * there is none.
+     */
+    public Double getNumericValue(String variable) {
+        return this.numericValues.get(variable);
+    }
+
+    public void setNumericValue(String variable, double value) {
+        this.numericValues.put(variable, value);
+    }
+
+    /**
+     * Returns every variable defined in 'definitions' that 'node' refers to,
+     * directly or through the definitions of other variables, in an order
+     * they can be resolved in: every variable comes after all of the
+     * variables its definition refers to. Variables for which 'isResolved'
+     * returns true are listed, but what their definitions refer to is not.
+     *
+     * Definitions are followed with an explicit stack rather than
+     * recursion, so resolving the variables in this order one at a time
+     * copes with chains of definitions of any length.
+     *
+     * @throws EvaluationError  if some variable is defined in terms of itself
+     */
+    public IList<String> resolutionOrder(AstNode node, IDictionary<String, AstNode> definitions,
+                                         Predicate<String> isResolved) {
+        IList<String> ordered = new DoubleLinkedList<>();
+        Set<String> listed = new HashSet<>();
+        Set<String> inProgress = new HashSet<>();
+        Deque<ResolveFrame> frames = new ArrayDeque<>();
+        frames.push(new ResolveFrame(null, collectVariables(node)));
+        while (!frames.isEmpty()) {
+            ResolveFrame frame = frames.peek();
+            if (!frame.references.hasNext()) {
+                frames.pop();
+                if (frame.variable != null) {
+                    inProgress.remove(frame.variable);
+                    listed.add(frame.variable);
+                    ordered.add(frame.variable);
+                }
+                continue;
+            }
+            String name = frame.references.next();
+            if (inProgress.contains(name)) {
+                throw new EvaluationError("Variable '" + name + "' is defined in terms of itself");
+            }
+            if (listed.contains(name) || !definitions.containsKey(name)) {
+                continue;
+            }
+            if (isResolved.test(name)) {
+                listed.add(name);
+                ordered.add(name);
+                continue;
+            }
+            inProgress.add(name);
+            Set<String> references = this.references.get(name);
+            if (references == null) {
+                references = collectVariables(definitions.get(name));
+            }
+            frames.push(new ResolveFrame(name, references));
+        }
+        return ordered;
+    }
+
+    // Collects the given variable and everything that transitively depends
+    // on it, then orders them with Kahn's algorithm.
+    private IList<String> affectedBy(String variable) {
+        Set<String> affected = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        affected.add(variable);
+        pending.add(variable);
+        while (!pending.isEmpty()) {
+            Set<String> users = this.dependents.get(pending.remove());
+            if (users != null) {
+                for (String user : users) {
+                    if (affected.add(user)) {
+                        pending.add(user);
+                    }
+                }
+            }
+        }
+
+        // Count how many affected variables each affected variable still
+        // waits on. The redefined variable waits on nothing, since it has
+        // already changed.
+        Map<String, Integer> waitingOn = new HashMap<>();
+        for (String name : affected) {
+            int count = 0;
+            if (!name.equals(variable)) {
+                for (String reference : this.getReferences(name)) {
+                    if (affected.contains(reference) && !reference.equals(name)) {
+                        count += 1;
+                    }
+                }
+            }
+            waitingOn.put(name, count);
+            if (count == 0) {
+                pending.add(name);
+            }
+        }
+
+        IList<String> ordered = new DoubleLinkedList<>();
+        while (!pending.isEmpty()) {
+            String name = pending.remove();
+            ordered.add(name);
+            affected.remove(name);
+            Set<String> users = this.dependents.get(name);
+            if (users != null) {
+                for (String user : users) {
+                    if (affected.contains(user) && !user.equals(name) && !user.equals(variable)) {
+                        int count = waitingOn.get(user) - 1;
+                        waitingOn.put(user, count);
+                        if (count == 0) {
+                            pending.add(user);
+                        }
+                    }
+                }
+            }
+        }
+        for (String name : affected) {
+            ordered.add(name);
+        }
+        return ordered;
+    }
+
+    private static Set<String> collectVariables(AstNode node) {
+        Set<String> out = new HashSet<>();
+        Deque<AstNode> pending = new ArrayDeque<>();
+        pending.push(node);
+        while (!pending.isEmpty()) {
+            AstNode current = pending.pop();
+            if (current.isVariable()) {
+                out.add(current.getName());
+            } else if (current.isOperation()) {
+                for (AstNode child : current.getChildren()) {
+                    pending.push(child);
+                }
+            }
+        }
+        return out;
+    }
+
+    private static class ResolveFrame {
+        public final String variable;
+        public final Iterator<String> references;
+
+        public ResolveFrame(String variable, Set<String> references) {
+            this.variable = variable;
+            this.references = references.iterator();
+        }
+    }
+}
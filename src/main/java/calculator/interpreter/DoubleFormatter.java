@@ -0,0 +1,396 @@
+package calculator.interpreter;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+/**
+ * Writes doubles as text without going through 'String.format' or
+ * 'Double.toString'.
+ *
+ * Non-integer values are printed using the shortest sequence of decimal
+ * digits that parses back to exactly the same double, found with the Ryu
+ * algorithm (Ulf Adams, "Ryu: Fast Float-to-String Conversion", PLDI 2018).
+ * The digits are laid out the same way 'Double.toString' lays them out, so
+ * for example 0.1 prints as "0.1" and 1e-10 prints as "1.0E-10".
+ *
+ * Every formatter owns a small scratch buffer, so writing a number does not
+ * allocate, but a single formatter must not be shared between threads.
+ */
+public class DoubleFormatter {
+    private static final int MANTISSA_BITS = 52;
+    private static final long MANTISSA_MASK = (1L << MANTISSA_BITS) - 1;
+    private static final int EXPONENT_BITS = 11;
+    private static final int EXPONENT_MASK = (1 << EXPONENT_BITS) - 1;
+    private static final int EXPONENT_BIAS = (1 << (EXPONENT_BITS - 1)) - 1;
+
+    // Every table entry is a 125-bit number, stored as a low and a high word
+    private static final int POW5_BITCOUNT = 125;
+    private static final int POW5_INV_BITCOUNT = 125;
+    private static final int POW5_TABLE_SIZE = 326;
+    private static final int POW5_INV_TABLE_SIZE = 342;
+
+    // POW5[i] holds 5^i scaled to exactly POW5_BITCOUNT bits, and
+    // POW5_INV[i] holds 2^(bits(5^i) - 1 + POW5_INV_BITCOUNT) / 5^i, rounded up
+    private static final long[] POW5 = new long[2 * POW5_TABLE_SIZE];
+    private static final long[] POW5_INV = new long[2 * POW5_INV_TABLE_SIZE];
+
+    // Longest possible output: "-2.2250738585072014E-308" is 24 characters,
+    // and "-9223372036854775808" is 20
+    private static final int BUFFER_LENGTH = 32;
+
+    static {
+        BigInteger lowWord = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        BigInteger pow = BigInteger.ONE;
+        for (int i = 0; i < Math.max(POW5_TABLE_SIZE, POW5_INV_TABLE_SIZE); i++) {
+            int bits = pow.bitLength();
+            if (i < POW5_TABLE_SIZE) {
+                BigInteger scaled = bits > POW5_BITCOUNT
+                        ? pow.shiftRight(bits - POW5_BITCOUNT)
+                        : pow.shiftLeft(POW5_BITCOUNT - bits);
+                POW5[2 * i] = scaled.and(lowWord).longValue();
+                POW5[2 * i + 1] = scaled.shiftRight(64).longValue();
+            }
+            if (i < POW5_INV_TABLE_SIZE) {
+                BigInteger inverse = BigInteger.ONE
+                        .shiftLeft(bits - 1 + POW5_INV_BITCOUNT)
+                        .divide(pow)
+                        .add(BigInteger.ONE);
+                POW5_INV[2 * i] = inverse.and(lowWord).longValue();
+                POW5_INV[2 * i + 1] = inverse.shiftRight(64).longValue();
+            }
+            pow = pow.multiply(BigInteger.valueOf(5));
+        }
+    }
+
+    private final char[] buffer;
+
+    public DoubleFormatter() {
+        this.buffer = new char[BUFFER_LENGTH];
+    }
+
+    /**
+     * Returns the given value formatted the same way 'appendDouble' would.
+     */
+    public static String toString(double value) {
+        DoubleFormatter formatter = new DoubleFormatter();
+        return new String(formatter.buffer, 0, formatter.formatDouble(value));
+    }
+
+    /**
+     * Writes the given integer in decimal.
+     */
+    public void appendLong(long value, Appendable out) throws IOException {
+        this.write(this.formatLong(value), out);
+    }
+
+    /**
+     * Writes the shortest decimal representation of the given value that
+     * parses back to exactly the same double.
+     */
+    public void appendDouble(double value, Appendable out) throws IOException {
+        this.write(this.formatDouble(value), out);
+    }
+
+    private void write(int length, Appendable out) throws IOException {
+        for (int i = 0; i < length; i++) {
+            out.append(this.buffer[i]);
+        }
+    }
+
+    // Writes the value into the start of the buffer, and returns its length
+    private int formatLong(long value) {
+        char[] buf = this.buffer;
+        if (value == Long.MIN_VALUE) {
+            String text = "-9223372036854775808";
+            text.getChars(0, text.length(), buf, 0);
+            return text.length();
+        }
+        int index = 0;
+        if (value < 0) {
+            buf[index++] = '-';
+            value = -value;
+        }
+        int length = decimalLength(value);
+        for (int i = index + length - 1; i >= index; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return index + length;
+    }
+
+    // Writes the value into the start of the buffer, and returns its length
+    private int formatDouble(double value) {
+        char[] buf = this.buffer;
+        long bits = Double.doubleToRawLongBits(value);
+        boolean negative = bits < 0;
+        int ieeeExponent = (int) ((bits >>> MANTISSA_BITS) & EXPONENT_MASK);
+        long ieeeMantissa = bits & MANTISSA_MASK;
+
+        int index = 0;
+        if (ieeeExponent == EXPONENT_MASK) {
+            if (ieeeMantissa != 0) {
+                return copy("NaN", 0);
+            }
+            return copy(negative ? "-Infinity" : "Infinity", 0);
+        }
+        if (negative) {
+            buf[index++] = '-';
+        }
+        if (ieeeExponent == 0 && ieeeMantissa == 0) {
+            return copy("0.0", index);
+        }
+
+        // Step 1: decode the double as m2 * 2^e2, where e2 is lowered by 2 to
+        // leave room for the bounds of the rounding interval
+        int e2;
+        long m2;
+        if (ieeeExponent == 0) {
+            e2 = 1 - EXPONENT_BIAS - MANTISSA_BITS - 2;
+            m2 = ieeeMantissa;
+        } else {
+            e2 = ieeeExponent - EXPONENT_BIAS - MANTISSA_BITS - 2;
+            m2 = ieeeMantissa | (1L << MANTISSA_BITS);
+        }
+        boolean acceptBounds = (m2 & 1) == 0;
+
+        // Step 2: the interval of values that round to this double is
+        // (mm * 2^e2, mp * 2^e2), around the value itself, mv * 2^e2
+        long mv = 4 * m2;
+        long mp = 4 * m2 + 2;
+        int mmShift = (ieeeMantissa != 0 || ieeeExponent <= 1) ? 1 : 0;
+        long mm = 4 * m2 - 1 - mmShift;
+
+        // Step 3: convert the interval to a decimal power, vr * 10^e10
+        long vr;
+        long vp;
+        long vm;
+        int e10;
+        boolean vmIsTrailingZeros = false;
+        boolean vrIsTrailingZeros = false;
+        if (e2 >= 0) {
+            int q = log10Pow2(e2) - (e2 > 3 ? 1 : 0);
+            e10 = q;
+            int k = POW5_INV_BITCOUNT + pow5Bits(q) - 1;
+            int shift = -e2 + q + k;
+            vr = mulShift(mv, POW5_INV, q, shift);
+            vp = mulShift(mp, POW5_INV, q, shift);
+            vm = mulShift(mm, POW5_INV, q, shift);
+            if (q <= 21) {
+                // Only one of mp, mv and mm can be a multiple of 5, if any
+                if (mv % 5 == 0) {
+                    vrIsTrailingZeros = isMultipleOfPowerOf5(mv, q);
+                } else if (acceptBounds) {
+                    vmIsTrailingZeros = isMultipleOfPowerOf5(mm, q);
+                } else if (isMultipleOfPowerOf5(mp, q)) {
+                    vp -= 1;
+                }
+            }
+        } else {
+            int q = log10Pow5(-e2) - (-e2 > 1 ? 1 : 0);
+            e10 = q + e2;
+            int i = -e2 - q;
+            int k = pow5Bits(i) - POW5_BITCOUNT;
+            int shift = q - k;
+            vr = mulShift(mv, POW5, i, shift);
+            vp = mulShift(mp, POW5, i, shift);
+            vm = mulShift(mm, POW5, i, shift);
+            if (q <= 1) {
+                // mv = 4 * m2 always has at least two trailing zero bits
+                vrIsTrailingZeros = true;
+                if (acceptBounds) {
+                    vmIsTrailingZeros = mmShift == 1;
+                } else {
+                    vp -= 1;
+                }
+            } else if (q < 63) {
+                vrIsTrailingZeros = (mv & ((1L << q) - 1)) == 0;
+            }
+        }
+
+        // Step 4: remove as many digits as possible while staying inside the
+        // interval, rounding the last removed digit correctly
+        int removed = 0;
+        int lastRemovedDigit = 0;
+        long output;
+        if (vmIsTrailingZeros || vrIsTrailingZeros) {
+            while (vp / 10 > vm / 10) {
+                vmIsTrailingZeros &= vm % 10 == 0;
+                vrIsTrailingZeros &= lastRemovedDigit == 0;
+                lastRemovedDigit = (int) (vr % 10);
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed += 1;
+            }
+            if (vmIsTrailingZeros) {
+                while (vm % 10 == 0) {
+                    vrIsTrailingZeros &= lastRemovedDigit == 0;
+                    lastRemovedDigit = (int) (vr % 10);
+                    vr /= 10;
+                    vp /= 10;
+                    vm /= 10;
+                    removed += 1;
+                }
+            }
+            if (vrIsTrailingZeros && lastRemovedDigit == 5 && vr % 2 == 0) {
+                // Exactly halfway between two outputs, so round to even
+                lastRemovedDigit = 4;
+            }
+            boolean roundUp = (vr == vm && (!acceptBounds || !vmIsTrailingZeros))
+                    || lastRemovedDigit >= 5;
+            output = vr + (roundUp ? 1 : 0);
+        } else {
+            boolean roundUp = false;
+            while (vp / 10 > vm / 10) {
+                roundUp = vr % 10 >= 5;
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed += 1;
+            }
+            output = vr + ((vr == vm || roundUp) ? 1 : 0);
+        }
+        int exponent = e10 + removed;
+
+        // Step 5: lay out the digits the way 'Double.toString' does
+        int length = decimalLength(output);
+        int scientificExponent = exponent + length - 1;
+        if (scientificExponent >= -3 && scientificExponent < 7) {
+            if (scientificExponent < 0) {
+                buf[index++] = '0';
+                buf[index++] = '.';
+                for (int i = -1; i > scientificExponent; i--) {
+                    buf[index++] = '0';
+                }
+                index = writeDigits(output, length, index);
+            } else if (length <= scientificExponent + 1) {
+                index = writeDigits(output, length, index);
+                for (int i = length; i <= scientificExponent; i++) {
+                    buf[index++] = '0';
+                }
+                buf[index++] = '.';
+                buf[index++] = '0';
+            } else {
+                // Write the digits shifted right by one, then move the
+                // integer part left over the gap left for the point
+                int start = index;
+                writeDigits(output, length, start + 1);
+                for (int i = 0; i <= scientificExponent; i++) {
+                    buf[start + i] = buf[start + i + 1];
+                }
+                buf[start + scientificExponent + 1] = '.';
+                index = start + length + 1;
+            }
+        } else {
+            int start = index;
+            writeDigits(output, length, start + 1);
+            buf[start] = buf[start + 1];
+            buf[start + 1] = '.';
+            index = start + length + 1;
+            if (length == 1) {
+                buf[index++] = '0';
+            }
+            buf[index++] = 'E';
+            int exp = scientificExponent;
+            if (exp < 0) {
+                buf[index++] = '-';
+                exp = -exp;
+            }
+            if (exp >= 100) {
+                buf[index++] = (char) ('0' + exp / 100);
+            }
+            if (exp >= 10) {
+                buf[index++] = (char) ('0' + (exp / 10) % 10);
+            }
+            buf[index++] = (char) ('0' + exp % 10);
+        }
+        return index;
+    }
+
+    // Writes the given number of digits of 'value' starting at 'index', and
+    // returns the index just past them
+    private int writeDigits(long value, int length, int index) {
+        for (int i = index + length - 1; i >= index; i--) {
+            this.buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return index + length;
+    }
+
+    private int copy(String text, int index) {
+        text.getChars(0, text.length(), this.buffer, index);
+        return index + text.length();
+    }
+
+    // Returns the number of decimal digits in the given non-negative value
+    private static int decimalLength(long value) {
+        int length = 1;
+        long limit = 10;
+        while (length < 19 && value >= limit) {
+            length += 1;
+            limit *= 10;
+        }
+        return length;
+    }
+
+    // Returns ceil(log2(5^e)), or 1 when e is 0
+    private static int pow5Bits(int e) {
+        return (int) (((e * 1217359L) >>> 19) + 1);
+    }
+
+    // Returns floor(log10(2^e))
+    private static int log10Pow2(int e) {
+        return (int) ((e * 78913L) >>> 18);
+    }
+
+    // Returns floor(log10(5^e))
+    private static int log10Pow5(int e) {
+        return (int) ((e * 732923L) >>> 20);
+    }
+
+    private static boolean isMultipleOfPowerOf5(long value, int power) {
+        int count = 0;
+        while (value > 0 && value % 5 == 0) {
+            value /= 5;
+            count += 1;
+        }
+        return count >= power;
+    }
+
+    // Returns (m * table[index]) >> shift, where the table entry is a 128-bit
+    // number and the result is known to fit in 64 bits
+    private static long mulShift(long m, long[] table, int index, int shift) {
+        long low = table[2 * index];
+        long high = table[2 * index + 1];
+
+        // (m * low) >> 64, plus m * high, as a 128-bit sum
+        long lowProductHigh = multiplyHighUnsigned(m, low);
+        long highProductLow = m * high;
+        long highProductHigh = multiplyHighUnsigned(m, high);
+        long sumLow = highProductLow + lowProductHigh;
+        long sumHigh = highProductHigh + (Long.compareUnsigned(sumLow, highProductLow) < 0 ? 1 : 0);
+
+        int remaining = shift - 64;
+        if (remaining == 0) {
+            return sumLow;
+        } else if (remaining < 64) {
+            return (sumHigh << (64 - remaining)) | (sumLow >>> remaining);
+        } else {
+            return sumHigh >>> (remaining - 64);
+        }
+    }
+
+    // Returns the high 64 bits of the unsigned 128-bit product of a and b
+    private static long multiplyHighUnsigned(long a, long b) {
+        long aLow = a & 0xFFFFFFFFL;
+        long aHigh = a >>> 32;
+        long bLow = b & 0xFFFFFFFFL;
+        long bHigh = b >>> 32;
+        long lowLow = aLow * bLow;
+        long highLow = aHigh * bLow;
+        long lowHigh = aLow * bHigh;
+        long highHigh = aHigh * bHigh;
+        long cross = (lowLow >>> 32) + (highLow & 0xFFFFFFFFL) + lowHigh;
+        return (highLow >>> 32) + (cross >>> 32) + highHigh;
+    }
+}
@@ -2,8 +2,13 @@ package calculator.interpreter;
 
 import calculator.ast.AstNode;
 import calculator.ast.AstManipulator;
+import calculator.ast.PlotCache;
+import calculator.ast.RuleSet;
+import calculator.ast.SimplifyCache;
 import calculator.gui.ImageDrawer;
+import datastructures.concrete.DoubleLinkedList;
 import datastructures.interfaces.IDictionary;
+import datastructures.interfaces.IList;
 
 /**
  * An 'Environment' object is a wrapper around every single item in
@@ -19,28 +24,138 @@ import datastructures.interfaces.IDictionary;
  *
  * You can ignore all other methods -- they're used internally by
  * the code you were provided.
+ *
+ * Environments can be chained: 'pushFrame' returns a child environment
+ * whose variables are a VariableFrame of local bindings over this one's.
+ * Builtins that need a temporary binding evaluate in the child and simply
+ * drop it (or call 'popFrame') when done, so the binding never touches the
+ * global variables, cannot leak if evaluation throws part way through, and
+ * is private to whichever thread pushed it.
  */
 public class Environment {
     private IDictionary<String, AstNode> variables;
     private ImageDrawer imageDrawer;
-    private IDictionary<String, AstManipulator> customFunctions;
-    private IDictionary<String, AstManipulator> specialFunctions;
+    private FunctionTable functions;
     private Interpreter interpreter;
+    private SimplifyCache simplifyCache;
+    private PlotCache plotCache;
+    private DependencyGraph dependencyGraph;
+    private EvaluationBudget budget;
+    private RuleSet simplifyRules;
+    private Environment parent;
 
     public Environment(IDictionary<String, AstNode> variables,
                        ImageDrawer imageDrawer,
-                       IDictionary<String, AstManipulator> customFunctions,
-                       IDictionary<String, AstManipulator> specialFunctions,
-                       Interpreter interpreter) {
+                       FunctionTable functions,
+                       Interpreter interpreter,
+                       SimplifyCache simplifyCache,
+                       PlotCache plotCache,
+                       DependencyGraph dependencyGraph,
+                       EvaluationBudget budget) {
         this.variables = variables;
         this.imageDrawer = imageDrawer;
-        this.customFunctions = customFunctions;
-        this.specialFunctions = specialFunctions;
+        this.functions = functions;
         this.interpreter = interpreter;
+        this.simplifyCache = simplifyCache;
+        this.plotCache = plotCache;
+        this.dependencyGraph = dependencyGraph;
+        this.budget = budget == null ? EvaluationBudget.unlimited() : budget;
+        this.simplifyRules = RuleSet.standard();
+        this.parent = null;
+    }
+
+    /**
+     * Returns a child of this environment in which 'names[i]' is bound to
+     * 'values[i]', shadowing any variable of the same name. Every other
+     * variable is looked up in this environment, and everything else
+     * (functions, budget, image drawer, and so on) is shared with it.
+     *
+     * The child has no simplify cache or dependency graph, since whatever
+     * those remember only holds for the variables of this environment.
+     *
+     * Takes time proportional to the number of locals, not the number of
+     * variables.
+     */
+    public Environment pushFrame(String[] names, AstNode[] values) {
+        Environment child = new Environment(
+                new VariableFrame(this.variables, names, values),
+                this.imageDrawer,
+                this.functions,
+                this.interpreter,
+                null,
+                this.plotCache,
+                null,
+                this.budget);
+        child.simplifyRules = this.simplifyRules;
+        child.parent = this;
+        return child;
+    }
+
+    /**
+     * Returns a child of this environment with a single local, as above.
+     */
+    public Environment pushFrame(String name, AstNode value) {
+        return this.pushFrame(new String[] {name}, new AstNode[] {value});
+    }
+
+    /**
+     * Returns the environment this one was pushed from. Any local bindings
+     * made in this one are gone.
+     *
+     * @throws IllegalStateException  if this is not a child environment
+     */
+    public Environment popFrame() {
+        if (this.parent == null) {
+            throw new IllegalStateException("No frame to pop");
+        }
+        return this.parent;
     }
 
     /**
-     * Contains a map of every single currently defined variable.
+     * Returns whether this environment was created by 'pushFrame'.
+     */
+    public boolean isFrame() {
+        return this.parent != null;
+    }
+
+    /**
+     * Rebinds the local in the given slot of this environment's frame, so
+     * a loop can sweep a variable through many values without allocating a
+     * frame per value.
+     *
+     * @throws IllegalStateException      if this is not a child environment
+     * @throws IndexOutOfBoundsException  if there is no such slot
+     */
+    public void setLocal(int slot, AstNode value) {
+        if (this.parent == null) {
+            throw new IllegalStateException("No frame to set a local in");
+        }
+        ((VariableFrame) this.variables).set(slot, value);
+    }
+
+    /**
+     * Returns the names of the locals of this environment's frame in slot
+     * order, so an expression can be compiled with those locals as its
+     * slots (see StackProgram.compile).
+     *
+     * @throws IllegalStateException  if this is not a child environment
+     */
+    public IList<String> getLocalNames() {
+        if (this.parent == null) {
+            throw new IllegalStateException("No frame to list the locals of");
+        }
+        VariableFrame frame = (VariableFrame) this.variables;
+        IList<String> names = new DoubleLinkedList<>();
+        for (int i = 0; i < frame.getLocalCount(); i++) {
+            names.add(frame.getName(i));
+        }
+        return names;
+    }
+
+    /**
+     * Contains a map of every single currently defined variable, including
+     * the locals of this environment and every environment it was pushed
+     * from.
      */
     public IDictionary<String, AstNode> getVariables() {
         return this.variables;
@@ -67,7 +182,7 @@ public class Environment {
      * You should ignore this method.
      */
     public IDictionary<String, AstManipulator> getCustomFunctions() {
-        return this.customFunctions;
+        return this.functions.getCustomFunctions();
     }
 
     /**
@@ -77,7 +192,17 @@ public class Environment {
      * You should ignore this method.
      */
     public IDictionary<String, AstManipulator> getSpecialFunctions() {
-        return this.specialFunctions;
+        return this.functions.getSpecialFunctions();
+    }
+
+    /**
+     * Returns the table holding both the custom and the special functions,
+     * used to bind operation nodes to the function they call.
+     *
+     * You should ignore this method.
+     */
+    public FunctionTable getFunctionTable() {
+        return this.functions;
     }
 
     /**
@@ -89,4 +214,63 @@ public class Environment {
     public Interpreter getInterpreter() {
         return this.interpreter;
     }
+
+    /**
+     * Returns the cache of previously simplified expressions, or null in an
+     * environment created by 'pushFrame'.
+     *
+     * Whenever a variable is (re)defined, the cache must be told about it
+     * through 'invalidate'.
+     */
+    public SimplifyCache getSimplifyCache() {
+        return this.simplifyCache;
+    }
+
+    /**
+     * Returns the cache of previously computed plot samples, or null if
+     * plots should always be sampled from scratch.
+     */
+    public PlotCache getPlotCache() {
+        return this.plotCache;
+    }
+
+    /**
+     * Returns the graph of which variables depend on which, along with the
+     * remembered value of each variable, or null in an environment created
+     * by 'pushFrame'.
+     *
+     * Whenever a variable is (re)defined, the graph must be told about it
+     * through 'define'.
+     */
+    public DependencyGraph getDependencyGraph() {
+        return this.dependencyGraph;
+    }
+
+    /**
+     * Returns the limits on how much work the current evaluation may do.
+     *
+     * Long-running loops should report their progress to the budget, which
+     * throws a BudgetExceededError once a limit is exceeded. This method never
+     * returns null.
+     */
+    public EvaluationBudget getBudget() {
+        return this.budget;
+    }
+
+    /**
+     * Returns the identities 'simplify' applies, which are RuleSet.standard()
+     * unless set otherwise.
+     */
+    public RuleSet getSimplifyRules() {
+        return this.simplifyRules;
+    }
+
+    /**
+     * Sets the identities 'simplify' applies. Whatever the simplify cache
+     * and dependency graph remember was simplified with the old rules, so
+     * callers changing the rules must make sure those are cleared.
+     */
+    public void setSimplifyRules(RuleSet simplifyRules) {
+        this.simplifyRules = simplifyRules;
+    }
 }
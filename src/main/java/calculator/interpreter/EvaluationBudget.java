@@ -0,0 +1,200 @@
+package calculator.interpreter;
+
+import calculator.errors.BudgetExceededError;
+import calculator.errors.EvaluationCancelledError;
+
+/**
+ * Caps how much work a single evaluation may do: how many nodes it visits,
+ * how many new nodes it allocates, how deeply it nests, and how long it runs.
+ *
+ * The interpreter and the expression manipulators report their progress to
+ * the budget as they go. As soon as any limit is exceeded, the budget throws
+ * a BudgetExceededError describing how much of each resource was used.
+ *
+ * A budget is reset at the start of every evaluation, so the same object can
+ * be reused for every input a Calculator receives.
+ *
+ * Another thread may stop an evaluation early by calling 'cancel'. Since
+ * every loop already reports its progress here, the evaluation notices the
+ * next time it does, and throws an EvaluationCancelledError.
+ */
+public class EvaluationBudget {
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    // Reading the clock is comparatively slow, so only check the time limit
+    // once per this many visited nodes
+    private static final int CLOCK_CHECK_INTERVAL = 1024;
+
+    // Time limits longer than this (about 292 years) cannot be expressed in
+    // nanoseconds, so they are treated as unlimited
+    private static final long MAX_FINITE_MILLIS = Long.MAX_VALUE / 1000000L;
+
+    private final long maxNodesVisited;
+    private final long maxNodesAllocated;
+    private final long maxDepth;
+    private final long maxMillis;
+
+    private long nodesVisited;
+    private long nodesAllocated;
+    private int deepest;
+    private long startNanos;
+    private boolean hasDeadline;
+    private long deadlineNanos;
+    private int untilClockCheck;
+    private volatile boolean cancelled;
+
+    /**
+     * Creates a budget with the given limits. Pass UNLIMITED for any limit
+     * that should not be enforced.
+     */
+    public EvaluationBudget(long maxNodesVisited, long maxNodesAllocated, long maxDepth, long maxMillis) {
+        this.maxNodesVisited = maxNodesVisited;
+        this.maxNodesAllocated = maxNodesAllocated;
+        this.maxDepth = maxDepth;
+        this.maxMillis = maxMillis;
+        this.reset();
+    }
+
+    /**
+     * Returns a budget that never runs out.
+     */
+    public static EvaluationBudget unlimited() {
+        return new EvaluationBudget(UNLIMITED, UNLIMITED, UNLIMITED, UNLIMITED);
+    }
+
+    /**
+     * Clears all usage and any cancellation, and restarts the clock.
+     */
+    public void reset() {
+        this.nodesVisited = 0;
+        this.nodesAllocated = 0;
+        this.deepest = 0;
+        this.startNanos = System.nanoTime();
+        // The deadline may wrap around, like nanoTime itself, so it is only
+        // ever compared by subtracting
+        this.hasDeadline = this.maxMillis <= MAX_FINITE_MILLIS;
+        this.deadlineNanos = this.hasDeadline ? this.startNanos + this.maxMillis * 1000000L : 0;
+        this.untilClockCheck = CLOCK_CHECK_INTERVAL;
+        this.cancelled = false;
+    }
+
+    /**
+     * Asks the evaluation currently using this budget to stop. May be
+     * called from any thread; the evaluation throws an
+     * EvaluationCancelledError the next time it reports any progress.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Records that a node was visited 'depth' levels below the root of the
+     * expression currently being walked.
+     *
+     * @throws BudgetExceededError  if this exceeds the visit, depth, or time limit
+     * @throws EvaluationCancelledError  if the evaluation was cancelled
+     */
+    public void visit(int depth) {
+        if (depth > this.deepest) {
+            this.deepest = depth;
+            if (depth > this.maxDepth) {
+                throw this.exceeded("depth");
+            }
+        }
+        this.visitMany(1);
+    }
+
+    /**
+     * Records that 'count' nodes were visited at once, for example when
+     * evaluating a compiled expression of that size.
+     *
+     * @throws BudgetExceededError  if this exceeds the visit or time limit
+     * @throws EvaluationCancelledError  if the evaluation was cancelled
+     */
+    public void visitMany(long count) {
+        if (this.cancelled) {
+            throw new EvaluationCancelledError();
+        }
+        this.nodesVisited += count;
+        if (this.nodesVisited > this.maxNodesVisited) {
+            throw this.exceeded("node visit");
+        }
+        this.untilClockCheck -= 1;
+        if (this.untilClockCheck <= 0) {
+            this.untilClockCheck = CLOCK_CHECK_INTERVAL;
+            this.checkTime();
+        }
+    }
+
+    /**
+     * Records that 'count' new nodes were allocated.
+     *
+     * @throws BudgetExceededError  if this exceeds the allocation limit
+     * @throws EvaluationCancelledError  if the evaluation was cancelled
+     */
+    public void allocate(long count) {
+        if (this.cancelled) {
+            throw new EvaluationCancelledError();
+        }
+        this.nodesAllocated += count;
+        if (this.nodesAllocated > this.maxNodesAllocated) {
+            throw this.exceeded("node allocation");
+        }
+    }
+
+    /**
+     * Checks the time limit right away, regardless of how recently it was
+     * last checked.
+     *
+     * @throws BudgetExceededError  if the time limit has passed
+     * @throws EvaluationCancelledError  if the evaluation was cancelled
+     */
+    public void checkTime() {
+        if (this.cancelled) {
+            throw new EvaluationCancelledError();
+        }
+        if (this.hasDeadline && System.nanoTime() - this.deadlineNanos > 0) {
+            throw this.exceeded("time");
+        }
+    }
+
+    /**
+     * Reports that a pass ran out of the rewrites it may make before it was
+     * done. What it has rewritten so far is only part of the result, so the
+     * evaluation stops here rather than returning (or caching) it.
+     *
+     * @throws BudgetExceededError  always
+     */
+    public void rewritesExhausted() {
+        throw this.exceeded("rewrite");
+    }
+
+    public long getNodesVisited() {
+        return this.nodesVisited;
+    }
+
+    public long getNodesAllocated() {
+        return this.nodesAllocated;
+    }
+
+    public int getMaxDepth() {
+        return this.deepest;
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - this.startNanos) / 1000000L;
+    }
+
+    private BudgetExceededError exceeded(String limit) {
+        return new BudgetExceededError(
+                limit,
+                this.nodesVisited,
+                this.nodesAllocated,
+                this.deepest,
+                this.getElapsedMillis());
+    }
+}
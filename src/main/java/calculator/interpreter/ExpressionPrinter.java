@@ -0,0 +1,230 @@
+package calculator.interpreter;
+
+import calculator.ast.AstNode;
+import datastructures.interfaces.IDictionary;
+import datastructures.interfaces.IList;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Converts an AstNode back into the text a user would type, adding
+ * parentheses only where the precedence of the operators requires them.
+ *
+ * The output is streamed into an Appendable in a single pass over the tree,
+ * using an explicit stack rather than recursion. Numbers are written using
+ * a DoubleFormatter, so printing does not build any intermediate strings.
+ *
+ * Printing can optionally stop after a given number of characters, so that
+ * very large results do not turn into equally large strings.
+ */
+public class ExpressionPrinter {
+    /**
+     * Passed as the maximum length when the output should never be cut short.
+     */
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    /**
+     * Written after the output when it had to be cut short.
+     */
+    public static final String ELLIPSIS = "...";
+
+    private static final int STRONGEST_PRECEDENCE = 0;
+    private static final int WEAKEST_PRECEDENCE = Integer.MAX_VALUE;
+
+    private final IDictionary<String, Integer> precedenceMap;
+    private final DoubleFormatter formatter;
+
+    /**
+     * Creates a printer using the given precedence levels, where lower
+     * numbers bind more strongly. Operations that are not listed are printed
+     * as function calls.
+     */
+    public ExpressionPrinter(IDictionary<String, Integer> precedenceMap) {
+        this.precedenceMap = precedenceMap;
+        this.formatter = new DoubleFormatter();
+    }
+
+    /**
+     * Returns the given node as a string.
+     */
+    public String toString(AstNode node) {
+        return this.toString(node, UNLIMITED);
+    }
+
+    /**
+     * Returns the given node as a string, cut short after 'maxLength'
+     * characters as described in 'print'.
+     */
+    public String toString(AstNode node, long maxLength) {
+        StringBuilder out = new StringBuilder();
+        try {
+            this.print(node, out, maxLength);
+        } catch (IOException ex) {
+            // StringBuilder never throws
+            throw new AssertionError(ex);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes the given node to 'out'.
+     */
+    public void print(AstNode node, Appendable out) throws IOException {
+        this.print(node, out, UNLIMITED);
+    }
+
+    /**
+     * Writes the given node to 'out'. If the text would be longer than
+     * 'maxLength' characters, only the first 'maxLength' characters are
+     * written, followed by ELLIPSIS.
+     */
+    public void print(AstNode node, Appendable out, long maxLength) throws IOException {
+        LimitedAppendable limited = new LimitedAppendable(out, maxLength);
+
+        // Each task either prints a node or emits a fixed piece of text. Tasks
+        // are pushed in reverse, so they pop off the stack in output order.
+        Deque<PrintTask> tasks = new ArrayDeque<>();
+        tasks.push(new PrintTask(node, WEAKEST_PRECEDENCE));
+        while (!tasks.isEmpty() && !limited.isTruncated()) {
+            PrintTask task = tasks.pop();
+            if (task.text != null) {
+                limited.append(task.text);
+            } else if (task.node.isNumber()) {
+                double val = task.node.getNumericValue();
+                if (val == (long) val) {
+                    this.formatter.appendLong((long) val, limited);
+                } else {
+                    this.formatter.appendDouble(val, limited);
+                }
+            } else if (task.node.isVariable()) {
+                limited.append(task.node.getName());
+            } else {
+                this.pushOperation(tasks, task.node, task.parentPrecedenceLevel);
+            }
+        }
+        if (limited.isTruncated()) {
+            out.append(ELLIPSIS);
+        }
+    }
+
+    private void pushOperation(Deque<PrintTask> tasks, AstNode node, int parentPrecedenceLevel) {
+        String name = node.getName();
+
+        boolean hasPrecedence = this.precedenceMap.containsKey(name);
+        int currPrecedenceLevel = hasPrecedence ? this.precedenceMap.get(name) : STRONGEST_PRECEDENCE;
+        int childPrecedenceLevel = hasPrecedence ? currPrecedenceLevel : WEAKEST_PRECEDENCE;
+        boolean needsParens = currPrecedenceLevel > parentPrecedenceLevel;
+
+        IList<AstNode> children = node.getChildren();
+        String prefix;
+        String connector;
+        String suffix;
+        int count = children.size();
+        if ("-+*/^".contains(name)) {
+            prefix = "";
+            connector = " " + name + " ";
+            suffix = "";
+        } else if ("negate".equals(name)) {
+            prefix = "-";
+            connector = "";
+            suffix = "";
+            count = 1;
+        } else {
+            prefix = name + "(";
+            connector = ", ";
+            suffix = ")";
+        }
+
+        AstNode[] printed = new AstNode[count];
+        Iterator<AstNode> iter = children.iterator();
+        for (int i = 0; i < count; i++) {
+            printed[i] = iter.next();
+        }
+
+        if (needsParens) {
+            tasks.push(new PrintTask(")"));
+        }
+        tasks.push(new PrintTask(suffix));
+        for (int i = count - 1; i >= 0; i--) {
+            tasks.push(new PrintTask(printed[i], childPrecedenceLevel));
+            if (i > 0) {
+                tasks.push(new PrintTask(connector));
+            }
+        }
+        tasks.push(new PrintTask(prefix));
+        if (needsParens) {
+            tasks.push(new PrintTask("("));
+        }
+    }
+
+    private static class PrintTask {
+        public final AstNode node;
+        public final int parentPrecedenceLevel;
+        public final String text;
+
+        public PrintTask(AstNode node, int parentPrecedenceLevel) {
+            this.node = node;
+            this.parentPrecedenceLevel = parentPrecedenceLevel;
+            this.text = null;
+        }
+
+        public PrintTask(String text) {
+            this.node = null;
+            this.parentPrecedenceLevel = WEAKEST_PRECEDENCE;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Passes characters through to another Appendable until a limit is
+     * reached, then drops the rest and remembers that it had to.
+     */
+    private static class LimitedAppendable implements Appendable {
+        private final Appendable out;
+        private final long maxLength;
+        private long length;
+        private boolean truncated;
+
+        public LimitedAppendable(Appendable out, long maxLength) {
+            this.out = out;
+            this.maxLength = maxLength;
+            this.length = 0;
+            this.truncated = false;
+        }
+
+        public boolean isTruncated() {
+            return this.truncated;
+        }
+
+        @Override
+        public Appendable append(CharSequence text) throws IOException {
+            return this.append(text, 0, text.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence text, int start, int end) throws IOException {
+            long room = this.maxLength - this.length;
+            if (end - start > room) {
+                end = start + (int) room;
+                this.truncated = true;
+            }
+            this.out.append(text, start, end);
+            this.length += end - start;
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) throws IOException {
+            if (this.length >= this.maxLength) {
+                this.truncated = true;
+            } else {
+                this.out.append(c);
+                this.length += 1;
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package calculator.interpreter;
+
+import calculator.ast.AstManipulator;
+import calculator.ast.AstNode;
+import datastructures.concrete.dictionaries.ArrayDictionary;
+import datastructures.interfaces.IDictionary;
+
+/**
+ * Holds every custom and special function the interpreter knows about, and
+ * resolves operation nodes against them ahead of time.
+ *
+ * Rather than looking up each operation's name every time it is evaluated,
+ * 'bind' attaches the matching function (or the fact that there is none)
+ * directly to the node, tagged with this table's current stamp. The
+ * interpreter then only needs to check that the stamp is still current.
+ * Adding or replacing a function creates a new stamp, which makes every
+ * existing binding stale so it will be resolved again on next use.
+ */
+public class FunctionTable {
+    private final IDictionary<String, AstManipulator> customFunctions;
+    private final IDictionary<String, AstManipulator> specialFunctions;
+    private Object stamp;
+
+    public FunctionTable() {
+        this.customFunctions = new ArrayDictionary<>();
+        this.specialFunctions = new ArrayDictionary<>();
+        this.stamp = new Object();
+    }
+
+    /**
+     * Adds a function that is applied to an operation after its children
+     * have been evaluated.
+     */
+    public void putCustom(String name, AstManipulator function) {
+        this.customFunctions.put(name, function);
+        this.stamp = new Object();
+    }
+
+    /**
+     * Adds a function that takes complete control over evaluating its
+     * operation, children included.
+     */
+    public void putSpecial(String name, AstManipulator function) {
+        this.specialFunctions.put(name, function);
+        this.stamp = new Object();
+    }
+
+    /**
+     * Returns every custom function. Functions must be added through
+     * 'putCustom' rather than by modifying this dictionary, or existing
+     * bindings will not notice the change.
+     */
+    public IDictionary<String, AstManipulator> getCustomFunctions() {
+        return this.customFunctions;
+    }
+
+    /**
+     * Returns every special function. Functions must be added through
+     * 'putSpecial' rather than by modifying this dictionary, or existing
+     * bindings will not notice the change.
+     */
+    public IDictionary<String, AstManipulator> getSpecialFunctions() {
+        return this.specialFunctions;
+    }
+
+    /**
+     * Makes sure the given operation node is bound to the function of the
+     * same name in this table, resolving it only if it is not bound yet or
+     * the table has changed since. Returns the node.
+     */
+    public AstNode bind(AstNode node) {
+        if (node.isBoundTo(this.stamp)) {
+            return node;
+        }
+        String name = node.getName();
+        if (this.specialFunctions.containsKey(name)) {
+            node.setBinding(this.stamp, this.specialFunctions.get(name), true);
+        } else if (this.customFunctions.containsKey(name)) {
+            node.setBinding(this.stamp, this.customFunctions.get(name), false);
+        } else {
+            node.setBinding(this.stamp, null, false);
+        }
+        return node;
+    }
+}
@@ -1,35 +1,70 @@
 package calculator.interpreter;
 
+import calculator.ast.AstManipulator;
 import calculator.ast.AstNode;
-import datastructures.concrete.DoubleLinkedList;
-import datastructures.interfaces.IList;
+import calculator.ast.ExpressionFlattener;
+import calculator.ast.TraversalFrame;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 public class Interpreter {
+    /**
+     * Evaluates the given node, innermost operations first.
+     *
+     * The tree is walked with an explicit stack instead of recursion, so
+     * its depth is limited by the heap rather than by the thread stack.
+     *
+     * Each operation calls the function it was bound to by the environment's
+     * function table. Nodes that were not bound ahead of time (or were bound
+     * before the table last changed) are bound when they are first reached.
+     *
+     * Evaluation is copy-on-write: a plain operation none of whose children
+     * changed is returned as is, so only the paths that actually change are
+     * reallocated.
+     */
     public AstNode evaluate(Environment env, AstNode node) {
-        if (node.isNumber()) {
-            return node;
-        } else if (node.isVariable()) {
+        if (!node.isOperation()) {
             return node;
-        } else if (node.isOperation()) {
-            String nodeName = node.getName();
-            if (env.getSpecialFunctions().containsKey(nodeName)) {
-                // Special functions take complete control
-                return env.getSpecialFunctions().get(nodeName).manipulate(env, node);
+        }
+        FunctionTable functions = env.getFunctionTable();
+        if (functions.bind(node).isBoundToSpecialFunction()) {
+            // Special functions take complete control
+            return node.getBoundFunction().manipulate(env, node);
+        }
+
+        EvaluationBudget budget = env.getBudget();
+        Deque<TraversalFrame> frames = new ArrayDeque<>();
+        frames.push(new TraversalFrame(node));
+        while (true) {
+            TraversalFrame frame = frames.peek();
+            budget.visit(frames.size());
+            if (frame.oldChildren.hasNext()) {
+                AstNode oldChild = frame.oldChildren.next();
+                if (!oldChild.isOperation()) {
+                    frame.add(oldChild, oldChild);
+                } else if (functions.bind(oldChild).isBoundToSpecialFunction()) {
+                    frame.add(oldChild, oldChild.getBoundFunction().manipulate(env, oldChild));
+                } else {
+                    frames.push(new TraversalFrame(oldChild));
+                }
             } else {
                 // Regular, custom functions are executed normally
-                IList<AstNode> children = new DoubleLinkedList<>();
-                for (AstNode oldChild : node.getChildren()) {
-                    children.add(evaluate(env, oldChild));
+                frames.pop();
+                budget.visitMany(ExpressionFlattener.flattenedVisits(frame.node));
+                AstNode output = frame.rebuild();
+                if (output != frame.node) {
+                    budget.allocate(1);
                 }
-
-                AstNode output = new AstNode(node.getName(), children);
-                if (env.getCustomFunctions().containsKey(nodeName)) {
-                    output = env.getCustomFunctions().get(nodeName).manipulate(env, output);
+                AstManipulator function = frame.node.getBoundFunction();
+                if (function != null) {
+                    output = function.manipulate(env, output);
+                }
+                if (frames.isEmpty()) {
+                    return output;
                 }
-                return output;
+                frames.peek().add(frame.node, output);
             }
-        } else {
-            throw new AssertionError();
         }
     }
 }
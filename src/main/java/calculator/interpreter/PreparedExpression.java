@@ -0,0 +1,211 @@
+package calculator.interpreter;
+
+import calculator.ast.AstNode;
+import calculator.ast.BytecodeCompiler;
+import calculator.ast.CompiledExpression;
+import calculator.ast.StackProgram;
+import calculator.errors.EvaluationError;
+import datastructures.concrete.DoubleLinkedList;
+import datastructures.interfaces.IList;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A numeric expression that has already been parsed, simplified and compiled,
+ * so it can be evaluated many times with different inputs.
+ *
+ * Every variable that was undefined when the expression was prepared becomes
+ * a slot, whose value is set using 'bind' (by name) or 'setSlot' (by index).
+ * Variables that were defined at the time are baked in as constants, so later
+ * assignments made through the Calculator do not affect this expression.
+ *
+ * Expressions are evaluated through a StackProgram at first. Once one has
+ * been evaluated BYTECODE_THRESHOLD times, it is compiled into a JVM class
+ * (see BytecodeCompiler), which the JIT can then compile to machine code,
+ * and every later evaluation goes through that instead. Expressions too
+ * large for the JVM to load as a single method stay on the StackProgram.
+ * Both compute every operation the same way, so switching never changes
+ * the result.
+ *
+ * Binding and evaluating do not allocate, other than when the expression is
+ * compiled to bytecode. A PreparedExpression keeps its own slot values and
+ * operand stack, so it must not be used by two threads at once.
+ */
+public class PreparedExpression {
+    /**
+     * How many times an expression is evaluated through its StackProgram
+     * before it is compiled to bytecode. Defining a class costs about as
+     * much as this many evaluations of a typical expression.
+     */
+    public static final int BYTECODE_THRESHOLD = 10000;
+
+    private final AstNode expression;
+    private final StackProgram program;
+    private CompiledExpression compiled;
+    private int evaluationCount;
+    private final String[] slotNames;
+    private final Map<String, Integer> slotIndices;
+    private final double[] slots;
+    private final boolean[] bound;
+    private int unboundCount;
+
+    /**
+     * Compiles the given, already simplified, expression.
+     *
+     * @throws EvaluationError  if the expression is not purely numeric
+     */
+    PreparedExpression(AstNode expression) {
+        IList<String> names = freeVariables(expression);
+        this.expression = expression;
+        this.program = StackProgram.compile(expression, names);
+        this.compiled = this.program;
+        this.evaluationCount = 0;
+        this.slotNames = new String[names.size()];
+        this.slotIndices = new HashMap<>();
+        int index = 0;
+        for (String name : names) {
+            this.slotNames[index] = name;
+            this.slotIndices.put(name, index);
+            index += 1;
+        }
+        this.slots = new double[this.slotNames.length];
+        this.bound = new boolean[this.slotNames.length];
+        this.unboundCount = this.slotNames.length;
+    }
+
+    /**
+     * Returns the simplified expression this was compiled from.
+     */
+    public AstNode getExpression() {
+        return this.expression;
+    }
+
+    /**
+     * Returns the number of slots, which is the number of distinct free
+     * variables in the expression.
+     */
+    public int getSlotCount() {
+        return this.slotNames.length;
+    }
+
+    /**
+     * Returns the name of the variable read from the given slot.
+     */
+    public String getSlotName(int index) {
+        return this.slotNames[index];
+    }
+
+    /**
+     * Returns the slot the given variable is read from, or -1 if the
+     * expression does not use that variable.
+     */
+    public int getSlotIndex(String var) {
+        Integer index = this.slotIndices.get(var);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Sets the value of the given variable for later evaluations.
+     *
+     * @throws EvaluationError  if the expression does not use that variable
+     */
+    public PreparedExpression bind(String var, double value) {
+        Integer index = this.slotIndices.get(var);
+        if (index == null) {
+            throw new EvaluationError("Unknown variable: " + var);
+        }
+        return this.setSlot(index, value);
+    }
+
+    /**
+     * Sets the value of the variable in the given slot for later evaluations.
+     */
+    public PreparedExpression setSlot(int index, double value) {
+        this.slots[index] = value;
+        if (!this.bound[index]) {
+            this.bound[index] = true;
+            this.unboundCount -= 1;
+        }
+        return this;
+    }
+
+    /**
+     * Evaluates the expression using the values bound so far.
+     *
+     * @throws EvaluationError  if some variable has not been bound yet
+     */
+    public double evaluateDouble() {
+        if (this.unboundCount > 0) {
+            for (int i = 0; i < this.bound.length; i++) {
+                if (!this.bound[i]) {
+                    throw new EvaluationError("Undefined variable: " + this.slotNames[i]);
+                }
+            }
+        }
+        if (this.evaluationCount < BYTECODE_THRESHOLD) {
+            this.evaluationCount += 1;
+            if (this.evaluationCount == BYTECODE_THRESHOLD) {
+                this.compiled = this.compileToBytecode();
+            }
+        }
+        return this.compiled.eval(this.slots);
+    }
+
+    /**
+     * Returns whether evaluations now go through bytecode rather than the
+     * StackProgram.
+     */
+    public boolean usesBytecode() {
+        return this.compiled != this.program;
+    }
+
+    // Returns the expression compiled to bytecode, or the StackProgram if it
+    // cannot be (such as when it does not fit in a single method)
+    private CompiledExpression compileToBytecode() {
+        IList<String> names = new DoubleLinkedList<>();
+        for (String name : this.slotNames) {
+            names.add(name);
+        }
+        try {
+            return BytecodeCompiler.compile(this.expression, names);
+        } catch (EvaluationError ex) {
+            return this.program;
+        }
+    }
+
+    // Returns every variable in the given expression, in the order they
+    // first appear, without duplicates
+    private static IList<String> freeVariables(AstNode expression) {
+        IList<String> names = new DoubleLinkedList<>();
+        Set<String> seen = new HashSet<>();
+        Deque<AstNode> pending = new ArrayDeque<>();
+        pending.push(expression);
+        while (!pending.isEmpty()) {
+            AstNode node = pending.pop();
+            if (node.isVariable()) {
+                if (seen.add(node.getName())) {
+                    names.add(node.getName());
+                }
+            } else if (node.isOperation()) {
+                // Children are pushed in reverse so they pop off in order.
+                // Copying them out first avoids indexing into a linked list,
+                // which flattened sums would make quadratic.
+                AstNode[] children = new AstNode[node.getChildren().size()];
+                int index = 0;
+                for (AstNode child : node.getChildren()) {
+                    children[index] = child;
+                    index += 1;
+                }
+                for (int i = children.length - 1; i >= 0; i--) {
+                    pending.push(children[i]);
+                }
+            }
+        }
+        return names;
+    }
+}
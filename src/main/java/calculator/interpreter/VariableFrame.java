@@ -0,0 +1,165 @@
+package calculator.interpreter;
+
+import calculator.ast.AstNode;
+import datastructures.interfaces.IDictionary;
+import misc.exceptions.NoSuchKeyException;
+
+/**
+ * A small set of local variables layered over the variables of an enclosing
+ * scope.
+ *
+ * Locals live in parallel arrays of names and values, indexed by slot, so
+ * a loop can rebind one with 'set' without touching any dictionary. Looking
+ * a name up scans the (few) locals first and falls back to the parent on a
+ * miss, so locals shadow any variable of the same name further out.
+ *
+ * Assigning to a name that is not yet local makes it local, rather than
+ * reaching out and changing the parent. Nothing done through a frame is
+ * therefore visible once the frame is discarded.
+ */
+public class VariableFrame implements IDictionary<String, AstNode> {
+    private final IDictionary<String, AstNode> parent;
+    private String[] names;
+    private AstNode[] values;
+    private int localCount;
+
+    /**
+     * Creates a frame over 'parent' whose slot 'i' binds 'names[i]' to
+     * 'values[i]'.
+     *
+     * @throws IllegalArgumentException  if the arrays differ in length, or a
+     *                                   name is given twice
+     */
+    public VariableFrame(IDictionary<String, AstNode> parent, String[] names, AstNode[] values) {
+        if (names.length != values.length) {
+            throw new IllegalArgumentException("Every local needs a value");
+        }
+        this.parent = parent;
+        this.names = names.clone();
+        this.values = values.clone();
+        this.localCount = names.length;
+        for (int i = 0; i < this.localCount; i++) {
+            if (this.slotOf(names[i]) != i) {
+                throw new IllegalArgumentException("Duplicate local: " + names[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the variables this frame falls back to.
+     */
+    public IDictionary<String, AstNode> getParent() {
+        return this.parent;
+    }
+
+    /**
+     * Returns the number of locals, which occupy slots 0 up to (but not
+     * including) this number.
+     */
+    public int getLocalCount() {
+        return this.localCount;
+    }
+
+    /**
+     * Returns the name of the local in the given slot.
+     *
+     * @throws IndexOutOfBoundsException  if there is no such slot
+     */
+    public String getName(int slot) {
+        if (slot < 0 || slot >= this.localCount) {
+            throw new IndexOutOfBoundsException("No local in slot " + slot);
+        }
+        return this.names[slot];
+    }
+
+    /**
+     * Rebinds the local in the given slot.
+     *
+     * @throws IndexOutOfBoundsException  if there is no such slot
+     */
+    public void set(int slot, AstNode value) {
+        if (slot < 0 || slot >= this.localCount) {
+            throw new IndexOutOfBoundsException("No local in slot " + slot);
+        }
+        this.values[slot] = value;
+    }
+
+    /**
+     * Returns the slot of the local with the given name, or -1 if there is
+     * no such local.
+     */
+    public int slotOf(String name) {
+        for (int i = 0; i < this.localCount; i++) {
+            if (this.names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public AstNode get(String name) {
+        int slot = this.slotOf(name);
+        return slot >= 0 ? this.values[slot] : this.parent.get(name);
+    }
+
+    @Override
+    public void put(String name, AstNode value) {
+        int slot = this.slotOf(name);
+        if (slot >= 0) {
+            this.values[slot] = value;
+            return;
+        }
+        if (this.localCount == this.names.length) {
+            int capacity = Math.max(4, 2 * this.localCount);
+            String[] biggerNames = new String[capacity];
+            AstNode[] biggerValues = new AstNode[capacity];
+            System.arraycopy(this.names, 0, biggerNames, 0, this.localCount);
+            System.arraycopy(this.values, 0, biggerValues, 0, this.localCount);
+            this.names = biggerNames;
+            this.values = biggerValues;
+        }
+        this.names[this.localCount] = name;
+        this.values[this.localCount] = value;
+        this.localCount += 1;
+    }
+
+    /**
+     * Removes a local, which uncovers any variable of the same name in the
+     * parent. Slots after the removed one move down by one.
+     *
+     * @throws NoSuchKeyException  if the name is not a local of this frame;
+     *                             variables of the parent cannot be removed
+     *                             through a frame
+     */
+    @Override
+    public AstNode remove(String name) {
+        int slot = this.slotOf(name);
+        if (slot < 0) {
+            throw new NoSuchKeyException();
+        }
+        AstNode value = this.values[slot];
+        System.arraycopy(this.names, slot + 1, this.names, slot, this.localCount - slot - 1);
+        System.arraycopy(this.values, slot + 1, this.values, slot, this.localCount - slot - 1);
+        this.localCount -= 1;
+        this.names[this.localCount] = null;
+        this.values[this.localCount] = null;
+        return value;
+    }
+
+    @Override
+    public boolean containsKey(String name) {
+        return this.slotOf(name) >= 0 || this.parent.containsKey(name);
+    }
+
+    @Override
+    public int size() {
+        int size = this.parent.size();
+        for (int i = 0; i < this.localCount; i++) {
+            if (!this.parent.containsKey(this.names[i])) {
+                size += 1;
+            }
+        }
+        return size;
+    }
+}
@@ -12,6 +12,8 @@ import org.antlr.v4.runtime.*;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 public class Parser {
     public AstNode parse(String rawInput) {
@@ -139,9 +141,24 @@ public class Parser {
 
         @Override
         public AstNode visitAddExprBin(CalculatorGrammarParser.AddExprBinContext ctx) {
-            return new AstNode(
-                    ctx.op.getText(),
-                    this.asList(this.visit(ctx.left), this.visit(ctx.right)));
+            // Long sums like '1 + 1 + 1 + ...' nest to the left, one level per
+            // operator. We walk down that chain with a loop instead of
+            // recursing so that long inputs cannot overflow the stack.
+            Deque<CalculatorGrammarParser.AddExprBinContext> chain = new ArrayDeque<>();
+            CalculatorGrammarParser.AddExprContext current = ctx;
+            while (current instanceof CalculatorGrammarParser.AddExprBinContext) {
+                CalculatorGrammarParser.AddExprBinContext bin =
+                        (CalculatorGrammarParser.AddExprBinContext) current;
+                chain.push(bin);
+                current = bin.left;
+            }
+
+            AstNode out = this.visit(current);
+            while (!chain.isEmpty()) {
+                CalculatorGrammarParser.AddExprBinContext bin = chain.pop();
+                out = new AstNode(bin.op.getText(), this.asList(out, this.visit(bin.right)));
+            }
+            return out;
         }
 
         @Override
@@ -151,9 +168,22 @@ public class Parser {
 
         @Override
         public AstNode visitMultExprBin(CalculatorGrammarParser.MultExprBinContext ctx) {
-            return new AstNode(
-                    ctx.op.getText(),
-                    this.asList(this.visit(ctx.left), this.visit(ctx.right)));
+            // Products nest to the left just like sums; see visitAddExprBin
+            Deque<CalculatorGrammarParser.MultExprBinContext> chain = new ArrayDeque<>();
+            CalculatorGrammarParser.MultiplyExprContext current = ctx;
+            while (current instanceof CalculatorGrammarParser.MultExprBinContext) {
+                CalculatorGrammarParser.MultExprBinContext bin =
+                        (CalculatorGrammarParser.MultExprBinContext) current;
+                chain.push(bin);
+                current = bin.left;
+            }
+
+            AstNode out = this.visit(current);
+            while (!chain.isEmpty()) {
+                CalculatorGrammarParser.MultExprBinContext bin = chain.pop();
+                out = new AstNode(bin.op.getText(), this.asList(out, this.visit(bin.right)));
+            }
+            return out;
         }
 
         @Override
@@ -0,0 +1,104 @@
+package datastructures.concrete;
+
+import datastructures.interfaces.IPriorityQueue;
+import misc.exceptions.EmptyContainerException;
+
+/**
+ * A binary max-heap stored in a growable array, so inserting and removing
+ * an item both take O(log n) time and peeking takes O(1).
+ *
+ * See IPriorityQueue for more details on what each method does.
+ */
+public class ArrayHeap<T extends Comparable<T>> implements IPriorityQueue<T> {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private T[] heap;
+    private int size;
+
+    public ArrayHeap() {
+        this.heap = makeArrayOfT(DEFAULT_CAPACITY);
+        this.size = 0;
+    }
+
+    /**
+     * Returns a new, empty array of the given size that can contain
+     * objects of type T.
+     */
+    @SuppressWarnings("unchecked")
+    private T[] makeArrayOfT(int capacity) {
+        // T is always Comparable, so that is the type the array is erased to
+        return (T[]) (new Comparable[capacity]);
+    }
+
+    @Override
+    public T removeMax() {
+        T max = this.peekMax();
+        this.size -= 1;
+        T last = this.heap[this.size];
+        this.heap[this.size] = null;
+        if (this.size > 0) {
+            this.siftDown(0, last);
+        }
+        return max;
+    }
+
+    @Override
+    public T peekMax() {
+        if (this.size == 0) {
+            throw new EmptyContainerException();
+        }
+        return this.heap[0];
+    }
+
+    @Override
+    public void insert(T item) {
+        if (item == null) {
+            throw new IllegalArgumentException();
+        }
+        if (this.size == this.heap.length) {
+            T[] newHeap = makeArrayOfT(this.heap.length * 2);
+            System.arraycopy(this.heap, 0, newHeap, 0, this.size);
+            this.heap = newHeap;
+        }
+        this.size += 1;
+        this.siftUp(this.size - 1, item);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    // Moves 'item' up from the empty position 'index' until its parent is
+    // no smaller, shifting each smaller parent down to fill the gap
+    private void siftUp(int index, T item) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (this.heap[parent].compareTo(item) >= 0) {
+                break;
+            }
+            this.heap[index] = this.heap[parent];
+            index = parent;
+        }
+        this.heap[index] = item;
+    }
+
+    // Moves 'item' down from the empty position 'index' until neither child
+    // is larger, shifting each larger child up to fill the gap
+    private void siftDown(int index, T item) {
+        int half = this.size / 2;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < this.size && this.heap[right].compareTo(this.heap[child]) > 0) {
+                child = right;
+            }
+            if (item.compareTo(this.heap[child]) >= 0) {
+                break;
+            }
+            this.heap[index] = this.heap[child];
+            index = child;
+        }
+        this.heap[index] = item;
+    }
+}
@@ -0,0 +1,44 @@
+package datastructures.interfaces;
+
+import misc.exceptions.EmptyContainerException;
+
+/**
+ * Represents a collection of items where the largest item (according to its
+ * 'compareTo' method) can always be found and removed quickly.
+ *
+ * Items do not need to be unique, and ties may be broken in any order.
+ */
+public interface IPriorityQueue<T extends Comparable<T>> {
+    /**
+     * Removes and returns the largest item in the queue.
+     *
+     * @throws EmptyContainerException  if the queue is empty
+     */
+    public T removeMax();
+
+    /**
+     * Returns the largest item in the queue without removing it.
+     *
+     * @throws EmptyContainerException  if the queue is empty
+     */
+    public T peekMax();
+
+    /**
+     * Adds the given item to the queue.
+     *
+     * @throws IllegalArgumentException  if the item is null
+     */
+    public void insert(T item);
+
+    /**
+     * Returns the number of items in the queue.
+     */
+    public int size();
+
+    /**
+     * Returns 'true' if this queue is empty and 'false' otherwise.
+     */
+    public default boolean isEmpty() {
+        return this.size() == 0;
+    }
+}
@@ -0,0 +1,83 @@
+package calculator;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import calculator.ast.AdaptiveSampler;
+import calculator.errors.EvaluationError;
+import calculator.interpreter.Calculator;
+import misc.BaseTest;
+import misc.FakeImageDrawer;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+public class TestAdaptiveSampler extends BaseTest {
+    private static final double DELTA = 1e-12;
+
+    @Test(timeout=SECOND)
+    public void testPlotAdaptiveMatchesExpression() {
+        Calculator calc = new Calculator();
+        FakeImageDrawer drawer = new FakeImageDrawer();
+        calc.setImageDrawer(drawer);
+
+        assertEquals("x ^ 3 - x", calc.evaluate("plotAdaptive(x^3 - x, x, -2, 2, 0.001)"));
+        Iterator<Double> xs = drawer.lastXValues.iterator();
+        Iterator<Double> ys = drawer.lastYValues.iterator();
+        double previous = Double.NEGATIVE_INFINITY;
+        while (xs.hasNext()) {
+            double x = xs.next();
+            assertTrue(x > previous);
+            assertEquals(x * x * x - x, ys.next(), DELTA);
+            previous = x;
+        }
+        assertEquals(-2.0, drawer.lastXValues.get(0), 0.0);
+        assertEquals(2.0, previous, 0.0);
+    }
+
+    @Test(timeout=SECOND)
+    public void testPlotAdaptiveConcentratesSamples() {
+        Calculator calc = new Calculator();
+        FakeImageDrawer drawer = new FakeImageDrawer();
+        calc.setImageDrawer(drawer);
+
+        // A straight line never needs refining
+        calc.evaluate("plotAdaptive(3 * x + 1, x, 0, 100, 0.0001)");
+        assertEquals(2 * AdaptiveSampler.INITIAL_INTERVALS + 1, drawer.lastXValues.size());
+
+        // A narrow spike at x = 50 should get far more samples near it than
+        // elsewhere, while staying under the point budget
+        calc.evaluate("plotAdaptive(1 / (1 + 10000 * (x - 50)^2), x, 0, 100, 0.001, 501)");
+        int total = drawer.lastXValues.size();
+        assertTrue(total <= 501);
+        int nearSpike = 0;
+        for (double x : drawer.lastXValues) {
+            if (Math.abs(x - 50) < 1) {
+                nearSpike += 1;
+            }
+        }
+        assertTrue(nearSpike > total / 2);
+    }
+
+    @Test(timeout=SECOND)
+    public void testPlotAdaptiveFailsOnBadInput() {
+        Calculator calc = new Calculator();
+        calc.setImageDrawer(new FakeImageDrawer());
+
+        String[] inputs = {
+            "plotAdaptive(3 * x, x, 10, 0, 0.1)",
+            "plotAdaptive(3 * x, x, 0, 10, -1)",
+            "plotAdaptive(3 * x, x, 0, 10, 0.1, 2)",
+            "plotAdaptive(3 * x + a, x, 0, 10, 0.1)",
+            "plotAdaptive(3 * x, x, 0, 10)",
+        };
+        for (String input : inputs) {
+            try {
+                calc.evaluate(input);
+                fail("Expected EvaluationError for " + input);
+            } catch (EvaluationError err) {
+                // Do nothing
+            }
+        }
+    }
+}
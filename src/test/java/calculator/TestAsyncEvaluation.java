@@ -0,0 +1,132 @@
+package calculator;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import calculator.errors.IncompleteInputError;
+import calculator.interpreter.Calculator;
+import calculator.interpreter.EvaluationBudget;
+import misc.BaseTest;
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Checks evaluating input on the calculator's background thread.
+ */
+public class TestAsyncEvaluation extends BaseTest {
+    @Test(timeout=SECOND)
+    public void testEvaluateAsync() throws Exception {
+        Calculator calc = new Calculator();
+        CompletableFuture<String> first = calc.evaluateAsync("a := 3");
+        CompletableFuture<String> second = calc.evaluateAsync("a + 1");
+        assertEquals("4", second.get());
+        assertEquals("3", first.get());
+
+        try {
+            calc.evaluateAsync("sin(1 + 2").get();
+            fail("Expected IncompleteInputError");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IncompleteInputError);
+        }
+        assertEquals("3", calc.evaluate("a"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testCancelAsyncEvaluation() throws Exception {
+        Calculator calc = new Calculator();
+        BlockingBudget budget = new BlockingBudget();
+        calc.setBudget(budget);
+
+        // Neither of these can finish unless it is cancelled
+        CompletableFuture<String> running = calc.evaluateAsync("1 + 2");
+        CompletableFuture<String> queued = calc.evaluateAsync("a := 1");
+        budget.started.await();
+
+        assertTrue(queued.cancel(true));
+        assertTrue(running.cancel(true));
+
+        // Cancelling completes the future right away, whether or not the
+        // evaluation has noticed yet
+        assertTrue(running.isCancelled());
+        try {
+            running.get();
+            fail("Expected CancellationException");
+        } catch (CancellationException ex) {
+            // Do nothing
+        }
+        assertFalse(running.cancel(true));
+
+        calc.awaitIdle();
+        assertEquals(0, budget.inside.get());
+        assertTrue(budget.isCancelled());
+
+        // The queued request never ran
+        try {
+            queued.get();
+            fail("Expected CancellationException");
+        } catch (CancellationException ex) {
+            // Do nothing
+        }
+        calc.setBudget(EvaluationBudget.unlimited());
+        assertEquals("a", calc.evaluateAsync("a").get());
+    }
+
+    @Test(timeout=SECOND)
+    public void testNextRequestWaitsForCancelledOneToStop() throws Exception {
+        Calculator calc = new Calculator();
+        BlockingBudget budget = new BlockingBudget();
+        calc.setBudget(budget);
+        CompletableFuture<String> running = calc.evaluateAsync("a := 1");
+        budget.started.await();
+
+        // Queued while the first is still inside its budget
+        CompletableFuture<String> next = calc.evaluateAsync("a");
+        assertTrue(running.cancel(true));
+
+        // By the time the next request has run, the cancelled one had
+        // stopped without assigning anything
+        assertEquals("a", next.get());
+        assertEquals(0, budget.inside.get());
+    }
+
+    /**
+     * A budget that stalls the first evaluation at its first progress report
+     * until the evaluation is cancelled, and counts the threads currently
+     * stalled in it. Later evaluations run normally.
+     */
+    private static class BlockingBudget extends EvaluationBudget {
+        public final CountDownLatch started = new CountDownLatch(1);
+        public final AtomicInteger inside = new AtomicInteger();
+        private final AtomicBoolean stalled = new AtomicBoolean();
+
+        public BlockingBudget() {
+            super(UNLIMITED, UNLIMITED, UNLIMITED, UNLIMITED);
+        }
+
+        @Override
+        public void visitMany(long count) {
+            if (this.stalled.getAndSet(true)) {
+                super.visitMany(count);
+                return;
+            }
+            this.inside.incrementAndGet();
+            try {
+                this.started.countDown();
+                while (!this.isCancelled()) {
+                    LockSupport.parkNanos(100000);
+                }
+                super.visitMany(count);
+            } finally {
+                this.inside.decrementAndGet();
+            }
+        }
+    }
+}
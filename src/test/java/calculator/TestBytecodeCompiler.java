@@ -0,0 +1,140 @@
+package calculator;
+
+import static org.junit.Assert.fail;
+import static misc.AstFixtures.num;
+import static misc.AstFixtures.op;
+import static misc.AstFixtures.slots;
+import static misc.AstFixtures.var;
+
+import calculator.ast.AstNode;
+import calculator.ast.BytecodeCompiler;
+import calculator.ast.CompiledExpression;
+import calculator.errors.EvaluationError;
+import datastructures.concrete.DoubleLinkedList;
+import datastructures.interfaces.IList;
+import misc.BaseTest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+
+public class TestBytecodeCompiler extends BaseTest {
+    private static final double DELTA = 1e-12;
+
+    @Test(timeout=SECOND)
+    public void testArithmetic() {
+        // (x + 2) * y - 7 / x
+        AstNode expr = op("-",
+                op("*", op("+", var("x"), num(2)), var("y")),
+                op("/", num(7), var("x")));
+        CompiledExpression compiled = BytecodeCompiler.compile(expr, slots("x", "y"));
+        Assert.assertEquals((3 + 2) * 4 - 7 / 3.0, compiled.eval(new double[] {3, 4}), DELTA);
+        Assert.assertEquals((-1 + 2) * 0.5 - 7 / -1.0, compiled.eval(new double[] {-1, 0.5}), DELTA);
+    }
+
+    @Test(timeout=SECOND)
+    public void testFlattenedSumsAndProducts() {
+        // x + y + 2 + x * y * x
+        AstNode expr = op("+", var("x"), var("y"), num(2), op("*", var("x"), var("y"), var("x")));
+        CompiledExpression compiled = BytecodeCompiler.compile(expr, slots("x", "y"));
+        Assert.assertEquals(3 + 4 + 2 + 3 * 4 * 3, compiled.eval(new double[] {3, 4}), DELTA);
+    }
+
+    @Test(timeout=SECOND)
+    public void testFunctions() {
+        AstNode expr = op("+",
+                op("^", var("x"), num(3)),
+                op("+", op("negate", op("sin", var("x"))),
+                        op("+", op("cos", var("x")),
+                                op("+", op("abs", op("negate", var("x"))),
+                                        op("+", op("exp", var("x")), op("sqrt", var("x")))))));
+        CompiledExpression compiled = BytecodeCompiler.compile(expr, slots("x"));
+        for (double x = 0; x < 5; x += 0.25) {
+            double expected = Math.pow(x, 3) + (-Math.sin(x) + (Math.cos(x)
+                    + (Math.abs(-x) + (Math.exp(x) + Math.sqrt(x)))));
+            Assert.assertEquals(expected, compiled.eval(new double[] {x}), DELTA);
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testConstantsAndManySlots() {
+        IList<String> names = new DoubleLinkedList<>();
+        AstNode expr = num(0);
+        double[] values = new double[300];
+        for (int i = 0; i < values.length; i++) {
+            names.add("v" + i);
+            values[i] = i * 0.5;
+            expr = op("+", expr, op("*", var("v" + i), num(1.5)));
+        }
+        CompiledExpression compiled = BytecodeCompiler.compile(expr, names);
+
+        double expected = 0;
+        for (double value : values) {
+            expected = expected + value * 1.5;
+        }
+        Assert.assertEquals(expected, compiled.eval(values), DELTA);
+    }
+
+    @Test(timeout=SECOND)
+    public void testCompileFailsOnUnknown() {
+        try {
+            BytecodeCompiler.compile(op("+", var("x"), var("a")), slots("x"));
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // Do nothing
+        }
+
+        try {
+            BytecodeCompiler.compile(op("mystery", var("x")), slots("x"));
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // Do nothing
+        }
+
+        try {
+            BytecodeCompiler.compile(op("sin", var("x"), var("x")), slots("x"));
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // Do nothing
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testCompileRejectsVeryDeepExpressions() {
+        AstNode expression = var("x");
+        for (int i = 0; i < 30000; i++) {
+            expression = op("sin", expression);
+        }
+        try {
+            BytecodeCompiler.compile(expression, slots("x"));
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            Assert.assertEquals("Expression is too large to compile", err.getMessage());
+        }
+
+        // Deep, but still small enough to fit in one method
+        expression = var("x");
+        double expected = 0.5;
+        for (int i = 0; i < 1000; i++) {
+            expression = op("sin", expression);
+            expected = Math.sin(expected);
+        }
+        Assert.assertEquals(expected,
+                BytecodeCompiler.compile(expression, slots("x")).eval(new double[] {0.5}), DELTA);
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testCompiledClassesCanBeUnloaded() throws InterruptedException {
+        CompiledExpression compiled = BytecodeCompiler.compile(op("+", var("x"), num(1)), slots("x"));
+        Assert.assertEquals(3.0, compiled.eval(new double[] {2}), DELTA);
+        WeakReference<ClassLoader> loader = new WeakReference<>(compiled.getClass().getClassLoader());
+        Assert.assertNotSame(BytecodeCompiler.class.getClassLoader(), loader.get());
+
+        compiled = null;
+        for (int i = 0; i < 100 && loader.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertNull(loader.get());
+    }
+}
@@ -6,15 +6,14 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
-import calculator.gui.ImageDrawer;
 import calculator.errors.EvaluationError;
 import calculator.interpreter.Calculator;
 import datastructures.interfaces.IList;
 import misc.BaseTest;
+import misc.FakeImageDrawer;
 import org.junit.ComparisonFailure;
 import org.junit.Test;
 
-import java.awt.geom.Rectangle2D;
 import java.util.Arrays;
 
 public class TestCalculator extends BaseTest {
@@ -236,21 +235,4 @@ public class TestCalculator extends BaseTest {
             // Do nothing
         }
     }
-
-    private static class FakeImageDrawer extends ImageDrawer {
-        public IList<Double> lastXValues;
-        public IList<Double> lastYValues;
-
-        public FakeImageDrawer() {
-            super(null, 800, 800);
-        }
-
-        @Override
-        public void drawScatterPlot(String title, String xAxisLabel, String yAxisLabel,
-                                    IList<Double> xValues, IList<Double> yValues,
-                                    Rectangle2D drawReagion) {
-            this.lastXValues = xValues;
-            this.lastYValues = yValues;
-        }
-    }
 }
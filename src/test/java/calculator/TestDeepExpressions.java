@@ -0,0 +1,131 @@
+package calculator;
+
+import calculator.ast.AstNode;
+import calculator.ast.ExpressionFlattener;
+import calculator.ast.ExpressionManipulators;
+import calculator.ast.StackProgram;
+import calculator.interpreter.Calculator;
+import calculator.interpreter.Environment;
+import calculator.interpreter.ExpressionPrinter;
+import calculator.interpreter.FunctionTable;
+import calculator.interpreter.Interpreter;
+import calculator.parser.Parser;
+import datastructures.concrete.DoubleLinkedList;
+import datastructures.concrete.dictionaries.ArrayDictionary;
+import datastructures.interfaces.IDictionary;
+import datastructures.interfaces.IList;
+import misc.BaseTest;
+import org.junit.Test;
+
+/**
+ * Checks that every pass over an expression copes with trees far deeper
+ * than the thread stack could hold if the passes were recursive.
+ */
+public class TestDeepExpressions extends BaseTest {
+    private static final int DEPTH = 1000000;
+
+    private static AstNode negateChain(AstNode leaf, int depth) {
+        AstNode out = leaf;
+        for (int i = 0; i < depth; i++) {
+            IList<AstNode> children = new DoubleLinkedList<>();
+            children.add(out);
+            out = new AstNode("negate", children);
+        }
+        return out;
+    }
+
+    private static int countNegations(AstNode node) {
+        int depth = 0;
+        while (node.isOperation() && node.getName().equals("negate")) {
+            node = node.getChildren().get(0);
+            depth += 1;
+        }
+        return depth;
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            out.append(text);
+        }
+        return out.toString();
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testDeepSimplify() {
+        IDictionary<String, AstNode> vars = new ArrayDictionary<>();
+        AstNode folded = ExpressionManipulators.simplifyHelper(vars, negateChain(new AstNode(3), DEPTH));
+        assertEquals(3.0, folded.getNumericValue());
+
+        AstNode symbolic = ExpressionManipulators.simplifyHelper(vars, negateChain(new AstNode("x"), DEPTH));
+        assertEquals(DEPTH, countNegations(symbolic));
+
+        vars.put("x", new AstNode(-2));
+        assertEquals(-2.0, ExpressionManipulators.simplifyHelper(vars, symbolic).getNumericValue());
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testDeepInterpreter() {
+        Environment env = new Environment(
+                new ArrayDictionary<>(),
+                null,
+                new FunctionTable(),
+                new Interpreter(),
+                null,
+                null,
+                null,
+                null);
+        AstNode output = env.getInterpreter().evaluate(env, negateChain(new AstNode("x"), DEPTH));
+        assertEquals(DEPTH, countNegations(output));
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testDeepEquality() {
+        AstNode first = negateChain(new AstNode("x"), DEPTH);
+        AstNode second = negateChain(new AstNode("x"), DEPTH);
+        assertEquals(first.hashCode(), second.hashCode());
+        assertEquals(true, first.equals(second));
+        assertEquals(false, first.equals(negateChain(new AstNode("y"), DEPTH)));
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testLongInputThroughCalculator() {
+        Calculator calc = new Calculator();
+        int terms = 100000;
+        assertEquals("" + terms, calc.evaluate("1" + repeat(" + 1", terms - 1)));
+        assertEquals("" + terms, calc.evaluate("toDouble(1" + repeat(" + 1", terms - 1) + ")"));
+
+        String symbolic = "x" + repeat(" * 2", terms);
+        assertEquals(symbolic, calc.evaluate(symbolic));
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testLongSumsAreFlattened() {
+        int terms = 100000;
+        String input = "x" + repeat(" + x", terms - 1) + " + 1 + 2";
+        AstNode sum = new Parser().parse(input + "\n").getChildren().get(0);
+        AstNode flat = ExpressionFlattener.flatten(sum);
+        assertEquals("+", flat.getName());
+        assertEquals(terms + 2, flat.getChildren().size());
+        for (AstNode child : flat.getChildren()) {
+            assertEquals(false, child.isOperation());
+        }
+
+        // Nothing is reordered or folded, so the sum prints the same
+        IDictionary<String, Integer> precedence = new ArrayDictionary<>();
+        precedence.put("+", 4);
+        assertEquals(input, new ExpressionPrinter(precedence).toString(flat));
+
+        // ...and only chains down the left operand are flattened
+        AstNode grouped = ExpressionFlattener.flatten(
+                new Parser().parse("x + (1 + 2) + x\n").getChildren().get(0));
+        assertEquals(3, grouped.getChildren().size());
+        assertEquals("+", grouped.getChildren().get(1).getName());
+
+        IList<String> slots = new DoubleLinkedList<>();
+        slots.add("x");
+        StackProgram program = StackProgram.compile(flat, slots);
+        assertEquals(true, program.getMaxStackDepth() <= 3);
+        assertEquals(2.0 * terms + 3, program.eval(new double[] {2}));
+    }
+}
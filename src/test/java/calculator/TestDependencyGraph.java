@@ -0,0 +1,127 @@
+package calculator;
+
+import static misc.AstFixtures.num;
+import static misc.AstFixtures.op;
+import static misc.AstFixtures.var;
+import static org.junit.Assert.fail;
+
+import calculator.ast.AstNode;
+import calculator.ast.ExpressionManipulators;
+import calculator.errors.EvaluationError;
+import calculator.interpreter.Calculator;
+import calculator.interpreter.DependencyGraph;
+import calculator.interpreter.Environment;
+import calculator.interpreter.FunctionTable;
+import calculator.interpreter.Interpreter;
+import calculator.parser.Parser;
+import datastructures.concrete.dictionaries.ArrayDictionary;
+import datastructures.interfaces.IDictionary;
+import datastructures.interfaces.IList;
+import misc.BaseTest;
+import org.junit.Test;
+
+public class TestDependencyGraph extends BaseTest {
+    @Test(timeout=SECOND)
+    public void testRedefinitionUpdatesDependents() {
+        Calculator calc = new Calculator();
+        calc.evaluate("b := a / 2");
+        calc.evaluate("c := b + d");
+        calc.evaluate("e := sin(f)");
+        calc.evaluate("a := 6");
+        calc.evaluate("d := 1");
+        calc.evaluate("f := 0");
+        assertEquals("4", calc.evaluate("toDouble(c)"));
+        assertEquals("0", calc.evaluate("toDouble(e)"));
+        assertEquals("8", calc.evaluate("toDouble(c + c)"));
+
+        calc.evaluate("a := 10");
+        assertEquals("6", calc.evaluate("toDouble(c)"));
+        assertEquals("10 / 2 + 1", calc.evaluate("c"));
+        calc.evaluate("d := 2");
+        assertEquals("7", calc.evaluate("toDouble(c)"));
+        assertEquals("0", calc.evaluate("toDouble(e)"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testDependencyGraphOrder() {
+        DependencyGraph graph = new DependencyGraph();
+        graph.define("c", new Parser().parse("b + a\n").getChildren().get(0));
+        graph.define("b", new Parser().parse("a * 2\n").getChildren().get(0));
+        graph.define("d", new Parser().parse("c + b\n").getChildren().get(0));
+        graph.define("z", new Parser().parse("y\n").getChildren().get(0));
+        graph.setNumericValue("d", 1);
+        graph.setNumericValue("z", 2);
+
+        IList<String> order = graph.define("a", new AstNode(3));
+        assertEquals(4, order.size());
+        assertEquals("a", order.get(0));
+        assertEquals("b", order.get(1));
+        assertEquals("c", order.get(2));
+        assertEquals("d", order.get(3));
+        assertEquals(null, graph.getNumericValue("d"));
+        assertEquals(2.0, graph.getNumericValue("z"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testResolutionOrder() {
+        IDictionary<String, AstNode> definitions = new ArrayDictionary<>();
+        definitions.put("a", num(3));
+        definitions.put("b", op("*", var("a"), num(2)));
+        definitions.put("c", op("+", var("b"), var("a")));
+        definitions.put("d", op("+", var("c"), var("z")));
+        DependencyGraph graph = new DependencyGraph();
+
+        IList<String> order = graph.resolutionOrder(op("-", var("d"), var("x")), definitions,
+                name -> false);
+        assertEquals(4, order.size());
+        assertEquals("a", order.get(0));
+        assertEquals("b", order.get(1));
+        assertEquals("c", order.get(2));
+        assertEquals("d", order.get(3));
+
+        // Resolved variables are listed, but not followed
+        order = graph.resolutionOrder(var("d"), definitions, name -> name.equals("c"));
+        assertEquals(2, order.size());
+        assertEquals("c", order.get(0));
+        assertEquals("d", order.get(1));
+
+        definitions.put("a", op("+", var("d"), num(1)));
+        try {
+            graph.resolutionOrder(var("c"), definitions, name -> false);
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // Do nothing
+        }
+    }
+
+    @Test(timeout=5 * SECOND)
+    public void testLongDefinitionChains() {
+        // v0 = 1 and v(i) = v(i - 1) + 1, resolved by something that would
+        // need a stack frame or more per link if it recursed
+        int length = 3000;
+        IDictionary<String, AstNode> variables = new ArrayDictionary<>();
+        DependencyGraph graph = new DependencyGraph();
+        variables.put("v0", num(1));
+        graph.define("v0", num(1));
+        for (int i = 1; i <= length; i++) {
+            AstNode definition = op("+", var("v" + (i - 1)), num(1));
+            variables.put("v" + i, definition);
+            graph.define("v" + i, definition);
+        }
+        AstNode last = var("v" + length);
+
+        // Both with a dependency graph remembering the values...
+        Environment env = new Environment(variables, null, new FunctionTable(),
+                new Interpreter(), null, null, graph, null);
+        assertEquals(length + 1.0,
+                ExpressionManipulators.toDouble(env, op("toDouble", last)).getNumericValue());
+        assertEquals(length + 1.0, ExpressionManipulators.simplify(env, last).getNumericValue());
+
+        // ...and without one
+        env = new Environment(variables, null, new FunctionTable(),
+                new Interpreter(), null, null, null, null);
+        assertEquals(length + 1.0,
+                ExpressionManipulators.toDouble(env, op("toDouble", last)).getNumericValue());
+        assertEquals(length + 1.0, ExpressionManipulators.simplify(env, last).getNumericValue());
+    }
+}
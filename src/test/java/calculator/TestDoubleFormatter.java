@@ -0,0 +1,92 @@
+package calculator;
+
+import static org.junit.Assert.assertTrue;
+
+import calculator.interpreter.DoubleFormatter;
+import misc.BaseTest;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Random;
+
+public class TestDoubleFormatter extends BaseTest {
+    // Returns the number of significant digits in a formatted double
+    private static int countDigits(String text) {
+        String mantissa = text.replace("-", "");
+        int exponent = mantissa.indexOf('E');
+        if (exponent >= 0) {
+            mantissa = mantissa.substring(0, exponent);
+        }
+        mantissa = mantissa.replace(".", "").replaceAll("^0+", "").replaceAll("0+$", "");
+        return Math.max(1, mantissa.length());
+    }
+
+    // Returns 'true' if some number with fewer significant digits than
+    // 'digits' would also parse back to 'value'
+    private static boolean hasShorterForm(double value, int digits) {
+        if (digits <= 1) {
+            return false;
+        }
+        BigDecimal exact = new BigDecimal(Math.abs(value));
+        BigDecimal below = exact.round(new MathContext(digits - 1, RoundingMode.FLOOR));
+        BigDecimal above = exact.round(new MathContext(digits - 1, RoundingMode.CEILING));
+        return Double.parseDouble(below.toString()) == Math.abs(value)
+                || Double.parseDouble(above.toString()) == Math.abs(value);
+    }
+
+    private static void assertShortestRoundTrip(double value) {
+        String text = DoubleFormatter.toString(value);
+        assertTrue(text, Double.doubleToRawLongBits(Double.parseDouble(text))
+                == Double.doubleToRawLongBits(value));
+        assertTrue(text, !hasShorterForm(value, countDigits(text)));
+    }
+
+    @Test(timeout=SECOND)
+    public void testLayoutMatchesDoubleToString() {
+        double[] values = {
+            0.1, 0.5, -0.25, 1.5, 123.456, 1.0 / 3, 0.001, 9.99e-4, 1234567.125,
+            9999999.5, 1e7, 1e-10, 2.5e-5, 6.02214076e23, Double.MAX_VALUE,
+            Double.MIN_NORMAL, Math.PI, -Math.E, 0.0, -0.0,
+            Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+        };
+        for (double value : values) {
+            assertEquals(Double.toString(value), DoubleFormatter.toString(value));
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testShorterThanDoubleToString() {
+        // Double.toString used to print more digits than needed for these
+        assertEquals("1.0E23", DoubleFormatter.toString(1.0E23));
+        assertEquals("5.0E-324", DoubleFormatter.toString(Double.MIN_VALUE));
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testRandomValuesRoundTrip() {
+        Random rand = new Random(12345);
+        for (int i = 0; i < 100000; i++) {
+            double value = Double.longBitsToDouble(rand.nextLong());
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                assertShortestRoundTrip(value);
+            }
+            assertShortestRoundTrip(rand.nextDouble() * Math.pow(10, rand.nextInt(40) - 20));
+            assertShortestRoundTrip((rand.nextInt(2000000) - 1000000) / Math.pow(10, rand.nextInt(8)));
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testAppendLong() throws Exception {
+        DoubleFormatter formatter = new DoubleFormatter();
+        StringBuilder out = new StringBuilder();
+        formatter.appendLong(0, out);
+        out.append(' ');
+        formatter.appendLong(-42, out);
+        out.append(' ');
+        formatter.appendLong(Long.MAX_VALUE, out);
+        out.append(' ');
+        formatter.appendLong(Long.MIN_VALUE, out);
+        assertEquals("0 -42 9223372036854775807 -9223372036854775808", out.toString());
+    }
+}
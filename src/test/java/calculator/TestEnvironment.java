@@ -0,0 +1,145 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import calculator.ast.AstNode;
+import calculator.ast.ExpressionManipulators;
+import calculator.ast.SimplifyCache;
+import calculator.interpreter.Calculator;
+import calculator.interpreter.DependencyGraph;
+import calculator.interpreter.Environment;
+import calculator.interpreter.FunctionTable;
+import calculator.interpreter.Interpreter;
+import calculator.interpreter.VariableFrame;
+import datastructures.concrete.DoubleLinkedList;
+import datastructures.concrete.dictionaries.ArrayDictionary;
+import datastructures.interfaces.IDictionary;
+import datastructures.interfaces.IList;
+import misc.BaseTest;
+import misc.FakeImageDrawer;
+import misc.exceptions.NoSuchKeyException;
+import org.junit.Test;
+
+public class TestEnvironment extends BaseTest {
+    private static Environment globalEnvironment(IDictionary<String, AstNode> variables) {
+        return new Environment(
+                variables,
+                null,
+                new FunctionTable(),
+                new Interpreter(),
+                new SimplifyCache(),
+                null,
+                new DependencyGraph(),
+                null);
+    }
+
+    private static AstNode plusOne(String name) {
+        IList<AstNode> children = new DoubleLinkedList<>();
+        children.add(new AstNode(name));
+        children.add(new AstNode(1));
+        return new AstNode("+", children);
+    }
+
+    @Test(timeout=SECOND)
+    public void testFrameShadowsAndFallsBack() {
+        IDictionary<String, AstNode> globals = new ArrayDictionary<>();
+        globals.put("x", new AstNode(10));
+        globals.put("y", new AstNode(20));
+        Environment env = globalEnvironment(globals);
+
+        Environment child = env.pushFrame("x", new AstNode(1));
+        assertTrue(child.isFrame());
+        assertEquals(1.0, child.getVariables().get("x").getNumericValue());
+        assertEquals(20.0, child.getVariables().get("y").getNumericValue());
+        assertEquals(2, child.getVariables().size());
+
+        // Assignments stay in the frame
+        child.getVariables().put("z", new AstNode(3));
+        child.getVariables().put("y", new AstNode(4));
+        assertEquals(4.0, child.getVariables().get("y").getNumericValue());
+        assertEquals(3, child.getVariables().size());
+        assertFalse(globals.containsKey("z"));
+        assertEquals(20.0, globals.get("y").getNumericValue());
+
+        assertSame(env, child.popFrame());
+        assertFalse(env.isFrame());
+        assertEquals(10.0, env.getVariables().get("x").getNumericValue());
+        try {
+            env.popFrame();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+            // Do nothing
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testFramesChain() {
+        Environment env = globalEnvironment(new ArrayDictionary<>());
+        Environment outer = env.pushFrame(new String[] {"a", "b"},
+                new AstNode[] {new AstNode(1), new AstNode(2)});
+        Environment inner = outer.pushFrame("a", new AstNode(3));
+        assertEquals(3.0, inner.getVariables().get("a").getNumericValue());
+        assertEquals(2.0, inner.getVariables().get("b").getNumericValue());
+        assertSame(outer, inner.popFrame());
+        assertEquals(1.0, outer.getVariables().get("a").getNumericValue());
+
+        VariableFrame frame = (VariableFrame) outer.getVariables();
+        assertEquals(1, frame.slotOf("b"));
+        assertEquals(1.0, frame.remove("a").getNumericValue());
+        assertEquals(0, frame.slotOf("b"));
+        try {
+            frame.remove("a");
+            fail("Expected NoSuchKeyException");
+        } catch (NoSuchKeyException ex) {
+            // Do nothing
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testSweepingALocalDoesNotTouchGlobalState() {
+        IDictionary<String, AstNode> globals = new ArrayDictionary<>();
+        globals.put("y", plusOne("x"));
+        Environment env = globalEnvironment(globals);
+        assertEquals(plusOne("x"), ExpressionManipulators.simplify(env, new AstNode("y")));
+
+        Environment child = env.pushFrame("x", new AstNode(0));
+        for (int i = 0; i < 5; i++) {
+            child.setLocal(0, new AstNode(i));
+            IList<AstNode> operands = new DoubleLinkedList<>();
+            operands.add(new AstNode("y"));
+            AstNode value = ExpressionManipulators.toDouble(child, new AstNode("toDouble", operands));
+            assertEquals(i + 1.0, value.getNumericValue());
+            assertEquals(i + 1.0,
+                    ExpressionManipulators.simplify(child, new AstNode("y")).getNumericValue());
+        }
+
+        // Nothing the frame saw was cached for the global scope
+        assertFalse(globals.containsKey("x"));
+        assertEquals(plusOne("x"), ExpressionManipulators.simplify(env, new AstNode("y")));
+    }
+
+    @Test(timeout=SECOND)
+    public void testPlotsSweepInAFrame() {
+        Calculator calc = new Calculator(new FakeImageDrawer());
+        calc.evaluate("y := 2");
+        assertEquals("x * 2", calc.evaluate("x * y"));
+        assertEquals("x ^ 2 + 2", calc.evaluate("x^2 + y"));
+        SimplifyCache cache = calc.getSimplifyCache();
+        int entries = cache.size();
+        long misses = cache.getMissCount();
+
+        calc.evaluate("plot(x * y, x, 0, 10, 1)");
+        calc.evaluate("plotAdaptive(x^2 + y, x, 0, 10, 0.01)");
+
+        // Both expressions were already simplified, and sampling added
+        // nothing to the cache or the variables
+        assertEquals(entries, cache.size());
+        assertEquals(misses, cache.getMissCount());
+        assertEquals("x", calc.evaluate("x"));
+        assertEquals("2", calc.evaluate("y"));
+    }
+}
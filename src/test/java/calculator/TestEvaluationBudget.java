@@ -0,0 +1,117 @@
+package calculator;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import calculator.errors.BudgetExceededError;
+import calculator.errors.EvaluationCancelledError;
+import calculator.interpreter.Calculator;
+import calculator.interpreter.EvaluationBudget;
+import misc.BaseTest;
+import misc.FakeImageDrawer;
+import org.junit.Test;
+
+public class TestEvaluationBudget extends BaseTest {
+    @Test(timeout=SECOND)
+    public void testBudgetLimitsNodesVisited() {
+        Calculator calc = new Calculator();
+        calc.setBudget(new EvaluationBudget(50, EvaluationBudget.UNLIMITED,
+                EvaluationBudget.UNLIMITED, EvaluationBudget.UNLIMITED));
+
+        assertEquals("3", calc.evaluate("1 + 2"));
+        try {
+            calc.evaluate("1 + 2 + 3 + 4 + 5 + 6 + 7 + 8 + 9 + 10 + 11 + 12 + 13 + 14 + 15 + 16");
+            fail("Expected BudgetExceededError");
+        } catch (BudgetExceededError err) {
+            assertEquals("node visit", err.getLimit());
+            assertTrue(err.getNodesVisited() > 50);
+        }
+
+        // The budget is reset between evaluations
+        assertEquals("3", calc.evaluate("1 + 2"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testBudgetLimitsDepth() {
+        Calculator calc = new Calculator();
+        calc.setBudget(new EvaluationBudget(EvaluationBudget.UNLIMITED, EvaluationBudget.UNLIMITED,
+                5, EvaluationBudget.UNLIMITED));
+
+        assertEquals("-1", calc.evaluate("-1"));
+        try {
+            calc.evaluate("------------1");
+            fail("Expected BudgetExceededError");
+        } catch (BudgetExceededError err) {
+            assertEquals("depth", err.getLimit());
+            assertEquals(6, err.getMaxDepth());
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testBudgetLimitsPlotSamples() {
+        Calculator calc = new Calculator();
+        calc.setImageDrawer(new FakeImageDrawer());
+        calc.setBudget(new EvaluationBudget(EvaluationBudget.UNLIMITED, 1000,
+                EvaluationBudget.UNLIMITED, EvaluationBudget.UNLIMITED));
+
+        try {
+            calc.evaluate("plot(x, x, 0, 1000000000, 1)");
+            fail("Expected BudgetExceededError");
+        } catch (BudgetExceededError err) {
+            assertEquals("node allocation", err.getLimit());
+            assertTrue(err.getNodesAllocated() > 1000);
+        }
+
+        // The loop variable must not leak out of the aborted plot
+        assertEquals("x", calc.evaluate("x"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testBudgetLimitsTime() {
+        Calculator calc = new Calculator();
+        calc.setImageDrawer(new FakeImageDrawer());
+        calc.setBudget(new EvaluationBudget(EvaluationBudget.UNLIMITED, EvaluationBudget.UNLIMITED,
+                EvaluationBudget.UNLIMITED, 20));
+
+        try {
+            calc.evaluate("plot(sin(x) ^ cos(x) * exp(sin(x)), x, 0, 5000000, 1)");
+            fail("Expected BudgetExceededError");
+        } catch (BudgetExceededError err) {
+            assertEquals("time", err.getLimit());
+            assertTrue(err.getElapsedMillis() >= 20);
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testHugeTimeLimitsDoNotOverflow() {
+        long[] limits = {Long.MAX_VALUE / 1000000L, Long.MAX_VALUE / 1000000L + 1,
+                Long.MAX_VALUE / 1000, Long.MAX_VALUE - 1};
+        for (long limit : limits) {
+            EvaluationBudget budget = new EvaluationBudget(EvaluationBudget.UNLIMITED,
+                    EvaluationBudget.UNLIMITED, EvaluationBudget.UNLIMITED, limit);
+            budget.checkTime();
+
+            Calculator calc = new Calculator();
+            calc.setBudget(budget);
+            assertEquals("3", calc.evaluate("1 + 2"));
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testBudgetCanBeCancelled() {
+        Calculator calc = new Calculator();
+        calc.setImageDrawer(new FakeImageDrawer());
+        calc.getBudget().cancel();
+
+        // Evaluating resets the budget, which clears the cancellation
+        assertEquals("3", calc.evaluate("1 + 2"));
+        EvaluationBudget budget = calc.getBudget();
+        budget.cancel();
+        try {
+            budget.visitMany(1);
+            fail("Expected EvaluationCancelledError");
+        } catch (EvaluationCancelledError err) {
+            assertTrue(budget.isCancelled());
+        }
+    }
+}
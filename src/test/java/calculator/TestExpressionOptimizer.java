@@ -0,0 +1,122 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static misc.AstFixtures.op;
+import static misc.AstFixtures.slots;
+
+import calculator.ast.AstNode;
+import calculator.ast.ExpressionOptimizer;
+import calculator.ast.StackProgram;
+import misc.BaseTest;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestExpressionOptimizer extends BaseTest {
+    private static final double DELTA = 1e-12;
+
+    @Test(timeout=SECOND)
+    public void testRepeatedSubexpressionsAreShared() {
+        // sin(x)^2 + sin(x) * cos(x)
+        AstNode expr = op("+",
+                op("^", op("sin", new AstNode("x")), new AstNode(2)),
+                op("*", op("sin", new AstNode("x")), op("cos", new AstNode("x"))));
+        AstNode optimized = ExpressionOptimizer.optimize(expr);
+
+        AstNode square = optimized.getChildren().get(0);
+        AstNode product = optimized.getChildren().get(1);
+        assertEquals("^", square.getName());
+        assertSame(square.getChildren().get(0), product.getChildren().get(0));
+
+        // The shared sin(x) is computed once and reused from a temporary
+        StackProgram program = StackProgram.compile(expr, slots("x"));
+        assertEquals(1, program.getTempCount());
+        double[] xs = new double[101];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = -5 + i * 0.1;
+        }
+        double[] out = new double[xs.length];
+        program.evalBatch(new double[1], 0, xs, out);
+        for (int i = 0; i < xs.length; i++) {
+            double x = xs[i];
+            double expected = Math.pow(Math.sin(x), 2) + Math.sin(x) * Math.cos(x);
+            Assert.assertEquals(expected, out[i], DELTA);
+            Assert.assertEquals(out[i], program.eval(new double[] {x}), 0.0);
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testResultsAreExactByDefault() {
+        AstNode x = new AstNode("x");
+        AstNode cube = op("^", x, new AstNode(3));
+        assertEquals(cube, ExpressionOptimizer.optimize(cube));
+        AstNode fractions = op("+", op("/", x, op("cos", x)), op("/", new AstNode(2), op("cos", x)));
+        AstNode optimized = ExpressionOptimizer.optimize(fractions);
+        assertEquals(fractions, optimized);
+        assertSame(optimized.getChildren().get(0).getChildren().get(1),
+                optimized.getChildren().get(1).getChildren().get(1));
+
+        // Powers that Math.pow computes exactly are still simplified
+        assertSame(x, ExpressionOptimizer.optimize(op("^", x, new AstNode(1))));
+        assertEquals(new AstNode(1), ExpressionOptimizer.optimize(op("^", x, new AstNode(0))));
+
+        // Sharing never changes a single bit, with or without slots
+        AstNode expr = op("+", op("*", cube, op("sin", x)), fractions);
+        StackProgram program = StackProgram.compile(expr, slots("x"));
+        for (double value = -3; value <= 3; value += 0.0625) {
+            double expected = Math.pow(value, 3) * Math.sin(value)
+                    + (value / Math.cos(value) + 2 / Math.cos(value));
+            assertEquals(expected, program.eval(new double[] {value}), 0.0);
+        }
+        StackProgram constant = StackProgram.compile(op("+", op("sin", new AstNode(0.25)),
+                op("^", op("sin", new AstNode(0.25)), new AstNode(3))), slots());
+        assertEquals(Math.sin(0.25) + Math.pow(Math.sin(0.25), 3), constant.eval(new double[0]), 0.0);
+    }
+
+    @Test(timeout=SECOND)
+    public void testFastMathPowersUseRepeatedSquaring() {
+        AstNode x = new AstNode("x");
+        AstNode optimized = ExpressionOptimizer.optimize(op("^", x, new AstNode(4)), true);
+        assertEquals("*", optimized.getName());
+        AstNode square = optimized.getChildren().get(0);
+        assertSame(square, optimized.getChildren().get(1));
+        assertEquals(op("*", x, x), square);
+
+        for (int n = 0; n <= 40; n++) {
+            StackProgram program = StackProgram.compile(op("^", x, new AstNode(n)), slots("x"), true);
+            for (double value = -3; value <= 3; value += 0.125) {
+                double expected = Math.pow(value, n);
+                Assert.assertEquals(expected, program.eval(new double[] {value}),
+                        Math.abs(expected) * DELTA);
+            }
+        }
+
+        // Fractional and very large exponents still go through Math.pow
+        AstNode root = op("^", x, new AstNode(0.5));
+        assertEquals(root, ExpressionOptimizer.optimize(root, true));
+        AstNode large = op("^", x, new AstNode(1000));
+        assertEquals(large, ExpressionOptimizer.optimize(large, true));
+    }
+
+    @Test(timeout=SECOND)
+    public void testFastMathCombinesFractionsOverTheSameDenominator() {
+        AstNode x = new AstNode("x");
+        // sin(x) / cos(x) - x / cos(x)
+        AstNode expr = op("-",
+                op("/", op("sin", x), op("cos", x)),
+                op("/", x, op("cos", x)));
+        AstNode optimized = ExpressionOptimizer.optimize(expr, true);
+        assertEquals(op("/", op("-", op("sin", x), x), op("cos", x)), optimized);
+
+        StackProgram program = StackProgram.compile(expr, slots("x"), true);
+        for (double value = -3; value <= 3; value += 0.125) {
+            double expected = Math.sin(value) / Math.cos(value) - value / Math.cos(value);
+            Assert.assertEquals(expected, program.eval(new double[] {value}),
+                    Math.abs(expected) * DELTA);
+        }
+
+        // Different denominators are left alone
+        AstNode different = op("+", op("/", x, new AstNode("y")), op("/", x, new AstNode("z")));
+        assertEquals(different, ExpressionOptimizer.optimize(different, true));
+    }
+}
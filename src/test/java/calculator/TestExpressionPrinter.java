@@ -0,0 +1,26 @@
+package calculator;
+
+import calculator.interpreter.Calculator;
+import calculator.interpreter.ExpressionPrinter;
+import misc.BaseTest;
+import org.junit.Test;
+
+/**
+ * Checks how the calculator writes its results out.
+ */
+public class TestExpressionPrinter extends BaseTest {
+    @Test(timeout=SECOND)
+    public void testOutputTruncation() throws Exception {
+        Calculator calc = new Calculator();
+        calc.setMaxOutputLength(10);
+        assertEquals("a + b", calc.evaluate("a + b"));
+        assertEquals("abcde + xy", calc.evaluate("abcde + xy"));
+        assertEquals("a + b + c ...", calc.evaluate("a + b + c + d + e"));
+        assertEquals("sin(123456...", calc.evaluate("sin(123456789 * x)"));
+
+        StringBuilder out = new StringBuilder();
+        calc.setMaxOutputLength(ExpressionPrinter.UNLIMITED);
+        calc.evaluate("2 * x + 0.5", out);
+        assertEquals("2 * x + 0.5", out.toString());
+    }
+}
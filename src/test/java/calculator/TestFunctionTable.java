@@ -0,0 +1,35 @@
+package calculator;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+
+import calculator.ast.AstManipulator;
+import calculator.ast.AstNode;
+import calculator.interpreter.FunctionTable;
+import calculator.parser.Parser;
+import misc.BaseTest;
+import org.junit.Test;
+
+public class TestFunctionTable extends BaseTest {
+    @Test(timeout=SECOND)
+    public void testFunctionTableRebindsAfterChange() {
+        FunctionTable functions = new FunctionTable();
+        AstManipulator first = (env, node) -> node;
+        AstManipulator second = (env, node) -> node;
+        functions.putCustom("f", first);
+
+        AstNode call = new Parser().parse("f(1)\n").getChildren().get(0);
+        functions.bind(call);
+        assertTrue(call.getBoundFunction() == first);
+        assertFalse(call.isBoundToSpecialFunction());
+
+        functions.putSpecial("f", second);
+        functions.bind(call);
+        assertTrue(call.getBoundFunction() == second);
+        assertTrue(call.isBoundToSpecialFunction());
+
+        AstNode plain = new Parser().parse("g(1)\n").getChildren().get(0);
+        functions.bind(plain);
+        assertTrue(plain.getBoundFunction() == null);
+    }
+}
@@ -0,0 +1,88 @@
+package calculator;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+
+import calculator.ast.AstNode;
+import calculator.ast.PlotCache;
+import calculator.ast.PlotSampler;
+import calculator.interpreter.Calculator;
+import calculator.interpreter.EvaluationBudget;
+import datastructures.concrete.DoubleLinkedList;
+import datastructures.interfaces.IList;
+import misc.BaseTest;
+import misc.FakeImageDrawer;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+public class TestPlotCache extends BaseTest {
+    private static final double DELTA = 1e-12;
+
+    @Test(timeout=SECOND)
+    public void testPlotCacheReusesSamples() {
+        Calculator calc = new Calculator();
+        FakeImageDrawer drawer = new FakeImageDrawer();
+        calc.setImageDrawer(drawer);
+        PlotCache cache = calc.getPlotCache();
+
+        calc.evaluate("c := 3");
+        calc.evaluate("plot(x^2 + c, x, 0, 10, 0.5)");
+        assertEquals(0L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+
+        // The same function under a different name is still a hit
+        calc.evaluate("d := 3");
+        calc.evaluate("plot(x^2 + d, x, 0, 10, 0.5)");
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(21L, cache.getCachedSamples());
+
+        // Changing a variable changes the function
+        calc.evaluate("c := 4");
+        calc.evaluate("plot(x^2 + c, x, 0, 10, 0.5)");
+        assertEquals(2L, cache.getMissCount());
+        assertEquals(104.0, drawer.lastYValues.get(20), DELTA);
+
+        // Overlapping ranges on the same grid only add the missing samples
+        calc.evaluate("plot(x^2 + c, x, 5, 15, 0.5)");
+        assertEquals(3L, cache.getMissCount());
+        assertEquals(21L + 31L, cache.getCachedSamples());
+        calc.evaluate("plot(x^2 + c, x, 2, 12, 0.5)");
+        assertEquals(2L, cache.getHitCount());
+
+        Iterator<Double> xs = drawer.lastXValues.iterator();
+        Iterator<Double> ys = drawer.lastYValues.iterator();
+        for (int i = 0; i <= 20; i++) {
+            double x = xs.next();
+            assertEquals(2 + i * 0.5, x, DELTA);
+            assertEquals(x * x + 4, ys.next(), DELTA);
+        }
+        assertFalse(xs.hasNext());
+    }
+
+    @Test(timeout=SECOND)
+    public void testPlotCacheStaysBounded() {
+        PlotCache cache = new PlotCache(100);
+        PlotSampler sampler = PlotSampler.common();
+        EvaluationBudget budget = EvaluationBudget.unlimited();
+        AstNode first = new AstNode("x");
+        IList<AstNode> children = new DoubleLinkedList<>();
+        children.add(new AstNode("x"));
+        AstNode second = new AstNode("negate", children);
+
+        cache.sample(sampler, first, "x", 0, 1, new double[60], new double[60], budget);
+        cache.sample(sampler, second, "x", 0, 1, new double[60], new double[60], budget);
+        assertEquals(60L, cache.getCachedSamples());
+
+        // The first series was evicted to make room for the second
+        cache.sample(sampler, second, "x", 0, 1, new double[60], new double[60], budget);
+        cache.sample(sampler, first, "x", 0, 1, new double[60], new double[60], budget);
+        assertEquals(1L, cache.getHitCount());
+
+        // Too large to keep at all
+        double[] ys = new double[200];
+        cache.sample(sampler, second, "x", 0, 1, new double[200], ys, budget);
+        assertEquals(-199.0, ys[199], 0.0);
+        assertTrue(cache.getCachedSamples() <= 100);
+    }
+}
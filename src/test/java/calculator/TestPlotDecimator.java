@@ -0,0 +1,83 @@
+package calculator;
+
+import static org.junit.Assert.assertTrue;
+
+import calculator.ast.PlotDecimator;
+import calculator.gui.ImageDrawer;
+import calculator.interpreter.Calculator;
+import misc.BaseTest;
+import misc.FakeImageDrawer;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+public class TestPlotDecimator extends BaseTest {
+    private static final double DELTA = 1e-12;
+
+    @Test(timeout=SECOND)
+    public void testPlotDecimatesToImageWidth() {
+        Calculator calc = new Calculator();
+        FakeImageDrawer drawer = new FakeImageDrawer(100);
+        calc.setImageDrawer(drawer);
+
+        calc.evaluate("plot(sin(x), x, 0, 100, 0.001)");
+        int size = drawer.lastXValues.size();
+        assertTrue(size <= 100 * PlotDecimator.SAMPLES_PER_COLUMN);
+        assertEquals(size, drawer.lastYValues.size());
+
+        // The ends and the extremes of the curve survive, and every kept
+        // sample is a real one, in order
+        Iterator<Double> xs = drawer.lastXValues.iterator();
+        Iterator<Double> ys = drawer.lastYValues.iterator();
+        double previous = Double.NEGATIVE_INFINITY;
+        double lowest = Double.POSITIVE_INFINITY;
+        double highest = Double.NEGATIVE_INFINITY;
+        while (xs.hasNext()) {
+            double x = xs.next();
+            double y = ys.next();
+            assertTrue(x > previous);
+            assertEquals(Math.sin(x), y, DELTA);
+            lowest = Math.min(lowest, y);
+            highest = Math.max(highest, y);
+            previous = x;
+        }
+        assertEquals(0.0, drawer.lastXValues.get(0), 0.0);
+        assertEquals(100.0, previous, 1e-9);
+        assertEquals(-1.0, lowest, 1e-6);
+        assertEquals(1.0, highest, 1e-6);
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testColumnsComeFromTheDataArea() {
+        ImageDrawer drawer = new ImageDrawer(null, 800, 600);
+        int columns = drawer.getPlotColumns("plot", "x", "output", 0, 100, -1, 1);
+
+        // The axes take up some of the width, and add a margin on each side
+        assertTrue(columns > 600);
+        assertTrue(columns < 800);
+
+        // Points spanning a single x value are a single column
+        assertEquals(1, drawer.getPlotColumns("plot", "x", "output", 5, 5, -1, 1));
+        assertTrue(new ImageDrawer(null, -1, -1).getPlotColumns("plot", "x", "output",
+                0, 100, -1, 1) < 0);
+    }
+
+    @Test(timeout=SECOND)
+    public void testDecimationKeepsColumnExtremes() {
+        double[] xs = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+        double[] ys = {5, 9, 1, 4, 7, Double.NaN, 3, 8, 2, 6, 0, 5};
+
+        // Three columns of four samples each are already small enough
+        assertEquals(12, PlotDecimator.decimate(xs.clone(), ys.clone(), 12, 3));
+
+        // Two columns: x in [0, 5.5) and x in [5.5, 11]
+        int kept = PlotDecimator.decimate(xs, ys, 12, 2);
+        assertEquals(8, kept);
+        double[] expectedXs = {0, 1, 2, 5, 6, 7, 10, 11};
+        double[] expectedYs = {5, 9, 1, Double.NaN, 3, 8, 0, 5};
+        for (int i = 0; i < kept; i++) {
+            assertEquals(expectedXs[i], xs[i], 0.0);
+            assertEquals(expectedYs[i], ys[i], 0.0);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package calculator;
+
+import calculator.interpreter.Calculator;
+import misc.BaseTest;
+import misc.FakeImageDrawer;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+public class TestPlotSampler extends BaseTest {
+    private static final double DELTA = 1e-12;
+
+    @Test(timeout=SECOND)
+    public void testPlotIsLinearInSamples() {
+        Calculator calc = new Calculator();
+        // Wide enough that every sample gets drawn
+        FakeImageDrawer drawer = new FakeImageDrawer(1000000);
+        calc.setImageDrawer(drawer);
+
+        calc.evaluate("plot(x ^ 2 - 3 * x, x, 0, 200000, 1)");
+        assertEquals(200001, drawer.lastXValues.size());
+        assertEquals(200001, drawer.lastYValues.size());
+
+        // Walk the lists with iterators, since 'get' on a linked list is linear
+        Iterator<Double> xs = drawer.lastXValues.iterator();
+        Iterator<Double> ys = drawer.lastYValues.iterator();
+        for (int i = 0; i <= 200000; i++) {
+            double x = xs.next();
+            assertEquals(i, x, 0.0);
+            assertEquals(x * x - 3 * x, ys.next(), DELTA);
+        }
+    }
+}
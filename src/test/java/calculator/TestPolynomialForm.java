@@ -0,0 +1,36 @@
+package calculator;
+
+import calculator.interpreter.Calculator;
+import misc.BaseTest;
+import org.junit.Test;
+
+/**
+ * Checks collecting like terms through collect(...).
+ */
+public class TestPolynomialForm extends BaseTest {
+    @Test(timeout=SECOND)
+    public void testCollectLikeTerms() {
+        Calculator calc = new Calculator();
+        assertEquals("2 * x + 1", calc.evaluate("collect((x + 1)^2 - x^2)"));
+        assertEquals("x ^ 2 - 1", calc.evaluate("collect((x - 1) * (x + 1))"));
+        assertEquals("-3 * x - 6", calc.evaluate("collect(-(x + 2) * 3)"));
+        assertEquals("(x + 2 * y) * x + y ^ 2", calc.evaluate("collect((x + y)^2)"));
+        assertEquals("0", calc.evaluate("collect(x - x)"));
+        assertEquals("2 * x + sin(2 * x + 1)", calc.evaluate("collect(sin((x + 1)^2 - x^2) + 3 * x - x)"));
+        assertEquals("x + x ^ 0.5", calc.evaluate("collect(x^0.5 + 2 * x - x)"));
+
+        calc.evaluate("a := 3");
+        assertEquals("x + 4", calc.evaluate("collect(a + x + 1)"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testCollectLargePolynomial() {
+        Calculator calc = new Calculator();
+        calc.evaluate("p := collect((x + 1)^20 * (y - 2)^5)");
+        calc.evaluate("x := 0.5");
+        calc.evaluate("y := 3");
+        double expected = Math.pow(1.5, 20);
+        assertEquals(expected,
+                Double.parseDouble(calc.evaluate("toDouble(p)")), expected * 1e-12);
+    }
+}
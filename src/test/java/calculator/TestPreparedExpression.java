@@ -0,0 +1,89 @@
+package calculator;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import calculator.errors.EvaluationError;
+import calculator.interpreter.Calculator;
+import calculator.interpreter.PreparedExpression;
+import misc.BaseTest;
+import org.junit.Test;
+
+public class TestPreparedExpression extends BaseTest {
+    private static final double DELTA = 1e-12;
+
+    @Test(timeout=SECOND)
+    public void testPreparedExpression() {
+        Calculator calc = new Calculator();
+        calc.evaluate("a := 3");
+        PreparedExpression expr = calc.prepare("a * x + y ^ 2");
+
+        assertEquals(2, expr.getSlotCount());
+        assertEquals("x", expr.getSlotName(0));
+        assertEquals(1, expr.getSlotIndex("y"));
+        assertEquals(-1, expr.getSlotIndex("a"));
+
+        assertEquals(10.0, expr.bind("x", 2).bind("y", 2).evaluateDouble(), DELTA);
+        for (int i = 0; i < 100; i++) {
+            expr.setSlot(0, i);
+            assertEquals(3.0 * i + 4.0, expr.evaluateDouble(), DELTA);
+        }
+
+        // Later assignments do not affect an expression that is already prepared
+        calc.evaluate("a := 5");
+        assertEquals(3.0 * 99 + 4.0, expr.evaluateDouble(), DELTA);
+        assertEquals(5.0, calc.prepare("toDouble(a)").evaluateDouble(), DELTA);
+    }
+
+    @Test(timeout=SECOND)
+    public void testPreparedExpressionErrors() {
+        Calculator calc = new Calculator();
+        PreparedExpression expr = calc.prepare("sin(x) + y");
+        expr.bind("x", 1);
+        try {
+            expr.evaluateDouble();
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // Do nothing
+        }
+
+        try {
+            expr.bind("z", 1);
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // Do nothing
+        }
+
+        try {
+            calc.prepare("x := 3");
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // Do nothing
+        }
+        assertEquals("x", calc.evaluate("x"));
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testFrequentlyEvaluatedExpressionsSwitchToBytecode() {
+        Calculator calc = new Calculator();
+        PreparedExpression expr = calc.prepare("x ^ 2 * sin(x) - (x + 1) / 3");
+        PreparedExpression reference = calc.prepare("x ^ 2 * sin(x) - (x + 1) / 3");
+        for (int i = 0; i <= PreparedExpression.BYTECODE_THRESHOLD; i++) {
+            assertEquals(i == PreparedExpression.BYTECODE_THRESHOLD, expr.usesBytecode());
+            expr.setSlot(0, i * 0.01);
+            assertEquals(reference.bind("x", i * 0.01).evaluateDouble(), expr.evaluateDouble(), 0.0);
+        }
+
+        // Too large for a single JVM method, so it stays on the StackProgram
+        StringBuilder input = new StringBuilder("sin(x)");
+        for (int i = 0; i < 10000; i++) {
+            input.append(" + sin(x)");
+        }
+        PreparedExpression large = calc.prepare(input.toString());
+        large.bind("x", 0.5);
+        for (int i = 0; i <= PreparedExpression.BYTECODE_THRESHOLD; i++) {
+            assertEquals(10001 * Math.sin(0.5), large.evaluateDouble(), 1e-9);
+        }
+        assertFalse(large.usesBytecode());
+    }
+}
@@ -0,0 +1,137 @@
+package calculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static misc.AstFixtures.op;
+import static misc.AstFixtures.var;
+
+import calculator.ast.AstNode;
+import calculator.ast.RewriteEngine;
+import calculator.ast.RewriteRule;
+import calculator.ast.RuleSet;
+import calculator.errors.BudgetExceededError;
+import calculator.interpreter.Calculator;
+import calculator.interpreter.EvaluationBudget;
+import misc.BaseTest;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestRewriteEngine extends BaseTest {
+    @Test(timeout=SECOND)
+    public void testSimplifyAppliesIdentities() {
+        Calculator calc = new Calculator();
+        assertEquals("x", calc.evaluate("x * 1"));
+        assertEquals("x", calc.evaluate("1 * x / 1"));
+        assertEquals("x - y", calc.evaluate("x - y"));
+        assertEquals("x", calc.evaluate("x - 0"));
+        assertEquals("1", calc.evaluate("sin(x)^0"));
+        assertEquals("y", calc.evaluate("y^1"));
+
+        // Identities that only show up once variables are substituted
+        calc.evaluate("a := x^1");
+        assertEquals("x * y", calc.evaluate("a * y"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testSimplifyOnlyAssumesFiniteValuesWhenAsked() {
+        Calculator calc = new Calculator();
+        assertEquals("0 * 1 / 0", calc.evaluate("0 * (1 / 0)"));
+        assertEquals("NaN", calc.evaluate("toDouble(0 * (1 / 0))"));
+        assertEquals("0 * sin(x)", calc.evaluate("0 * sin(x)"));
+        assertEquals("x + y - x + y", calc.evaluate("(x + y) - (x + y)"));
+        assertEquals("0 - x", calc.evaluate("0 - x"));
+        assertEquals("sin(x) ^ 2 + cos(x) ^ 2", calc.evaluate("sin(x)^2 + cos(x)^2"));
+        calc.evaluate("a := x - x");
+        assertEquals("y + x - x", calc.evaluate("y + a"));
+
+        calc.setAssumeFinite(true);
+        assertEquals("0", calc.evaluate("0 * (1 / 0)"));
+        assertEquals("0", calc.evaluate("0 * sin(x)"));
+        assertEquals("0", calc.evaluate("(x + y) - (x + y)"));
+        assertEquals("-x", calc.evaluate("0 - x"));
+        assertEquals("1", calc.evaluate("sin(x)^2 + cos(x)^2"));
+        assertEquals("sin(x) ^ 2 + cos(y) ^ 2", calc.evaluate("sin(x)^2 + cos(y)^2"));
+        assertEquals("y", calc.evaluate("y + a"));
+
+        // Any two operands of a flattened sum can be combined
+        assertEquals("y + 1 + 3", calc.evaluate("y + cos(2 * x)^2 + 3 + sin(2 * x)^2"));
+
+        calc.setAssumeFinite(false);
+        assertEquals("0 * sin(x)", calc.evaluate("0 * sin(x)"));
+        assertEquals("y + x - x", calc.evaluate("y + a"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testCandidatesComeFromIndex() {
+        List<RewriteRule> rules = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            rules.add(new RewriteRule(op("f" + i, var("x")), var("x")));
+        }
+        rules.add(new RewriteRule(op("f7", new AstNode(0)), new AstNode(1)));
+        RuleSet ruleSet = new RuleSet(rules);
+
+        assertEquals(Arrays.asList(7), ruleSet.candidates(op("f7", var("y"))));
+        assertEquals(Arrays.asList(7, 1000), ruleSet.candidates(op("f7", new AstNode(0))));
+        assertEquals(Arrays.asList(), ruleSet.candidates(op("g", var("y"))));
+        assertEquals(Arrays.asList(), ruleSet.candidates(op("f7", var("x"), var("y"))));
+    }
+
+    @Test(timeout=SECOND)
+    public void testRewritesStopAtLimit() {
+        // g(x) -> g(g(x)) never stops on its own
+        List<RewriteRule> rules = new ArrayList<>();
+        rules.add(new RewriteRule(op("g", var("x")), op("g", op("g", var("x")))));
+        RewriteEngine engine = new RewriteEngine(new RuleSet(rules), 100, null);
+        AstNode result = engine.rewrite(op("g", var("y")));
+        assertEquals(100, engine.getRewriteCount());
+
+        int depth = 0;
+        while (result.isOperation()) {
+            result = result.getChildren().get(0);
+            depth += 1;
+        }
+        assertEquals(101, depth);
+    }
+
+    @Test(timeout=SECOND)
+    public void testRewriteLimitIsReportedToBudget() {
+        List<RewriteRule> rules = new ArrayList<>();
+        rules.add(new RewriteRule(op("g", var("x")), op("g", op("g", var("x")))));
+        RewriteEngine engine = new RewriteEngine(new RuleSet(rules), 100,
+                EvaluationBudget.unlimited());
+        try {
+            engine.rewrite(op("g", var("y")));
+            fail("Expected BudgetExceededError");
+        } catch (BudgetExceededError ex) {
+            assertEquals("rewrite", ex.getLimit());
+        }
+        assertEquals(100, engine.getRewriteCount());
+
+        // Reaching the limit exactly is not an error
+        List<RewriteRule> once = new ArrayList<>();
+        once.add(new RewriteRule(op("f", var("x")), var("x")));
+        engine = new RewriteEngine(new RuleSet(once), 1, EvaluationBudget.unlimited());
+        assertEquals(var("y"), engine.rewrite(op("f", var("y"))));
+    }
+
+    @Test(timeout=SECOND)
+    public void testRepeatedMetavariablesMustMatchEqually() {
+        List<RewriteRule> rules = new ArrayList<>();
+        rules.add(new RewriteRule(op("h", var("x"), var("x")), var("x")));
+        RewriteEngine engine = new RewriteEngine(new RuleSet(rules),
+                RewriteEngine.DEFAULT_MAX_REWRITES, null);
+
+        AstNode same = op("h", op("sin", var("a")), op("sin", var("a")));
+        assertEquals(op("sin", var("a")), engine.rewrite(same));
+        AstNode different = op("h", op("sin", var("a")), op("sin", var("b")));
+        assertEquals(different, engine.rewrite(different));
+    }
+
+    @Test(timeout=SECOND, expected=IllegalArgumentException.class)
+    public void testReplacementMustUsePatternVariables() {
+        new RewriteRule(op("f", var("x")), var("y"));
+    }
+}
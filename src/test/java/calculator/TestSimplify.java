@@ -0,0 +1,39 @@
+package calculator;
+
+import static org.junit.Assert.assertTrue;
+
+import calculator.interpreter.Calculator;
+import misc.BaseTest;
+import org.junit.Test;
+
+/**
+ * Checks the single bottom-up simplify pass and what it copies.
+ */
+public class TestSimplify extends BaseTest {
+    @Test(timeout=SECOND)
+    public void testSimplifyNestedDefinitions() {
+        Calculator calc = new Calculator();
+        assertEquals("x + 3", calc.evaluate("y := x + 3"));
+        assertEquals("2 * (x + 3)", calc.evaluate("z := 2 * y"));
+        assertEquals("4", calc.evaluate("x := 4"));
+        assertEquals("8", calc.evaluate("y + 1"));
+        assertEquals("15", calc.evaluate("z + 1"));
+        assertEquals("15", calc.evaluate("toDouble(z + 1)"));
+        assertEquals("sin(14) + 1", calc.evaluate("sin(z) + 1"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testEvaluationReusesUnchangedSubtrees() {
+        Calculator calc = new Calculator();
+
+        // Nothing can be simplified, so no operation needs to be copied
+        assertEquals("sin(x) + y * z", calc.evaluate("sin(x) + y * z"));
+        long unchanged = calc.getBudget().getNodesAllocated();
+        assertTrue(unchanged <= 1);
+
+        // Substituting 'y' only copies the path from 'y' up to the root
+        calc.evaluate("y := 2");
+        assertEquals("sin(x) + 2 * z", calc.evaluate("sin(x) + y * z"));
+        assertEquals(unchanged + 2, calc.getBudget().getNodesAllocated());
+    }
+}
@@ -0,0 +1,60 @@
+package calculator;
+
+import static org.junit.Assert.assertTrue;
+
+import calculator.ast.AstNode;
+import calculator.ast.SimplifyCache;
+import calculator.interpreter.Calculator;
+import misc.BaseTest;
+import org.junit.Test;
+
+public class TestSimplifyCache extends BaseTest {
+    @Test(timeout=SECOND)
+    public void testSimplifyCacheInvalidation() {
+        Calculator calc = new Calculator();
+        SimplifyCache cache = calc.getSimplifyCache();
+        calc.evaluate("y := x + 3");
+        calc.evaluate("z := 2 * y");
+        calc.evaluate("w := a + 1");
+
+        assertEquals("2 * (x + 3) + 1", calc.evaluate("z + 1"));
+        long hits = cache.getHitCount();
+        assertEquals("2 * (x + 3) + 1", calc.evaluate("z + 1"));
+        assertTrue(cache.getHitCount() > hits);
+
+        // Redefining an unrelated variable keeps the entry current...
+        calc.evaluate("a := 5");
+        hits = cache.getHitCount();
+        assertEquals("2 * (x + 3) + 1", calc.evaluate("z + 1"));
+        assertTrue(cache.getHitCount() > hits);
+        assertEquals("6", calc.evaluate("w"));
+
+        // ...but defining a variable it depends on does not.
+        calc.evaluate("x := 4");
+        assertEquals("15", calc.evaluate("z + 1"));
+        calc.evaluate("x := 5");
+        assertEquals("17", calc.evaluate("z + 1"));
+        calc.evaluate("y := 1");
+        assertEquals("2", calc.evaluate("y + 1"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testSimplifyCacheEvictsLeastRecentlyUsed() {
+        SimplifyCache cache = new SimplifyCache(2);
+        AstNode a = new AstNode("a");
+        AstNode b = new AstNode("b");
+        AstNode c = new AstNode("c");
+        cache.get(a, () -> new AstNode(1));
+        cache.get(b, () -> new AstNode(2));
+        cache.get(a, () -> new AstNode(-1));
+        cache.get(c, () -> new AstNode(3));
+        assertEquals(2, cache.size());
+
+        // 'b' was the least recently used entry, so it was evicted
+        assertEquals(1.0, cache.get(a, () -> new AstNode(-1)).getNumericValue());
+        assertEquals(3.0, cache.get(c, () -> new AstNode(-1)).getNumericValue());
+        assertEquals(-2.0, cache.get(b, () -> new AstNode(-2)).getNumericValue());
+        assertEquals(3L, cache.getHitCount());
+        assertEquals(4L, cache.getMissCount());
+    }
+}
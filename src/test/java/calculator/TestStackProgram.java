@@ -0,0 +1,233 @@
+package calculator;
+
+import static org.junit.Assert.fail;
+import static misc.AstFixtures.op;
+import static misc.AstFixtures.slots;
+
+import calculator.ast.AstNode;
+import calculator.ast.ExpressionManipulators;
+import calculator.ast.PlotSampler;
+import calculator.ast.StackProgram;
+import calculator.errors.EvaluationError;
+import calculator.interpreter.EvaluationBudget;
+import calculator.parser.Parser;
+import datastructures.concrete.dictionaries.ArrayDictionary;
+import datastructures.interfaces.IDictionary;
+import misc.BaseTest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+public class TestStackProgram extends BaseTest {
+    private static final double DELTA = 1e-12;
+
+    @Test(timeout=SECOND)
+    public void testSlotsAndConstants() {
+        IDictionary<String, AstNode> vars = new ArrayDictionary<>();
+        vars.put("c", new AstNode(4));
+
+        // x^2 + c*x + c - sqrt(abs(x)) / exp(0)
+        AstNode expr = op("-",
+                op("+", op("+", op("^", new AstNode("x"), new AstNode(2)),
+                        op("*", new AstNode("c"), new AstNode("x"))), new AstNode("c")),
+                op("/", op("sqrt", op("abs", new AstNode("x"))), op("exp", new AstNode(0))));
+        StackProgram program = StackProgram.compile(expr, slots("x"), vars);
+
+        double[] slots = new double[1];
+        for (double x = -10; x <= 10; x += 0.25) {
+            slots[0] = x;
+            double expected = x * x + 4 * x + 4 - Math.sqrt(Math.abs(x)) / Math.exp(0);
+            Assert.assertEquals(expected, program.eval(slots), DELTA);
+        }
+
+        double[] stack = new double[program.getMaxStackDepth()];
+        slots[0] = 3;
+        Assert.assertEquals(25 - Math.sqrt(3), program.eval(slots, stack), DELTA);
+    }
+
+    @Test(timeout=SECOND)
+    public void testBatchMatchesScalar() {
+        // Mixes column/column, column/scalar, scalar/column and scalar/scalar
+        // operands: 2^x + c / (x - 1) - sin(-x) * cos(c * 2) + sqrt(abs(x))
+        //           + x^2 * x^1
+        IDictionary<String, AstNode> vars = new ArrayDictionary<>();
+        vars.put("c", new AstNode(3));
+        AstNode x = new AstNode("x");
+        AstNode expr = op("+",
+                op("-",
+                        op("+", op("^", new AstNode(2), x), op("/", new AstNode("c"), op("-", x, new AstNode(1)))),
+                        op("*", op("sin", op("negate", x)), op("cos", op("*", new AstNode("c"), new AstNode(2))))),
+                op("+", op("sqrt", op("abs", x)),
+                        op("*", op("^", x, new AstNode(2)), op("^", x, new AstNode(1)))));
+        StackProgram program = StackProgram.compile(expr, slots("y", "x"), vars);
+
+        // Spans several blocks, with a partial block at the end
+        int count = 3 * StackProgram.BATCH_BLOCK_SIZE + 17;
+        double[] xs = new double[count];
+        for (int i = 0; i < count; i++) {
+            xs[i] = -20 + 40.0 * i / count;
+        }
+        double[] out = new double[count];
+        double[] slots = new double[] {123, 0};
+        program.evalBatch(slots, 1, xs, out);
+        for (int i = 0; i < count; i++) {
+            // Both compute every point the same way, so they agree exactly
+            slots[1] = xs[i];
+            Assert.assertEquals(program.eval(slots), out[i], 0.0);
+        }
+
+        // Evaluating part of the input leaves the rest of the output alone
+        double[] partial = new double[count];
+        program.evalBatch(slots, 1, xs, 5, 2000, partial, program.newBatchColumns());
+        Assert.assertEquals(0.0, partial[4], 0.0);
+        Assert.assertEquals(out[5], partial[5], DELTA);
+        Assert.assertEquals(out[1999], partial[1999], DELTA);
+        Assert.assertEquals(0.0, partial[2000], 0.0);
+    }
+
+    @Test(timeout=SECOND)
+    public void testBatchConstantExpression() {
+        double[] out = new double[5];
+        StackProgram.compile(op("+", new AstNode(1), new AstNode(2)), slots("x"))
+                .evalBatch(new double[1], 0, new double[5], out);
+        for (double value : out) {
+            Assert.assertEquals(3.0, value, DELTA);
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testEvaluateBatch() {
+        AstNode expr = new Parser().parse("3 * x ^ 2 - sin(x)\n").getChildren().get(0);
+        double[] xs = {-2, -1, 0, 0.5, 1, 2};
+        double[] out = new double[xs.length];
+        ExpressionManipulators.evaluateBatch(expr, "x", xs, out);
+        for (int i = 0; i < xs.length; i++) {
+            assertEquals(3 * xs[i] * xs[i] - Math.sin(xs[i]), out[i], DELTA);
+        }
+
+        try {
+            ExpressionManipulators.evaluateBatch(expr, "y", xs, out);
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // Do nothing
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testInvariantSubexpressionsAreHoisted() {
+        IDictionary<String, AstNode> vars = new ArrayDictionary<>();
+        vars.put("a", new AstNode(2));
+        vars.put("b", new AstNode(3));
+        AstNode x = new AstNode("x");
+
+        // sqrt(a * b) * sin(x) needs only CONST, LOAD, SIN, MUL per sample
+        AstNode expr = op("*", op("sqrt", op("*", new AstNode("a"), new AstNode("b"))), op("sin", x));
+        StackProgram program = StackProgram.compile(expr, slots("x"), vars);
+        Assert.assertEquals(4, program.getInstructionCount());
+
+        // exp(a) + (x - cos(b) / a) ^ (b - 1): the invariant parts on both
+        // sides of the slot are folded, the rest is left alone
+        AstNode mixed = op("+", op("exp", new AstNode("a")),
+                op("^", op("-", x, op("/", op("cos", new AstNode("b")), new AstNode("a"))),
+                        op("-", new AstNode("b"), new AstNode(1))));
+        StackProgram mixedProgram = StackProgram.compile(mixed, slots("x"), vars);
+        Assert.assertEquals(7, mixedProgram.getInstructionCount());
+
+        double[] xs = new double[41];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = -5 + i * 0.25;
+        }
+        double[] out = new double[xs.length];
+        double[] mixedOut = new double[xs.length];
+        program.evalBatch(new double[1], 0, xs, out);
+        mixedProgram.evalBatch(new double[1], 0, xs, mixedOut);
+        for (int i = 0; i < xs.length; i++) {
+            double value = xs[i];
+            Assert.assertEquals(Math.sqrt(6) * Math.sin(value), out[i], DELTA);
+            Assert.assertEquals(Math.exp(2) + Math.pow(value - Math.cos(3) / 2, 2),
+                    mixedOut[i], DELTA);
+            Assert.assertEquals(mixedOut[i], mixedProgram.eval(new double[] {value}), 0.0);
+        }
+
+        // Nothing varies at all
+        vars.put("x", new AstNode(1));
+        StackProgram constant = StackProgram.compile(mixed, slots(), vars);
+        Assert.assertEquals(1, constant.getInstructionCount());
+        Assert.assertEquals(Math.exp(2) + Math.pow(1 - Math.cos(3) / 2, 2),
+                constant.eval(new double[0]), DELTA);
+    }
+
+    @Test(timeout=5 * SECOND)
+    public void testParallelSamplingIsDeterministic() {
+        AstNode x = new AstNode("x");
+        AstNode expr = op("*", op("sin", x), op("exp", op("/", x, new AstNode(7))));
+        StackProgram program = StackProgram.compile(expr, slots("x"));
+
+        int count = PlotSampler.countSamples(-100, 100, 0.001);
+        assertEquals(200001, count);
+        double[] serialXs = new double[count];
+        double[] serialYs = new double[count];
+        double[] parallelXs = new double[count];
+        double[] parallelYs = new double[count];
+
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool several = new ForkJoinPool(4);
+        try {
+            new PlotSampler(single).sample(program, new double[1], 0, -100, 0.001,
+                    serialXs, serialYs, EvaluationBudget.unlimited());
+            new PlotSampler(several).sample(program, new double[1], 0, -100, 0.001,
+                    parallelXs, parallelYs, EvaluationBudget.unlimited());
+        } finally {
+            single.shutdown();
+            several.shutdown();
+        }
+
+        double[] slots = new double[1];
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(-100 + i * 0.001, serialXs[i], 0.0);
+            Assert.assertEquals(serialXs[i], parallelXs[i], 0.0);
+            Assert.assertEquals(serialYs[i], parallelYs[i], 0.0);
+            slots[0] = serialXs[i];
+            Assert.assertEquals(program.eval(slots), serialYs[i], DELTA);
+        }
+    }
+
+    @Test(timeout=5 * SECOND)
+    public void testDeepExpressionDoesNotOverflow() {
+        int depth = 200000;
+        AstNode left = new AstNode("x");
+        AstNode right = new AstNode(0);
+        for (int i = 0; i < depth; i++) {
+            left = op("-", left, new AstNode(1));
+            right = op("negate", op("negate", right));
+        }
+        StackProgram program = StackProgram.compile(op("+", left, right), slots("x"));
+        Assert.assertEquals(5.0 - depth, program.eval(new double[] {5}), DELTA);
+        assertEquals(2, program.getMaxStackDepth());
+    }
+
+    @Test(timeout=SECOND)
+    public void testCompileFailsOnUnknown() {
+        try {
+            StackProgram.compile(op("+", new AstNode("x"), new AstNode("a")), slots("x"));
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // Do nothing
+        }
+
+        try {
+            StackProgram.compile(op("mystery", new AstNode(3)), slots());
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // Do nothing
+        }
+
+        try {
+            StackProgram.compile(op("+", new AstNode(3)), slots());
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // Do nothing
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package datastructures;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import datastructures.concrete.ArrayHeap;
+import datastructures.interfaces.IPriorityQueue;
+import misc.BaseTest;
+import misc.exceptions.EmptyContainerException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+public class TestArrayHeap extends BaseTest {
+    protected <T extends Comparable<T>> IPriorityQueue<T> makeInstance() {
+        return new ArrayHeap<>();
+    }
+
+    @Test(timeout=SECOND)
+    public void testBasicSize() {
+        IPriorityQueue<Integer> heap = this.makeInstance();
+        assertTrue(heap.isEmpty());
+        heap.insert(3);
+        assertEquals(1, heap.size());
+        assertFalse(heap.isEmpty());
+    }
+
+    @Test(timeout=SECOND)
+    public void testRemoveInDescendingOrder() {
+        IPriorityQueue<Integer> heap = this.makeInstance();
+        int[] items = {5, 1, 9, 3, 9, 7, 2, 8, 0, 4, 6};
+        for (int item : items) {
+            heap.insert(item);
+        }
+        assertEquals(items.length, heap.size());
+
+        int[] sorted = items.clone();
+        Arrays.sort(sorted);
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            assertEquals(sorted[i], (int) heap.peekMax());
+            assertEquals(sorted[i], (int) heap.removeMax());
+        }
+        assertTrue(heap.isEmpty());
+    }
+
+    @Test(timeout=SECOND)
+    public void testEmptyHeapThrows() {
+        IPriorityQueue<Integer> heap = this.makeInstance();
+        try {
+            heap.removeMax();
+            fail("Expected EmptyContainerException");
+        } catch (EmptyContainerException ex) {
+            // Do nothing: this is ok
+        }
+        try {
+            heap.peekMax();
+            fail("Expected EmptyContainerException");
+        } catch (EmptyContainerException ex) {
+            // Do nothing: this is ok
+        }
+
+        heap.insert(1);
+        heap.removeMax();
+        try {
+            heap.removeMax();
+            fail("Expected EmptyContainerException");
+        } catch (EmptyContainerException ex) {
+            // Do nothing: this is ok
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testInsertNullThrows() {
+        IPriorityQueue<Integer> heap = this.makeInstance();
+        try {
+            heap.insert(null);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // Do nothing: this is ok
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testInterleavedMatchesReference() {
+        IPriorityQueue<Integer> heap = this.makeInstance();
+        PriorityQueue<Integer> reference = new PriorityQueue<>(Collections.reverseOrder());
+        Random random = new Random(373);
+        for (int i = 0; i < 200000; i++) {
+            if (!reference.isEmpty() && random.nextInt(3) == 0) {
+                assertEquals(reference.poll(), heap.removeMax());
+            } else {
+                int item = random.nextInt(1000);
+                reference.add(item);
+                heap.insert(item);
+            }
+            assertEquals(reference.size(), heap.size());
+        }
+    }
+}
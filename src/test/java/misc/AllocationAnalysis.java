@@ -0,0 +1,58 @@
+package misc;
+
+import calculator.interpreter.Calculator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures how much memory the calculator allocates per evaluation.
+ *
+ * For each input, prints the average number of bytes allocated by a call to
+ * 'Calculator.evaluate', along with the number of AST nodes the interpreter
+ * and simplifier had to allocate (as reported by the evaluation budget).
+ *
+ * Only works on JVMs that support per-thread allocation counters, which
+ * includes HotSpot.
+ */
+public class AllocationAnalysis {
+    // Evaluate each input this many times before measuring, so the JIT has
+    // settled down
+    private static final int WARMUP = 20000;
+
+    // Average the measurements over this many evaluations
+    private static final int TRIALS = 20000;
+
+    private static final String[] INPUTS = {
+        "x + y * z",
+        "sin(x) + cos(y) * (a - b) / c",
+        "x + y + z + w + v + u + t + s + r + q",
+        "3 * (x + 2) ^ 2 - 7",
+    };
+
+    public static void main(String[] args) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("This JVM does not count allocations per thread");
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long thread = Thread.currentThread().getId();
+
+        Calculator calc = new Calculator();
+        for (String input : INPUTS) {
+            for (int i = 0; i < WARMUP; i++) {
+                calc.evaluate(input);
+            }
+
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < TRIALS; i++) {
+                calc.evaluate(input);
+            }
+            long bytes = (threads.getThreadAllocatedBytes(thread) - before) / TRIALS;
+
+            System.out.printf("%-40s %8d bytes/eval %4d nodes/eval%n",
+                    input, bytes, calc.getBudget().getNodesAllocated());
+        }
+    }
+}
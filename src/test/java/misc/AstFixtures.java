@@ -0,0 +1,38 @@
+package misc;
+
+import calculator.ast.AstNode;
+import datastructures.concrete.DoubleLinkedList;
+import datastructures.interfaces.IList;
+
+/**
+ * Shorthand for building expression trees and slot lists in tests, so that
+ * tests can write op("+", var("x"), num(1)) instead of assembling the
+ * children lists by hand.
+ */
+public class AstFixtures {
+    private AstFixtures() {}
+
+    public static AstNode op(String name, AstNode... args) {
+        IList<AstNode> children = new DoubleLinkedList<>();
+        for (AstNode arg : args) {
+            children.add(arg);
+        }
+        return new AstNode(name, children);
+    }
+
+    public static AstNode num(double value) {
+        return new AstNode(value);
+    }
+
+    public static AstNode var(String name) {
+        return new AstNode(name);
+    }
+
+    public static IList<String> slots(String... names) {
+        IList<String> out = new DoubleLinkedList<>();
+        for (String name : names) {
+            out.add(name);
+        }
+        return out;
+    }
+}
@@ -13,6 +13,10 @@ public class BaseTest {
         Assert.assertEquals(message, expected, actual);
     }
 
+    protected static void assertEquals(double expected, double actual, double delta) {
+        Assert.assertEquals(expected, actual, delta);
+    }
+
     /**
      * This wrapper class allows us to define a custom hashcode for arbitrary
      * objects.
@@ -0,0 +1,100 @@
+package misc;
+
+import calculator.ast.AstNode;
+import calculator.ast.StackProgram;
+import calculator.parser.Parser;
+import datastructures.concrete.DoubleLinkedList;
+import datastructures.interfaces.IList;
+
+/**
+ * Measures how many samples per second a single core can evaluate, both
+ * point by point ('StackProgram.eval') and a block at a time
+ * ('StackProgram.evalBatch').
+ *
+ * Sample counts range from 10^3 to 10^8. Inputs are fed through a fixed
+ * buffer of at most 10^6 samples, so even the largest run fits in a small
+ * heap.
+ *
+ * Before timing anything, checks that both give bit-identical results, so
+ * the two are never measured computing different things.
+ */
+public class BatchThroughput {
+    private static final int BUFFER_SIZE = 1000000;
+
+    // Repeat each measurement this many times and keep the best
+    private static final int TRIALS = 5;
+
+    private static final String[] INPUTS = {
+        "3 * x ^ 2 - 4 * x + 1",
+        "abs(x) / (x * x + 1) - sqrt(abs(x))",
+        "sin(x) * cos(x / 2)",
+    };
+
+    public static void main(String[] args) {
+        double[] xs = new double[BUFFER_SIZE];
+        double[] out = new double[BUFFER_SIZE];
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            xs[i] = -50 + 100.0 * i / BUFFER_SIZE;
+        }
+
+        IList<String> slotNames = new DoubleLinkedList<>();
+        slotNames.add("x");
+        for (String input : INPUTS) {
+            AstNode expr = new Parser().parse(input + "\n").getChildren().get(0);
+            StackProgram program = StackProgram.compile(expr, slotNames);
+            checkAgree(program, xs);
+            System.out.println(input);
+            System.out.printf("%12s %16s %16s%n", "samples", "point/sec", "batch/sec");
+            for (long count = 1000; count <= 100000000L; count *= 10) {
+                long samples = count;
+                double point = best(() -> evaluatePoints(program, xs, out, samples), samples);
+                double batch = best(() -> evaluateBatch(program, xs, out, samples), samples);
+                System.out.printf("%12d %16.3e %16.3e%n", samples, point, batch);
+            }
+        }
+    }
+
+    private static void checkAgree(StackProgram program, double[] xs) {
+        double[] points = new double[xs.length];
+        double[] batch = new double[xs.length];
+        evaluatePoints(program, xs, points, xs.length);
+        evaluateBatch(program, xs, batch, xs.length);
+        for (int i = 0; i < xs.length; i++) {
+            if (Double.doubleToLongBits(points[i]) != Double.doubleToLongBits(batch[i])) {
+                throw new IllegalStateException("Batch and point results differ at x = " + xs[i]);
+            }
+        }
+    }
+
+    // Runs the task several times, and returns the best samples per second
+    private static double best(Runnable task, long samples) {
+        task.run();
+        long fastest = Long.MAX_VALUE;
+        for (int i = 0; i < TRIALS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        return samples * 1e9 / Math.max(1, fastest);
+    }
+
+    private static void evaluatePoints(StackProgram program, double[] xs, double[] out, long samples) {
+        double[] slots = new double[1];
+        for (long done = 0; done < samples; done += BUFFER_SIZE) {
+            int count = (int) Math.min(BUFFER_SIZE, samples - done);
+            for (int i = 0; i < count; i++) {
+                slots[0] = xs[i];
+                out[i] = program.eval(slots);
+            }
+        }
+    }
+
+    private static void evaluateBatch(StackProgram program, double[] xs, double[] out, long samples) {
+        double[] slots = new double[1];
+        double[][] columns = program.newBatchColumns();
+        for (long done = 0; done < samples; done += BUFFER_SIZE) {
+            int count = (int) Math.min(BUFFER_SIZE, samples - done);
+            program.evalBatch(slots, 0, xs, 0, count, out, columns);
+        }
+    }
+}
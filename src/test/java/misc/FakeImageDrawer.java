@@ -0,0 +1,40 @@
+package misc;
+
+import calculator.gui.ImageDrawer;
+import datastructures.interfaces.IList;
+
+import java.awt.geom.Rectangle2D;
+
+/**
+ * An image drawer that draws nothing, and instead remembers the points of
+ * the last plot it was given so that tests can check them.
+ */
+public class FakeImageDrawer extends ImageDrawer {
+    public IList<Double> lastXValues;
+    public IList<Double> lastYValues;
+
+    public FakeImageDrawer() {
+        this(800);
+    }
+
+    public FakeImageDrawer(int width) {
+        super(null, width, 800);
+    }
+
+    /**
+     * Nothing is laid out, so every pixel column counts as part of the plot.
+     */
+    @Override
+    public int getPlotColumns(String title, String xAxisLabel, String yAxisLabel,
+                              double xMin, double xMax, double yMin, double yMax) {
+        return this.getWidth();
+    }
+
+    @Override
+    public void drawScatterPlot(String title, String xAxisLabel, String yAxisLabel,
+                                IList<Double> xValues, IList<Double> yValues,
+                                Rectangle2D drawReagion) {
+        this.lastXValues = xValues;
+        this.lastYValues = yValues;
+    }
+}